@@ -0,0 +1,141 @@
+package eu.pkgsoftware.babybuddywidgets
+
+import android.os.Handler
+import android.os.Looper
+import android.util.Log
+import android.view.FrameMetrics
+import android.view.View
+import android.view.ViewGroup
+import android.view.Window
+import androidx.navigation.fragment.NavHostFragment
+import androidx.recyclerview.widget.LinearLayoutManager
+import androidx.recyclerview.widget.RecyclerView
+import androidx.test.ext.junit.rules.ActivityScenarioRule
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import eu.pkgsoftware.babybuddywidgets.Constants.FeedingMethodEnum
+import eu.pkgsoftware.babybuddywidgets.Constants.FeedingTypeEnum
+import eu.pkgsoftware.babybuddywidgets.history.TimelineAdapter
+import eu.pkgsoftware.babybuddywidgets.history.TimelineRow
+import eu.pkgsoftware.babybuddywidgets.logic.ContinuousListItem
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.ChangeEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.FeedingEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.NoteEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.PumpingEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.SleepEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.TimeEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.TummyTimeEntry
+import org.junit.Assert
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.Collections
+import java.util.Date
+import java.util.IdentityHashMap
+
+/**
+ * Scrolls a timeline with 5000 loaded entries from top to bottom and reports the frame times.
+ * Run with: ./gradlew connectedAndroidTest; the results are logged under the tag TimelineJank.
+ */
+@RunWith(AndroidJUnit4::class)
+class TimelineScrollJankTest {
+    companion object {
+        const val ENTRY_COUNT = 5000
+        const val FRAME_BUDGET_NANOS = 16_666_667L
+    }
+
+    @get:Rule var activityRule = ActivityScenarioRule(MainActivity::class.java)
+
+    private fun entry(i: Int): TimeEntry {
+        val start = Date(1700000000000L - i * 1800000L)
+        val end = Date(start.time + 900000L)
+        return when (i % 6) {
+            0 -> FeedingEntry(i, 1, start, end, "notes $i", FeedingTypeEnum.BREAST_MILK, FeedingMethodEnum.LEFT_BREAST, null)
+            1 -> SleepEntry(i, 1, start, end, "notes $i")
+            2 -> TummyTimeEntry(i, 1, start, end, "milestone $i")
+            3 -> ChangeEntry(i, 1, start, "notes $i", true, i % 4 == 0, "", null)
+            4 -> NoteEntry(i, 1, start, "note $i")
+            else -> PumpingEntry(i, 1, start, end, "notes $i", 10.0, null)
+        }
+    }
+
+    @Test
+    fun scrollThroughLargeTimeline() {
+        val frameTimes = mutableListOf<Long>()
+        val frameListener = Window.OnFrameMetricsAvailableListener { _, metrics, _ ->
+            synchronized(frameTimes) {
+                frameTimes.add(metrics.getMetric(FrameMetrics.TOTAL_DURATION))
+            }
+        }
+        lateinit var recyclerView: RecyclerView
+        val rowViews = Collections.newSetFromMap(IdentityHashMap<View, Boolean>())
+
+        activityRule.scenario.onActivity { activity ->
+            val navHost = activity.supportFragmentManager.findFragmentById(
+                R.id.nav_host_fragment_content_main
+            ) as NavHostFragment
+            val fragment = navHost.childFragmentManager.fragments.first { it is BaseFragment } as BaseFragment
+
+            val adapter = TimelineAdapter(fragment)
+            recyclerView = RecyclerView(activity)
+            recyclerView.addOnChildAttachStateChangeListener(
+                object : RecyclerView.OnChildAttachStateChangeListener {
+                    override fun onChildViewAttachedToWindow(view: View) {
+                        rowViews.add(view)
+                    }
+
+                    override fun onChildViewDetachedFromWindow(view: View) {
+                    }
+                }
+            )
+            recyclerView.layoutManager = LinearLayoutManager(activity)
+            recyclerView.adapter = adapter
+            recyclerView.setBackgroundColor(0xff000000.toInt())
+            activity.addContentView(
+                recyclerView,
+                ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT)
+            )
+            adapter.submitList((0 until ENTRY_COUNT).map {
+                val e = entry(it)
+                TimelineRow(ContinuousListItem(-e.start.time, e.appType, e.id.toString()), e)
+            })
+        }
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+
+        activityRule.scenario.onActivity { activity ->
+            activity.window.addOnFrameMetricsAvailableListener(frameListener, Handler(Looper.getMainLooper()))
+        }
+        var atEnd = false
+        var steps = 0
+        while (!atEnd && (steps++ < ENTRY_COUNT)) {
+            activityRule.scenario.onActivity {
+                recyclerView.smoothScrollBy(0, recyclerView.height * 2)
+            }
+            InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+            Thread.sleep(250)
+            activityRule.scenario.onActivity {
+                atEnd = !recyclerView.canScrollVertically(1)
+            }
+        }
+        activityRule.scenario.onActivity { activity ->
+            activity.window.removeOnFrameMetricsAvailableListener(frameListener)
+        }
+
+        val frames = synchronized(frameTimes) { frameTimes.toList() }
+        val janky = frames.count { it > FRAME_BUDGET_NANOS }
+        val sorted = frames.sorted()
+        Log.i(
+            "TimelineJank",
+            "$ENTRY_COUNT entries: ${frames.size} frames, $janky janky " +
+                "(${if (frames.isEmpty()) 0 else janky * 100 / frames.size}%), " +
+                "p50=${sorted.getOrElse(sorted.size / 2) { 0 } / 1000}us " +
+                "p95=${sorted.getOrElse(sorted.size * 95 / 100) { 0 } / 1000}us, " +
+                "${rowViews.size} row views created"
+        )
+
+        // Views are recycled: the number of views depends on the screen size, not on the history
+        Assert.assertTrue(atEnd)
+        Assert.assertTrue(frames.isNotEmpty())
+        Assert.assertTrue("${rowViews.size} row views created", rowViews.size < 100)
+    }
+}
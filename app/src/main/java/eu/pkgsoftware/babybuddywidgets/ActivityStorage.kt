@@ -4,14 +4,14 @@ import android.content.Context
 import android.content.Intent
 import android.database.sqlite.SQLiteDatabase
 import android.database.sqlite.SQLiteOpenHelper
-import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
 import eu.pkgsoftware.babybuddywidgets.debugging.GlobalDebugObject
 import java.io.IOException
 
 fun addJsonFieldValue(value: String, key: String, newValue: String): String {
-    val map = jacksonObjectMapper().readValue(value, Map::class.java).toMutableMap()
+    val mapper = SharedObjectMapper.mapper
+    val map = mapper.readValue(value, Map::class.java).toMutableMap()
     map[key] = newValue
-    return jacksonObjectMapper().writeValueAsString(map)
+    return mapper.writeValueAsString(map)
 }
 
 class ActivityDatabaseV1(context: Context) : SQLiteOpenHelper(
@@ -43,37 +43,111 @@ class ActivityDatabaseV2(context: Context) : SQLiteOpenHelper(
         }
 
         if (oldVersion == 1) {
-            val valuesToUpdate = mutableMapOf<Int, String>()
-            db.rawQuery("select child, value from child_kv where key_name = 'diaper'", arrayOf()).use { cursor ->
-                while (cursor.moveToNext()) {
-                    try {
-                        val child = cursor.getInt(0)
-                        var value = cursor.getString(1)
-                        value = addJsonFieldValue(value, "extra_options_open", "false")
-                        value = addJsonFieldValue(value, "color", "null")
-                        value = addJsonFieldValue(value, "amount", "null")
-                        valuesToUpdate[child] = value
-                    } catch (e: Exception) {
-                        GlobalDebugObject.log("Failed to update diaper value for child ${cursor.getInt(0)}")
-                        // Ignore, better ignore than crash
-                    }
-                }
-                cursor.close()
-            }
-            for ((child, value) in valuesToUpdate) {
-                db.execSQL(
-                    "update child_kv set value = ? where child = ? and key_name = 'diaper'",
-                    arrayOf(value, child.toString())
-                )
+            migrateStoreV1ToV2(db)
+        }
+    }
+}
+
+fun migrateStoreV1ToV2(db: SQLiteDatabase) {
+    val valuesToUpdate = mutableMapOf<Int, String>()
+    db.rawQuery("select child, value from child_kv where key_name = 'diaper'", arrayOf()).use { cursor ->
+        while (cursor.moveToNext()) {
+            try {
+                val child = cursor.getInt(0)
+                var value = cursor.getString(1)
+                value = addJsonFieldValue(value, "extra_options_open", "false")
+                value = addJsonFieldValue(value, "color", "null")
+                value = addJsonFieldValue(value, "amount", "null")
+                valuesToUpdate[child] = value
+            } catch (e: Exception) {
+                GlobalDebugObject.log("Failed to update diaper value for child ${cursor.getInt(0)}")
+                // Ignore, better ignore than crash
             }
         }
+        cursor.close()
+    }
+    for ((child, value) in valuesToUpdate) {
+        db.execSQL(
+            "update child_kv set value = ? where child = ? and key_name = 'diaper'",
+            arrayOf(value, child.toString())
+        )
+    }
+}
+
+fun createTimelineCacheTables(db: SQLiteDatabase) {
+    db.execSQL(
+        "create table timeline_cache (child INTEGER, type text, id INTEGER, start INTEGER, " +
+            "last_used INTEGER, value text, primary key (child, type, id))"
+    )
+    db.execSQL("create index timeline_cache_start on timeline_cache (child, type, start)")
+}
+
+class ActivityDatabaseV3(context: Context) : SQLiteOpenHelper(
+    context, "store", null, 3
+) {
+    override fun onCreate(db: SQLiteDatabase) {
+        db.execSQL("create table global_kv (key_name text primary key, value text)")
+        db.execSQL("create table login_kv (key_name text primary key, value text)")
+        db.execSQL("create table child_kv (child INTEGER, key_name text, value text, primary key (child, key_name))")
+        createTimelineCacheTables(db)
+    }
+
+    override fun onUpgrade(db: SQLiteDatabase?, oldVersion: Int, newVersion: Int) {
+        if (db == null) {
+            return
+        }
+
+        if (oldVersion <= 1) {
+            migrateStoreV1ToV2(db)
+        }
+        if (oldVersion <= 2) {
+            createTimelineCacheTables(db)
+        }
+    }
+}
+
+fun createOutboundQueueTables(db: SQLiteDatabase) {
+    db.execSQL(
+        "create table outbound_ops (seq INTEGER primary key autoincrement, child INTEGER, " +
+            "kind text, type text, idempotency_key text unique, payload text, created INTEGER, " +
+            "attempts INTEGER, last_error text)"
+    )
+}
+
+class ActivityDatabaseV4(context: Context) : SQLiteOpenHelper(
+    context, "store", null, 4
+) {
+    override fun onCreate(db: SQLiteDatabase) {
+        db.execSQL("create table global_kv (key_name text primary key, value text)")
+        db.execSQL("create table login_kv (key_name text primary key, value text)")
+        db.execSQL("create table child_kv (child INTEGER, key_name text, value text, primary key (child, key_name))")
+        createTimelineCacheTables(db)
+        createOutboundQueueTables(db)
+    }
+
+    override fun onUpgrade(db: SQLiteDatabase?, oldVersion: Int, newVersion: Int) {
+        if (db == null) {
+            return
+        }
+
+        if (oldVersion <= 1) {
+            migrateStoreV1ToV2(db)
+        }
+        if (oldVersion <= 2) {
+            createTimelineCacheTables(db)
+        }
+        if (oldVersion <= 3) {
+            createOutboundQueueTables(db)
+        }
     }
 }
 
 class ActivityStore(context: Context) {
-    val openHelper = ActivityDatabaseV2(context)
+    val openHelper = ActivityDatabaseV4(context)
     val database = openHelper.writableDatabase
-    val jackOM = jacksonObjectMapper()
+    val jackOM = SharedObjectMapper.mapper
+    val timelineCache = TimelineCache(TimelineCacheTable(this))
+    val outboundQueue = OutboundQueue(this)
 
     inline fun <reified K> genSet(table: String, value: K?, selectors: Map<String, String>) {
         if (value == null) {
@@ -142,5 +216,7 @@ class ActivityStore(context: Context) {
         database.delete("global_kv", "1", arrayOf())
         database.delete("login_kv", "1", arrayOf())
         database.delete("child_kv", "1", arrayOf())
+        database.delete("timeline_cache", "1", arrayOf())
+        database.delete("outbound_ops", "1", arrayOf())
     }
 }
\ No newline at end of file
@@ -11,19 +11,22 @@ import java.util.List;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.ConcatAdapter;
+import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import eu.pkgsoftware.babybuddywidgets.activitycomponents.TimerControl;
 import eu.pkgsoftware.babybuddywidgets.timers.FragmentCallbacks;
 import eu.pkgsoftware.babybuddywidgets.timers.LoggingButtonController;
 import eu.pkgsoftware.babybuddywidgets.databinding.BabyManagerBinding;
 import eu.pkgsoftware.babybuddywidgets.history.ChildEventHistoryLoader;
+import eu.pkgsoftware.babybuddywidgets.history.TimelineAdapter;
 import eu.pkgsoftware.babybuddywidgets.networking.BabyBuddyClient;
 import eu.pkgsoftware.babybuddywidgets.networking.ChildrenStateTracker;
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.TimeEntry;
 import eu.pkgsoftware.babybuddywidgets.timers.TimerControlInterface;
 import eu.pkgsoftware.babybuddywidgets.timers.TimersUpdatedCallback;
 import eu.pkgsoftware.babybuddywidgets.timers.TranslatedException;
+import eu.pkgsoftware.babybuddywidgets.utils.FixedViewAdapter;
 import eu.pkgsoftware.babybuddywidgets.utils.Promise;
 
 public class BabyLayoutHolder extends RecyclerView.ViewHolder implements TimerControlInterface {
@@ -34,6 +37,7 @@ public class BabyLayoutHolder extends RecyclerView.ViewHolder implements TimerCo
 
     private BabyBuddyClient.Child child = null;
 
+    private final TimelineAdapter timelineAdapter;
     private ChildEventHistoryLoader childHistoryLoader = null;
 
     private ChildrenStateTracker.ChildObserver childObserver = null;
@@ -41,8 +45,6 @@ public class BabyLayoutHolder extends RecyclerView.ViewHolder implements TimerCo
     private BabyBuddyClient.Timer[] cachedTimers = null;
     private List<TimersUpdatedCallback> updateTimersCallbacks = new ArrayList<>(10);
 
-    private int pendingTimerModificationCalls = 0;
-
     private LoggingButtonController loggingButtonController = null;
 
     public BabyLayoutHolder(BaseFragment fragment, BabyManagerBinding bmb) {
@@ -52,9 +54,19 @@ public class BabyLayoutHolder extends RecyclerView.ViewHolder implements TimerCo
         baseFragment = fragment;
         client = fragment.getMainActivity().getClient();
 
-        binding.mainScrollView.setOnScrollChangeListener((v, scrollX, scrollY, oldScrollX, oldScrollY) -> {
-            if (childHistoryLoader != null) {
-                childHistoryLoader.updateTop();
+        timelineAdapter = new TimelineAdapter(fragment);
+        binding.timelineView.setLayoutManager(new LinearLayoutManager(fragment.getContext()));
+        binding.timelineView.setAdapter(new ConcatAdapter(
+            new FixedViewAdapter(binding.timelineHeader),
+            timelineAdapter,
+            new FixedViewAdapter(binding.timelineProgressSpinner)
+        ));
+        binding.timelineView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (childHistoryLoader != null) {
+                    childHistoryLoader.updateTop();
+                }
             }
         });
     }
@@ -63,19 +75,6 @@ public class BabyLayoutHolder extends RecyclerView.ViewHolder implements TimerCo
         return child;
     }
 
-    private void requeueImmediateTimerListRefresh() {
-        client.listTimers(child.id, new BabyBuddyClient.RequestCallback<BabyBuddyClient.Timer[]>() {
-            @Override
-            public void error(@NonNull Exception error) {
-            }
-
-            @Override
-            public void response(BabyBuddyClient.Timer[] response) {
-                updateTimerList(response);
-            }
-        });
-    }
-
     private void resetChildHistoryLoader() {
         if (childHistoryLoader != null) {
             childHistoryLoader.close();
@@ -99,9 +98,9 @@ public class BabyLayoutHolder extends RecyclerView.ViewHolder implements TimerCo
 
             childHistoryLoader = new ChildEventHistoryLoader(
                 baseFragment,
-                binding.innerTimeline,
+                binding.timelineView,
+                timelineAdapter,
                 child.id,
-                new VisibilityCheck(binding.mainScrollView),
                 binding.timelineProgressSpinner,
                 (entryType, exception) -> {
                     String tActivity = baseFragment.translateActivityName(entryType);
@@ -152,12 +151,8 @@ public class BabyLayoutHolder extends RecyclerView.ViewHolder implements TimerCo
     }
 
     public void updateTimerList(BabyBuddyClient.Timer[] timers) {
-        if (pendingTimerModificationCalls > 0) {
-            // Buffer timer-list updates while a timer-modifying operation is running
-            // (prevents confusing UI updates)
-            return;
-        }
-
+        // Timer changes that the server does not know about yet are kept by the timer adapter,
+        // so polls can be passed on while they are running
         if (child == null) {
             cachedTimers = new BabyBuddyClient.Timer[0];
             callTimerUpdateCallback();
@@ -205,46 +200,19 @@ public class BabyLayoutHolder extends RecyclerView.ViewHolder implements TimerCo
         clear();
     }
 
-    private class UpdateBufferingPromise<A, B> implements Promise<A, B> {
-        private Promise<A, B> promise;
-
-        public UpdateBufferingPromise(Promise<A, B> promise) {
-            this.promise = promise;
-            pendingTimerModificationCalls++;
-        }
-
-        @Override
-        public void succeeded(A a) {
-            pendingTimerModificationCalls--;
-            promise.succeeded(a);
-        }
-
-        @Override
-        public void failed(B b) {
-            pendingTimerModificationCalls--;
-            promise.failed(b);
-        }
-    }
-
     @Override
     public void createNewTimer(@NonNull BabyBuddyClient.Timer timer, @NonNull Promise<BabyBuddyClient.Timer, TranslatedException> cb) {
-        baseFragment.getMainActivity().getChildTimerControl(child).createNewTimer(
-            timer, new UpdateBufferingPromise<>(cb)
-        );
+        baseFragment.getMainActivity().getChildTimerControl(child).createNewTimer(timer, cb);
     }
 
     @Override
     public void startTimer(@NotNull BabyBuddyClient.Timer timer, @NonNull Promise<BabyBuddyClient.Timer, TranslatedException> cb) {
-        baseFragment.getMainActivity().getChildTimerControl(child).startTimer(
-            timer, new UpdateBufferingPromise<>(cb)
-        );
+        baseFragment.getMainActivity().getChildTimerControl(child).startTimer(timer, cb);
     }
 
     @Override
     public void stopTimer(@NotNull BabyBuddyClient.Timer timer, @NonNull Promise<Object, TranslatedException> cb) {
-        baseFragment.getMainActivity().getChildTimerControl(child).stopTimer(
-            timer, new UpdateBufferingPromise<>(cb)
-        );
+        baseFragment.getMainActivity().getChildTimerControl(child).stopTimer(timer, cb);
     }
 
     @Override
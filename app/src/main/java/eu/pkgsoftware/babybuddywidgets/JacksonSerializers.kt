@@ -3,16 +3,29 @@ package eu.pkgsoftware.babybuddywidgets
 import com.fasterxml.jackson.core.JsonGenerator
 import com.fasterxml.jackson.core.JsonParser
 import com.fasterxml.jackson.databind.DeserializationContext
+import com.fasterxml.jackson.databind.ObjectMapper
 import com.fasterxml.jackson.databind.SerializerProvider
 import com.fasterxml.jackson.databind.deser.std.StdDeserializer
 import com.fasterxml.jackson.databind.ser.std.StdSerializer
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import eu.pkgsoftware.babybuddywidgets.debugging.GlobalDebugObject
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.DATE_ONLY_FORMAT_STRING
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.DATE_TIME_FORMAT_STRING
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.formatDate
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.ChangeEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.Child
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.FeedingEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.NoteEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.PaginatedEntries
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.Profile
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.PumpingEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.SleepEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.TummyTimeEntry
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.parseNullOrDate
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.serverTimeToClientTime
 import java.io.IOException
 import java.util.Date
+import java.util.concurrent.atomic.AtomicBoolean
 
 class DateTimeDeserializer : StdDeserializer<Date>(Date::class.java) {
     override fun deserialize(p: JsonParser, ctxt: DeserializationContext?): Date {
@@ -54,4 +67,63 @@ class DateTimeSerializer : StdSerializer<Date>(Date::class.java) {
     override fun serialize(value: Date, gen: JsonGenerator, provider: SerializerProvider) {
         gen.writeString(formatDate(value, DATE_TIME_FORMAT_STRING))
     }
-}
\ No newline at end of file
+}
+
+class DateOnlySerializer : StdSerializer<Date>(Date::class.java) {
+    override fun serialize(value: Date, gen: JsonGenerator, provider: SerializerProvider) {
+        gen.writeString(formatDate(value, DATE_ONLY_FORMAT_STRING))
+    }
+}
+
+/**
+ * The one ObjectMapper of the app. Creating mappers is cheap, but every new mapper introspects
+ * the Kotlin model classes again (through kotlin-reflect), which is slow on Android. The date
+ * (de)serializers above are bound per field through annotations on the models and are cached
+ * by this mapper after first use.
+ */
+object SharedObjectMapper {
+    @JvmStatic
+    val mapper: ObjectMapper by lazy { jacksonObjectMapper() }
+
+    private val HOT_CLASSES = listOf(
+        SleepEntry::class.java,
+        FeedingEntry::class.java,
+        TummyTimeEntry::class.java,
+        PumpingEntry::class.java,
+        ChangeEntry::class.java,
+        NoteEntry::class.java,
+        Child::class.java,
+    )
+
+    private val warmedUp = AtomicBoolean(false)
+
+    /**
+     * Resolves the (de)serializers of the frequently used model classes on a background
+     * thread, so that the first timeline or timer request does not pay for it.
+     */
+    @JvmStatic
+    fun warmUp() {
+        if (!warmedUp.compareAndSet(false, true)) {
+            return
+        }
+        val thread = Thread({
+            val start = System.currentTimeMillis()
+            try {
+                val m = mapper
+                val typeFactory = m.typeFactory
+                for (cls in HOT_CLASSES) {
+                    m.readerFor(cls)
+                    m.writerFor(cls)
+                    m.readerFor(typeFactory.constructParametricType(PaginatedEntries::class.java, cls))
+                }
+                m.readerFor(Profile::class.java)
+                GlobalDebugObject.log("SharedObjectMapper warm-up took ${System.currentTimeMillis() - start} ms")
+            } catch (e: Exception) {
+                GlobalDebugObject.log("SharedObjectMapper warm-up failed: $e")
+            }
+        }, "ObjectMapperWarmUp")
+        thread.isDaemon = true
+        thread.priority = Thread.MIN_PRIORITY
+        thread.start()
+    }
+}
@@ -10,6 +10,8 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 
+import com.squareup.phrase.Phrase;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
@@ -27,9 +29,11 @@ import eu.pkgsoftware.babybuddywidgets.login.LoggedInMenu;
 import eu.pkgsoftware.babybuddywidgets.networking.BabyBuddyClient;
 import eu.pkgsoftware.babybuddywidgets.networking.ChildrenStateTracker;
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.ConnectingDialogInterface;
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.OutboundQueueListener;
 import eu.pkgsoftware.babybuddywidgets.tutorial.Trackable;
 import eu.pkgsoftware.babybuddywidgets.tutorial.TutorialEntry;
 import eu.pkgsoftware.babybuddywidgets.tutorial.TutorialManagement;
+import eu.pkgsoftware.babybuddywidgets.utils.SecondTicker;
 
 public class LoggedInFragment extends BaseFragment {
     public static int childIndexBySlug(BabyBuddyClient.Child[] children, String slug) {
@@ -60,6 +64,9 @@ public class LoggedInFragment extends BaseFragment {
 
     private ConnectingDialogInterface disconnectInterface = null;
 
+    private final OutboundQueueListener outboundQueueListener = stats -> updateOutboundStatus();
+    private SecondTicker.Subscription outboundStatusTicker = null;
+
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -161,6 +168,10 @@ public class LoggedInFragment extends BaseFragment {
             }
         );
 
+        getMainActivity().getOutbound().getQueueListeners().add(outboundQueueListener);
+        outboundStatusTicker = SecondTicker.INSTANCE.subscribe(binding.getRoot(), this::updateOutboundStatus);
+        updateOutboundStatus();
+
         UpdateNotifications.Companion.showUpdateNotice(this);
     }
 
@@ -173,6 +184,11 @@ public class LoggedInFragment extends BaseFragment {
 
         disconnectInterface.hideConnecting();
 
+        getMainActivity().getOutbound().getQueueListeners().remove(outboundQueueListener);
+        outboundStatusTicker.cancel();
+        outboundStatusTicker = null;
+        getMainActivity().setSubtitle(null);
+
         progressDialog.hide();
 
         stateTracker.close();
@@ -205,6 +221,22 @@ public class LoggedInFragment extends BaseFragment {
         return child;
     }
 
+    /** Shows how many changes are waiting to be sent and for how long in the action bar */
+    private void updateOutboundStatus() {
+        OutboundQueueStats stats = getMainActivity().getOutbound().getStats();
+        Long age = stats.oldestAgeMillis(System.currentTimeMillis());
+        if ((stats.getDepth() == 0) || (age == null)) {
+            getMainActivity().setSubtitle(null);
+            return;
+        }
+        getMainActivity().setSubtitle(
+            Phrase.from(requireContext(), R.string.outbound_queue_status)
+                .put("count", stats.getDepth())
+                .put("minutes", (int) (age / 60000))
+                .format().toString()
+        );
+    }
+
     private void updateTitle() {
         BabyBuddyClient.Child child = selectedChild();
         if (child == null) {
@@ -1,8 +1,9 @@
 package eu.pkgsoftware.babybuddywidgets
 
 import android.app.ProgressDialog
+import android.net.ConnectivityManager
+import android.net.Network
 import android.os.Bundle
-import android.util.Log
 import android.view.InputEvent
 import android.view.KeyEvent
 import android.view.MotionEvent
@@ -19,11 +20,13 @@ import eu.pkgsoftware.babybuddywidgets.databinding.ActivityMainBinding
 import eu.pkgsoftware.babybuddywidgets.networking.BabyBuddyClient
 import eu.pkgsoftware.babybuddywidgets.networking.BabyBuddyClient.Child
 import eu.pkgsoftware.babybuddywidgets.networking.BabyBuddyClient.GenericSubsetResponseHeader
+import eu.pkgsoftware.babybuddywidgets.networking.RequestCodeFailure
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.ClientOutboundServer
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.OutboundReplayer
 import eu.pkgsoftware.babybuddywidgets.tutorial.TutorialAccess
 import eu.pkgsoftware.babybuddywidgets.tutorial.TutorialManagement
 import eu.pkgsoftware.babybuddywidgets.utils.AsyncClientRequest
 import kotlinx.coroutines.*
-import org.json.JSONArray
 import java.util.*
 import kotlin.coroutines.resume
 import kotlin.coroutines.suspendCoroutine
@@ -124,8 +127,69 @@ class MainActivity : AppCompatActivity() {
             }
         }
 
+    internal var internalOutbound: OutboundReplayer? = null
+    val outbound: OutboundReplayer
+        get() {
+            internalOutbound.let {
+                if (it == null) {
+                    val newOutbound = OutboundReplayer(
+                        storage.outboundQueue, ClientOutboundServer { client }, scope
+                    )
+                    newOutbound.opListeners.add { _, error ->
+                        if (error != null) {
+                            val message = if (error is RequestCodeFailure) {
+                                error.jsonErrorMessages().joinToString(", ")
+                            } else {
+                                error.message ?: error.javaClass.simpleName
+                            }
+                            binding.globalErrorBubble.flashMessage(
+                                Phrase.from(applicationContext, R.string.outbound_op_rejected)
+                                    .put("server_message", message)
+                                    .format().toString()
+                            )
+                        }
+                    }
+                    internalOutbound = newOutbound
+                    return newOutbound
+                } else {
+                    return it
+                }
+            }
+        }
+
+    private val networkCallback = object : ConnectivityManager.NetworkCallback() {
+        override fun onAvailable(network: Network) {
+            // Called on a binder thread, replayNow is thread safe
+            internalOutbound?.replayNow()
+        }
+    }
+    private var networkCallbackRegistered = false
+
+    /**
+     * Runs the outbound replay while the activity is visible. Paired with stopOutboundReplay in
+     * onStart / onStop, so the loop is restarted every time the app comes back.
+     */
+    private fun startOutboundReplay() {
+        outbound.start()
+        if (!networkCallbackRegistered) {
+            getSystemService(ConnectivityManager::class.java)
+                .registerDefaultNetworkCallback(networkCallback)
+            networkCallbackRegistered = true
+        }
+    }
+
+    private fun stopOutboundReplay() {
+        if (networkCallbackRegistered) {
+            getSystemService(ConnectivityManager::class.java)
+                .unregisterNetworkCallback(networkCallback)
+            networkCallbackRegistered = false
+        }
+        internalOutbound?.stop()
+    }
+
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
+        SharedObjectMapper.warmUp()
 
         binding = ActivityMainBinding.inflate(
             layoutInflater
@@ -143,6 +207,8 @@ class MainActivity : AppCompatActivity() {
 
         applyLightDarkMode()
 
+        startOutboundReplay()
+
         binding?.root?.let {
             val ncv = it.findViewById<FragmentContainerView>(R.id.nav_host_fragment_content_main)
             Navigation.findNavController(ncv)
@@ -162,11 +228,21 @@ class MainActivity : AppCompatActivity() {
         supportActionBar?.title = title
     }
 
+    fun setSubtitle(subtitle: String?) {
+        supportActionBar?.subtitle = subtitle
+    }
+
     fun enableBackNavigationButton(b: Boolean) {
         supportActionBar?.setDisplayHomeAsUpEnabled(b)
         supportActionBar?.setDisplayShowHomeEnabled(b)
     }
 
+    override fun onStop() {
+        super.onStop()
+
+        stopOutboundReplay()
+    }
+
     override fun onSupportNavigateUp(): Boolean {
         binding?.root?.let {
             val ncv = it.findViewById<FragmentContainerView>(R.id.nav_host_fragment_content_main)
@@ -206,7 +282,7 @@ class MainActivity : AppCompatActivity() {
         }
 
         suspend fun listConflicts(): List<BabyBuddyClient.TimeEntry> {
-            val jsonResponse = AsyncClientRequest.call<GenericSubsetResponseHeader<JSONArray>> {
+            val response = AsyncClientRequest.call<GenericSubsetResponseHeader<Array<BabyBuddyClient.TimeEntry>>> {
 
                 client.listGeneric(
                     storeInterface.name(),
@@ -219,18 +295,7 @@ class MainActivity : AppCompatActivity() {
                     it
                 )
             }
-            val result = ArrayList<BabyBuddyClient.TimeEntry>()
-            for (i in 0..jsonResponse.payload.length() - 1) {
-                try {
-                    val entry = BabyBuddyClient.TimeEntry.fromJsonObject(
-                        jsonResponse.payload.getJSONObject(i), storeInterface.name()
-                    )
-                    result.add(entry)
-                } catch (e: Exception) {
-                    Log.e("MainActivity", "Received unparsable json object")
-                }
-            }
-            return result
+            return response.payload.toList()
         }
 
         suspend fun askForResolutionMethod(): ConflictResolutionOptions {
@@ -364,6 +429,7 @@ class MainActivity : AppCompatActivity() {
                     TimerControl(this, childId),
                     resources,
                     credStore,
+                    outbound,
                 )
             )
         }
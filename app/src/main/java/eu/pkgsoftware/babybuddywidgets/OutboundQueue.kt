@@ -0,0 +1,155 @@
+package eu.pkgsoftware.babybuddywidgets
+
+import android.database.Cursor
+import java.util.UUID
+
+enum class OutboundOpKind {
+    CREATE_ENTRY, DELETE_ENTRY, START_TIMER, STOP_TIMER
+}
+
+/**
+ * A write that was done locally and still has to be sent to the server. type is the activity
+ * name of the entry or timer, payload depends on the kind. idempotencyKey identifies the
+ * operation across restarts, attempts counts how often it was sent without a confirmed result.
+ */
+class OutboundOp(
+    val seq: Long,
+    val childId: Int,
+    val kind: OutboundOpKind,
+    val type: String,
+    val idempotencyKey: String,
+    val payload: String,
+    val created: Long,
+    val attempts: Int,
+)
+
+data class OutboundQueueStats(val depth: Int, val oldestCreated: Long?) {
+    fun oldestAgeMillis(now: Long): Long? {
+        return oldestCreated?.let { now - it }
+    }
+}
+
+/**
+ * Log of writes that were not sent to the server yet. Operations are returned in the order they
+ * were added, by seq, so they can be replayed in that order.
+ */
+interface OutboundStorage {
+    fun enqueue(childId: Int, kind: OutboundOpKind, type: String, payload: String): OutboundOp
+
+    /** The oldest count operations, in replay order */
+    fun head(count: Int): List<OutboundOp>
+
+    fun pending(childId: Int): List<OutboundOp>
+
+    fun contains(idempotencyKey: String): Boolean
+
+    /** Records that op is about to be sent, so a later replay knows it may have reached the server */
+    fun markAttempt(op: OutboundOp)
+
+    fun markFailed(op: OutboundOp, error: String)
+
+    fun remove(op: OutboundOp)
+
+    /** Removes the not yet sent creation of an entry, returns false if there is none */
+    fun removeCreate(childId: Int, type: String, payload: String): Boolean
+
+    fun stats(): OutboundQueueStats
+}
+
+/** Persistent OutboundStorage in the outbound_ops table */
+class OutboundQueue(private val store: ActivityStore) : OutboundStorage {
+    companion object {
+        private const val COLUMNS =
+            "seq, child, kind, type, idempotency_key, payload, created, attempts"
+    }
+
+    private val database get() = store.database
+
+    private fun readOp(cursor: Cursor): OutboundOp {
+        return OutboundOp(
+            cursor.getLong(0),
+            cursor.getInt(1),
+            OutboundOpKind.valueOf(cursor.getString(2)),
+            cursor.getString(3),
+            cursor.getString(4),
+            cursor.getString(5),
+            cursor.getLong(6),
+            cursor.getInt(7),
+        )
+    }
+
+    private fun query(where: String, args: Array<String>, limit: Int? = null): List<OutboundOp> {
+        val result = mutableListOf<OutboundOp>()
+        val limitClause = limit?.let { " limit $it" } ?: ""
+        database.rawQuery(
+            "select $COLUMNS from outbound_ops where $where order by seq asc$limitClause", args
+        ).use { cursor ->
+            while (cursor.moveToNext()) {
+                result.add(readOp(cursor))
+            }
+        }
+        return result
+    }
+
+    override fun enqueue(childId: Int, kind: OutboundOpKind, type: String, payload: String): OutboundOp {
+        val key = UUID.randomUUID().toString()
+        val now = System.currentTimeMillis()
+        database.execSQL(
+            "insert into outbound_ops (child, kind, type, idempotency_key, payload, created, attempts) " +
+                "values (?, ?, ?, ?, ?, ?, 0)",
+            arrayOf(childId, kind.name, type, key, payload, now)
+        )
+        return query("idempotency_key = ?", arrayOf(key)).first()
+    }
+
+    override fun head(count: Int): List<OutboundOp> {
+        return query("1", arrayOf(), count)
+    }
+
+    override fun pending(childId: Int): List<OutboundOp> {
+        return query("child = ?", arrayOf(childId.toString()))
+    }
+
+    override fun contains(idempotencyKey: String): Boolean {
+        database.rawQuery(
+            "select 1 from outbound_ops where idempotency_key = ?", arrayOf(idempotencyKey)
+        ).use { cursor ->
+            return cursor.moveToNext()
+        }
+    }
+
+    override fun markAttempt(op: OutboundOp) {
+        database.execSQL(
+            "update outbound_ops set attempts = attempts + 1 where seq = ?", arrayOf(op.seq)
+        )
+    }
+
+    override fun markFailed(op: OutboundOp, error: String) {
+        database.execSQL(
+            "update outbound_ops set last_error = ? where seq = ?", arrayOf(error, op.seq)
+        )
+    }
+
+    override fun remove(op: OutboundOp) {
+        database.delete("outbound_ops", "seq = ?", arrayOf(op.seq.toString()))
+    }
+
+    override fun removeCreate(childId: Int, type: String, payload: String): Boolean {
+        return database.delete(
+            "outbound_ops",
+            "child = ? and kind = ? and type = ? and payload = ? and attempts = 0",
+            arrayOf(childId.toString(), OutboundOpKind.CREATE_ENTRY.name, type, payload)
+        ) > 0
+    }
+
+    override fun stats(): OutboundQueueStats {
+        database.rawQuery("select count(*), min(created) from outbound_ops", arrayOf()).use { cursor ->
+            if (!cursor.moveToNext()) {
+                return OutboundQueueStats(0, null)
+            }
+            return OutboundQueueStats(
+                cursor.getInt(0), if (cursor.isNull(1)) null else cursor.getLong(1)
+            )
+        }
+    }
+}
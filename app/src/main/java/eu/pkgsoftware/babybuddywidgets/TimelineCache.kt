@@ -0,0 +1,260 @@
+package eu.pkgsoftware.babybuddywidgets
+
+import eu.pkgsoftware.babybuddywidgets.debugging.GlobalDebugObject
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.TimeEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.classActivityName
+import java.io.IOException
+import kotlin.reflect.KClass
+
+/** A cached entry, value is the entry encoded by TimelineCache.encodeEntry */
+class TimelineCacheRow(val child: Int, val type: String, val id: Int, val start: Long, val value: String)
+
+/**
+ * Rows of the TimelineCache, keyed by (child, type, id). Every row remembers when the entries of
+ * its child were last used, so the least recently shown children can be dropped first.
+ */
+interface TimelineCacheStorage {
+    /** The values of the newest limit rows of a child and type, newest first */
+    fun newest(child: Int, type: String, limit: Int): List<String>
+
+    fun totalCount(child: Int, type: String): Int?
+
+    fun setTotalCount(child: Int, type: String, count: Int)
+
+    /** Marks the rows of a child as used now */
+    fun touch(child: Int)
+
+    /**
+     * Deletes the rows of a child and type that start at or after minStart, or all of them if
+     * minStart is null, except those with an id in keepIds
+     */
+    fun deleteExcept(child: Int, type: String, minStart: Long?, keepIds: Collection<Int>)
+
+    /** Inserts or replaces rows, marking them as used now */
+    fun insert(rows: List<TimelineCacheRow>)
+
+    fun rowCount(): Int
+
+    /** The children that have rows, least recently used first */
+    fun childrenByLastUse(): List<Int>
+
+    /** Deletes the count rows with the oldest start, of any child */
+    fun deleteOldest(count: Int)
+
+    /** Deletes the rows and total counts of a child */
+    fun clearChild(child: Int)
+
+    fun transaction(block: () -> Unit)
+}
+
+/** Persistent TimelineCacheStorage in the timeline_cache table, total counts are kept in child_kv */
+class TimelineCacheTable(private val store: ActivityStore) : TimelineCacheStorage {
+    private val database get() = store.database
+
+    private fun countKey(type: String): String {
+        return "timeline_count_$type"
+    }
+
+    override fun newest(child: Int, type: String, limit: Int): List<String> {
+        val result = mutableListOf<String>()
+        database.rawQuery(
+            "select value from timeline_cache where child = ? and type = ? order by start desc limit ?",
+            arrayOf(child.toString(), type, limit.toString())
+        ).use { cursor ->
+            while (cursor.moveToNext()) {
+                result.add(cursor.getString(0))
+            }
+        }
+        return result
+    }
+
+    override fun totalCount(child: Int, type: String): Int? {
+        return store.child<Int>(child, countKey(type))
+    }
+
+    override fun setTotalCount(child: Int, type: String, count: Int) {
+        store.child(child, countKey(type), count)
+    }
+
+    override fun touch(child: Int) {
+        database.execSQL(
+            "update timeline_cache set last_used = ? where child = ?",
+            arrayOf(System.currentTimeMillis(), child)
+        )
+    }
+
+    override fun deleteExcept(child: Int, type: String, minStart: Long?, keepIds: Collection<Int>) {
+        val args = mutableListOf<Any>(child, type)
+        var where = "child = ? and type = ?"
+        if (minStart != null) {
+            where += " and start >= ?"
+            args.add(minStart)
+        }
+        if (keepIds.isNotEmpty()) {
+            where += " and id not in (" + keepIds.joinToString(", ") { "?" } + ")"
+            args.addAll(keepIds)
+        }
+        database.execSQL("delete from timeline_cache where $where", args.toTypedArray())
+    }
+
+    override fun insert(rows: List<TimelineCacheRow>) {
+        val now = System.currentTimeMillis()
+        for (row in rows) {
+            database.execSQL(
+                "insert or replace into timeline_cache (child, type, id, start, last_used, value) " +
+                    "values (?, ?, ?, ?, ?, ?)",
+                arrayOf(row.child, row.type, row.id, row.start, now, row.value)
+            )
+        }
+    }
+
+    override fun rowCount(): Int {
+        database.rawQuery("select count(*) from timeline_cache", arrayOf()).use { cursor ->
+            return if (cursor.moveToNext()) cursor.getInt(0) else 0
+        }
+    }
+
+    override fun childrenByLastUse(): List<Int> {
+        val children = mutableListOf<Int>()
+        database.rawQuery(
+            "select child from timeline_cache group by child order by max(last_used) asc",
+            arrayOf()
+        ).use { cursor ->
+            while (cursor.moveToNext()) {
+                children.add(cursor.getInt(0))
+            }
+        }
+        return children
+    }
+
+    override fun deleteOldest(count: Int) {
+        database.execSQL(
+            "delete from timeline_cache where rowid in " +
+                "(select rowid from timeline_cache order by start asc limit ?)",
+            arrayOf(count)
+        )
+    }
+
+    override fun clearChild(child: Int) {
+        database.delete("timeline_cache", "child = ?", arrayOf(child.toString()))
+        database.delete(
+            "child_kv", "child = ? and key_name like 'timeline_count_%'", arrayOf(child.toString())
+        )
+    }
+
+    override fun transaction(block: () -> Unit) {
+        database.beginTransaction()
+        try {
+            block()
+            database.setTransactionSuccessful()
+        } finally {
+            database.endTransaction()
+        }
+    }
+}
+
+/**
+ * On-device copy of the timeline entries of each child, used to show the timeline right away
+ * when a child page is opened. Entries are stored as JSON keyed by (child, type, id) together
+ * with their start time, and the total count of each type is kept next to them.
+ *
+ * The cache is capped at MAX_ENTRIES rows. Beyond that, the children that were shown least
+ * recently are dropped first, then the oldest entries of the remaining child.
+ */
+class TimelineCache(private val storage: TimelineCacheStorage) {
+    companion object {
+        const val MAX_ENTRIES = 5000
+
+        fun encodeEntry(entry: TimeEntry): String {
+            return SharedObjectMapper.mapper.writeValueAsString(entry)
+        }
+
+        fun decodeEntry(type: KClass<out TimeEntry>, value: String): TimeEntry {
+            return SharedObjectMapper.mapper.readValue(value, type.java)
+        }
+    }
+
+    /** The newest cached entries of a type, newest first */
+    fun load(child: Int, type: KClass<out TimeEntry>, limit: Int): List<TimeEntry> {
+        val result = mutableListOf<TimeEntry>()
+        for (value in storage.newest(child, classActivityName(type), limit)) {
+            try {
+                result.add(decodeEntry(type, value))
+            } catch (e: IOException) {
+                GlobalDebugObject.log("TimelineCache: failed to decode cached ${type.simpleName}: $e")
+            }
+        }
+        return result
+    }
+
+    fun totalCount(child: Int, type: KClass<*>): Int? {
+        return storage.totalCount(child, classActivityName(type))
+    }
+
+    /** Marks the entries of a child as recently used */
+    fun touch(child: Int) {
+        storage.touch(child)
+    }
+
+    /**
+     * Stores the first page of entries of a type. Cached entries within the time range covered
+     * by the page that are not part of it were deleted on the server and are removed. If complete
+     * is true, the page contains all entries of the type.
+     */
+    fun storeFirstPage(
+        child: Int,
+        type: KClass<*>,
+        totalCount: Int,
+        entries: List<TimeEntry>,
+        complete: Boolean
+    ) {
+        storage.transaction {
+            val minStart = if (complete) null else entries.minOfOrNull { it.start.time } ?: Long.MAX_VALUE
+            storage.deleteExcept(child, classActivityName(type), minStart, entries.map { it.id })
+            insertEntries(child, type, totalCount, entries)
+        }
+        trim()
+    }
+
+    /** Stores entries of a type without removing any cached entries */
+    fun storeEntries(child: Int, type: KClass<*>, totalCount: Int, entries: List<TimeEntry>) {
+        storage.transaction {
+            insertEntries(child, type, totalCount, entries)
+        }
+        trim()
+    }
+
+    private fun insertEntries(child: Int, type: KClass<*>, totalCount: Int, entries: List<TimeEntry>) {
+        val typeName = classActivityName(type)
+        storage.insert(entries.map {
+            TimelineCacheRow(child, typeName, it.id, it.start.time, encodeEntry(it))
+        })
+        storage.setTotalCount(child, typeName, totalCount)
+    }
+
+    fun trim(maxEntries: Int = MAX_ENTRIES) {
+        val originalCount = storage.rowCount()
+        if (originalCount <= maxEntries) {
+            return
+        }
+
+        // The most recently used child is never dropped completely
+        var count = originalCount
+        for (child in storage.childrenByLastUse().dropLast(1)) {
+            if (count <= maxEntries) {
+                break
+            }
+            storage.clearChild(child)
+            count = storage.rowCount()
+        }
+
+        if (count > maxEntries) {
+            storage.deleteOldest(count - maxEntries)
+        }
+        GlobalDebugObject.log("TimelineCache: trimmed from $originalCount to ${storage.rowCount()} entries")
+    }
+
+    fun clearChild(child: Int) {
+        storage.clearChild(child)
+    }
+}
@@ -2,14 +2,24 @@ package eu.pkgsoftware.babybuddywidgets.compat
 
 import android.content.res.Resources
 import eu.pkgsoftware.babybuddywidgets.CredStore
+import eu.pkgsoftware.babybuddywidgets.OutboundOpKind
 import eu.pkgsoftware.babybuddywidgets.R
+import eu.pkgsoftware.babybuddywidgets.SharedObjectMapper
+import eu.pkgsoftware.babybuddywidgets.debugging.GlobalDebugObject
 import eu.pkgsoftware.babybuddywidgets.networking.BabyBuddyClient.ACTIVITIES
 import eu.pkgsoftware.babybuddywidgets.networking.BabyBuddyClient.Timer
 import eu.pkgsoftware.babybuddywidgets.networking.RequestCodeFailure
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.OutboundReplayer
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.OutboundTimerStart
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.isRejectedOutboundOp
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.nowServer
 import eu.pkgsoftware.babybuddywidgets.timers.TimerControlInterface
+import eu.pkgsoftware.babybuddywidgets.timers.TimerModificationFailedCallback
 import eu.pkgsoftware.babybuddywidgets.timers.TimersUpdatedCallback
 import eu.pkgsoftware.babybuddywidgets.timers.TranslatedException
 import eu.pkgsoftware.babybuddywidgets.utils.Promise
+import java.io.IOException
+import java.util.Date
 import java.util.Locale
 
 data class WrappedTimer(val mappedActivityIndex: Int, val timer: Timer) {
@@ -23,12 +33,20 @@ class BabyBuddyV2TimerAdapter(
     val childId: Int,
     val wrap: TimerControlInterface,
     val resources: Resources,
-    val credStore: CredStore
+    val credStore: CredStore,
+    val outbound: OutboundReplayer,
 ) : TimerControlInterface {
     private val virtualTimers: Array<Timer>
     private var timersCallback: TimersUpdatedCallback? = null
     private var actualTimers: MutableList<WrappedTimer>? = null
 
+    private val localChanges = LocalTimerChanges()
+    private val serverCalls = ArrayDeque<(Runnable) -> Unit>()
+    private var serverCallRunning = false
+
+    /** Told about server calls that failed after the change was already shown */
+    var modificationFailedCallback: TimerModificationFailedCallback? = null
+
     companion object {
         val STRUCTURED_REGEX = "^.*-bbapp:([0-9]+)$".toRegex()
         val OLD_READABLE_NAMES = mapOf(
@@ -82,11 +100,14 @@ class BabyBuddyV2TimerAdapter(
             t
         }.toTypedArray()
 
+        restoreOutboundChanges()
+
         wrap.registerTimersUpdatedCallback(object : TimersUpdatedCallback {
             override fun newTimerListLoaded(timers: Array<Timer>) {
                 actualTimers = timers.map {
                     WrappedTimer(mapBabyBuddyNameToActivityIndex(it.readableName()), it)
                 }.toMutableList()
+                reconcileLocalChanges()
                 triggerTimerCallback()
             }
         })
@@ -104,6 +125,9 @@ class BabyBuddyV2TimerAdapter(
                     val newTimer = timerToVirtualTimer(actTimer.timer) ?: continue
                     timerList[IMPLEMENTED_ACTIVITIES.indexOf(newTimer.name)] = newTimer
                 }
+                for (change in localChanges.all) {
+                    timerList[IMPLEMENTED_ACTIVITIES.indexOf(change.activity)] = change.timer.clone()
+                }
 
                 callback.newTimerListLoaded(timerList.toTypedArray())
             } ?: {
@@ -142,27 +166,188 @@ class BabyBuddyV2TimerAdapter(
         startTimer(timer, cb)
     }
 
+    /** Shows the timer operations that are still in the outbound queue, e.g. after a restart */
+    private fun restoreOutboundChanges() {
+        for (op in outbound.pendingTimerOps(childId)) {
+            val virtualIndex = IMPLEMENTED_ACTIVITIES.indexOf(op.type)
+            if (virtualIndex < 0) {
+                continue
+            }
+            val timer = virtualTimers[virtualIndex].clone()
+            if (op.kind == OutboundOpKind.START_TIMER) {
+                timer.active = true
+                timer.start = try {
+                    Date(SharedObjectMapper.mapper.readValue(op.payload, OutboundTimerStart::class.java).start)
+                } catch (e: IOException) {
+                    Date(op.created)
+                }
+            }
+            localChanges.restore(op.type, timer, op)
+        }
+    }
+
+    private fun reconcileLocalChanges() {
+        val conflicts = localChanges.reconcile(
+            { actualTimerFor(it)?.active == true },
+            { outbound.isPending(it) }
+        )
+        for (activity in conflicts) {
+            GlobalDebugObject.log(
+                "BabyBuddyV2TimerAdapter timer $activity of child $childId was changed elsewhere, using the server state"
+            )
+        }
+    }
+
+    private fun actualTimerFor(activity: String): Timer? {
+        val i = IMPLEMENTED_ACTIVITIES.indexOf(activity)
+        return if (i < 0) null else virtualToActualTimer(virtualTimers[i])
+    }
+
+    /** The state shown for an activity: the local change if there is one, else the server state */
+    private fun currentlyActive(activity: String): Boolean {
+        localChanges[activity]?.let {
+            return it.timer.active
+        }
+        return actualTimerFor(activity)?.active == true
+    }
+
+    private fun applyLocally(activity: String, timer: Timer): LocalTimerChange {
+        val change = localChanges.apply(activity, timer)
+        triggerTimerCallback()
+        return change
+    }
+
+    private fun confirmLocalChange(change: LocalTimerChange, serverTimer: Timer?) {
+        localChanges.confirm(change, serverTimer)
+        triggerTimerCallback()
+    }
+
+    private fun rollbackLocalChange(change: LocalTimerChange, timer: Timer, error: TranslatedException?) {
+        if (localChanges.rollback(change)) {
+            triggerTimerCallback()
+        }
+        modificationFailedCallback?.timerModificationFailed(timer, error)
+    }
+
+    private fun isConnectionFailure(error: TranslatedException?): Boolean {
+        val e = error?.originalError ?: return false
+        if (e is RequestCodeFailure) {
+            return !isRejectedOutboundOp(e)
+        }
+        return e is IOException
+    }
+
+    /** Timer calls have to wait for the timer operations that are already in the outbound queue */
+    private fun mustDefer(): Boolean {
+        return outbound.pendingTimerOps(childId).isNotEmpty()
+    }
+
+    /**
+     * Moves the server call for change into the outbound queue, which sends it once the server
+     * can be reached. The change stays visible until the server agrees with it.
+     */
+    private fun deferToOutbound(change: LocalTimerChange) {
+        val op = if (change.timer.active) {
+            outbound.startTimer(
+                childId,
+                change.activity,
+                serverTimerName(change.activity),
+                change.timer.start ?: nowServer()
+            )
+        } else {
+            outbound.stopTimer(childId, change.activity)
+        }
+        localChanges.defer(change, op)
+        triggerTimerCallback()
+    }
+
+    private fun serverTimerName(activity: String): String {
+        val actI = ACTIVITIES.index(activity)
+        val readableActivityName = resources.getStringArray(R.array.timerTypeNames)
+        return "${readableActivityName[actI]}-BBapp:${actI + 1}"
+    }
+
+    /** Server calls run one after another, so a stop never overtakes the start it belongs to */
+    private fun queueServerCall(call: (Runnable) -> Unit) {
+        serverCalls.addLast(call)
+        runNextServerCall()
+    }
+
+    private fun runNextServerCall() {
+        if (serverCallRunning) {
+            return
+        }
+        val call = serverCalls.removeFirstOrNull() ?: return
+        serverCallRunning = true
+        call(Runnable {
+            serverCallRunning = false
+            runNextServerCall()
+        })
+    }
+
+    /**
+     * Shows the timer as running right away, with a start time of nowServer(), and resolves cb
+     * with it. The server call is queued; if the server cannot be reached, it is moved to the
+     * outbound queue, if it fails otherwise, the change is rolled back and
+     * modificationFailedCallback is called.
+     */
     override fun startTimer(timer: Timer, cb: Promise<Timer, TranslatedException>) {
+        val virtualIndex = IMPLEMENTED_ACTIVITIES.indexOf(timer.name)
+        if ((virtualIndex < 0) || (ACTIVITIES.index(timer.name) < 0)) {
+            cb.failed(TranslatedException("Invalid activity ${timer.name}", null))
+            return
+        }
+        if (currentlyActive(timer.name)) {
+            cb.failed(
+                TranslatedException("Timer for activity ${timer.name} already active", null)
+            )
+            return
+        }
+
+        val localTimer = virtualTimers[virtualIndex].clone()
+        localTimer.active = true
+        localTimer.start = nowServer()
+        localTimer.end = null
+        val change = applyLocally(timer.name, localTimer)
+        cb.succeeded(localTimer.clone())
+
+        queueServerCall { done ->
+            if (mustDefer()) {
+                deferToOutbound(change)
+                done.run()
+                return@queueServerCall
+            }
+            startTimerOnServer(timer, object : Promise<Timer, TranslatedException> {
+                override fun succeeded(s: Timer?) {
+                    confirmLocalChange(change, s)
+                    done.run()
+                }
+
+                override fun failed(f: TranslatedException?) {
+                    if (isConnectionFailure(f)) {
+                        deferToOutbound(change)
+                    } else {
+                        rollbackLocalChange(change, timer, f)
+                    }
+                    done.run()
+                }
+            })
+        }
+    }
+
+    private fun startTimerOnServer(timer: Timer, cb: Promise<Timer, TranslatedException>) {
         var existingTimer = false
         val timerToStart: Timer = virtualToActualTimer(timer)?.let {
             if (it.active) {
-                cb.failed(
-                    TranslatedException("Timer for activity ${timer.name} already active", null)
-                )
+                // Started somewhere else in the meantime, which is what was asked for
+                cb.succeeded(timerToVirtualTimer(it))
                 return
             }
             existingTimer = true
             it
         } ?: run {
-            val actI = ACTIVITIES.index(timer.name)
-            if (actI < 0) {
-                cb.failed(TranslatedException("Invalid activity ${timer.name}", null))
-                return
-            }
-
             val t = timer.clone()
-            val readableActivityName = resources.getStringArray(R.array.timerTypeNames)
-            t.name = "${readableActivityName[actI]}-BBapp:${actI + 1}"
+            t.name = serverTimerName(timer.name)
             t
         }
 
@@ -230,11 +415,49 @@ class BabyBuddyV2TimerAdapter(
         }
     }
 
+    /**
+     * Shows the timer as stopped right away and resolves cb. The server call is queued like for
+     * startTimer.
+     */
     override fun stopTimer(timer: Timer, cb: Promise<Any, TranslatedException>) {
-        virtualToActualTimer(timer)?.let {
-            wrap.stopTimer(it, cb)
-        } ?: {
+        val virtualIndex = IMPLEMENTED_ACTIVITIES.indexOf(timer.name)
+        if ((virtualIndex < 0) || !currentlyActive(timer.name)) {
             cb.failed(TranslatedException("Timer ${timer.name} does not exist", null))
+            return
+        }
+
+        val change = applyLocally(timer.name, virtualTimers[virtualIndex].clone())
+        cb.succeeded(true)
+
+        queueServerCall { done ->
+            if (mustDefer()) {
+                deferToOutbound(change)
+                done.run()
+                return@queueServerCall
+            }
+            val actualTimer = virtualToActualTimer(timer)
+            if (actualTimer == null) {
+                // Already gone on the server
+                confirmLocalChange(change, null)
+                done.run()
+                return@queueServerCall
+            }
+            wrap.stopTimer(actualTimer, object : Promise<Any, TranslatedException> {
+                override fun succeeded(s: Any?) {
+                    actualTimers?.removeAll { it.timer === actualTimer }
+                    confirmLocalChange(change, null)
+                    done.run()
+                }
+
+                override fun failed(f: TranslatedException?) {
+                    if (isConnectionFailure(f)) {
+                        deferToOutbound(change)
+                    } else {
+                        rollbackLocalChange(change, timer, f)
+                    }
+                    done.run()
+                }
+            })
         }
     }
 
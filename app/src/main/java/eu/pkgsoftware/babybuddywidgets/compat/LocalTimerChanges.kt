@@ -0,0 +1,105 @@
+package eu.pkgsoftware.babybuddywidgets.compat
+
+import eu.pkgsoftware.babybuddywidgets.OutboundOp
+import eu.pkgsoftware.babybuddywidgets.networking.BabyBuddyClient.Timer
+
+/**
+ * A timer change that is shown before the server knows about it. version increases with every
+ * change, so results of server calls for changes that were superseded by a newer tap are
+ * ignored. outboundOp is set if the change waits in the outbound queue for a connection.
+ */
+class LocalTimerChange(val activity: String, val version: Int, var timer: Timer) {
+    var inFlight = true
+    var disagreeingPolls = 0
+    var outboundOp: OutboundOp? = null
+}
+
+/**
+ * The timer changes of one child that were shown locally but not confirmed by a poll yet, at most
+ * one per activity. A change is in flight while its server call runs, then waits for a poll that
+ * agrees with it, or in the outbound queue if the server could not be reached.
+ */
+class LocalTimerChanges {
+    private val changes = mutableMapOf<String, LocalTimerChange>()
+    private var version = 0
+
+    val all: Collection<LocalTimerChange>
+        get() = changes.values
+
+    operator fun get(activity: String): LocalTimerChange? {
+        return changes[activity]
+    }
+
+    /** Shows timer for activity, superseding an earlier change of the same activity */
+    fun apply(activity: String, timer: Timer): LocalTimerChange {
+        val change = LocalTimerChange(activity, ++version, timer)
+        changes[activity] = change
+        return change
+    }
+
+    /** Shows an operation that is still in the outbound queue, e.g. after a restart */
+    fun restore(activity: String, timer: Timer, op: OutboundOp): LocalTimerChange {
+        val change = apply(activity, timer)
+        change.inFlight = false
+        change.outboundOp = op
+        return change
+    }
+
+    /** False if a newer change of the same activity was made, or the change was dropped */
+    fun isCurrent(change: LocalTimerChange): Boolean {
+        return changes[change.activity]?.version == change.version
+    }
+
+    /**
+     * The server call for change succeeded. serverTimer replaces the shown timer, unless the
+     * change was superseded in the meantime.
+     */
+    fun confirm(change: LocalTimerChange, serverTimer: Timer?) {
+        change.inFlight = false
+        if (isCurrent(change) && (serverTimer != null)) {
+            change.timer = serverTimer
+        }
+    }
+
+    /** The server call for change was moved to the outbound queue as op */
+    fun defer(change: LocalTimerChange, op: OutboundOp) {
+        change.outboundOp = op
+        change.inFlight = false
+    }
+
+    /** The server rejected change. Returns true if it was shown and is removed now. */
+    fun rollback(change: LocalTimerChange): Boolean {
+        if (!isCurrent(change)) {
+            return false
+        }
+        changes.remove(change.activity)
+        return true
+    }
+
+    /**
+     * Compares a poll of the server with the local changes. A change is dropped once the server
+     * agrees with it. If the server disagrees after the call for the change succeeded, the poll
+     * may have been sent before that call, so only the second disagreeing poll counts as a
+     * conflicting change from somewhere else, and the server state wins. Changes that are in
+     * flight or still queued are skipped.
+     *
+     * Returns the activities whose change was dropped because of a conflict.
+     */
+    fun reconcile(serverActive: (String) -> Boolean, isQueued: (OutboundOp) -> Boolean): List<String> {
+        val conflicts = mutableListOf<String>()
+        val iterator = changes.values.iterator()
+        while (iterator.hasNext()) {
+            val change = iterator.next()
+            if (change.inFlight || (change.outboundOp?.let(isQueued) == true)) {
+                continue
+            }
+            if (serverActive(change.activity) == change.timer.active) {
+                iterator.remove()
+            } else if (++change.disagreeingPolls >= 2) {
+                conflicts.add(change.activity)
+                iterator.remove()
+            }
+        }
+        return conflicts
+    }
+}
@@ -1,19 +1,20 @@
 package eu.pkgsoftware.babybuddywidgets.history
 
+import android.database.sqlite.SQLiteException
 import android.graphics.PointF
 import android.graphics.Rect
 import android.view.View
-import android.widget.LinearLayout
 import android.widget.ProgressBar
+import androidx.recyclerview.widget.RecyclerView
 import eu.pkgsoftware.babybuddywidgets.BaseFragment
 import eu.pkgsoftware.babybuddywidgets.R
-import eu.pkgsoftware.babybuddywidgets.VisibilityCheck
 import eu.pkgsoftware.babybuddywidgets.debugging.GlobalDebugObject
 import eu.pkgsoftware.babybuddywidgets.logic.ContinuousListItem
-import eu.pkgsoftware.babybuddywidgets.logic.EndAwareContinuousListIntegrator
 import eu.pkgsoftware.babybuddywidgets.networking.RequestCodeFailure
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.ConnectingDialogInterface
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.InterruptedException
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.OutboundOpListener
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.PaginatedResult
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.exponentialBackoff
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.ChangeEntry
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.SleepEntry
@@ -43,33 +44,108 @@ interface ShowErrorPill {
 
 class ChildEventHistoryLoader(
     private val fragment: BaseFragment,
-    private val container: LinearLayout,
+    private val recyclerView: RecyclerView,
+    private val adapter: TimelineAdapter,
     private val childId: Int,
-    private val visibilityCheck: VisibilityCheck,
     private val progressBar: ProgressBar,
     private val errorPill: ShowErrorPill,
 ) {
     val HISTORY_ITEM_COUNT = 150 / IMPLEMENTED_EVENT_CLASSES.size
     val POLL_INTERVAL = 5000
+    val PREFETCH_PAGES_PER_CLASS = 4
 
     private val activityCollectionGate = IMPLEMENTED_EVENT_CLASSES.toMutableList()
     private val scope = fragment.mainActivity.scope
 
-    private val timeEntryLookup = mutableMapOf<ContinuousListItem, TimeEntry>()
-    private val listIntegrator = EndAwareContinuousListIntegrator()
-    private val currentList = mutableListOf<TimelineEntry>()
-    private val removedViews = mutableListOf<TimelineEntry>()
+    private val integration = TimelineIntegration(HISTORY_ITEM_COUNT, IMPLEMENTED_EVENT_CLASSES)
 
     private var updateUiJob: Job? = null
     private var fetchJob: Job? = null
+    private var topUpdateJob: Job? = null
+    private var prefetchJob: Job? = null
+    private var requestedTop: ContinuousListItem? = null
+    private var publishedVersion = 0
+    private val viewPoolSizes = mutableMapOf<Int, Int>()
+    private var closed = false
 
-    private val queryOffsets = mutableMapOf<KClass<*>, Int>()
+    // Entries created or deleted while offline show up on the server once they were replayed,
+    // until then publishSnapshot adds them from the outbound queue
+    private val outboundOpListener = OutboundOpListener { op, _ ->
+        if (op.childId == childId) {
+            forceRefresh()
+        }
+    }
+
+    private val deltaSync = TimelineDeltaSync(HISTORY_ITEM_COUNT)
+    private var timelineChanged = true
     private var tutorialMessageAdded = false
 
     init {
+        adapter.modifiedCallback = Runnable {
+            forceRefresh()
+        }
+        fragment.mainActivity.outbound.opListeners.add(outboundOpListener)
+        loadFromCache()
         forceRefresh()
     }
 
+    /**
+     * Shows the entries stored on the device until the first poll of the server finished. This
+     * is launched before the first fetch, so the integration applies it before any server page.
+     */
+    private fun loadFromCache() {
+        val cache = fragment.mainActivity.storage.timelineCache
+        scope.launch {
+            val loaded = integration.addInitialPages { type ->
+                try {
+                    val entries = cache.load(childId, type, HISTORY_ITEM_COUNT)
+                    if (entries.isEmpty()) {
+                        null
+                    } else {
+                        PaginatedResult(entries, 0, cache.totalCount(childId, type) ?: entries.size)
+                    }
+                }
+                catch (e: SQLiteException) {
+                    GlobalDebugObject.log("ChildEventHistoryLoader failed to load the timeline cache: $e")
+                    null
+                }
+            }
+            if (loaded) {
+                publishSnapshot()
+            }
+            withContext(Dispatchers.IO) {
+                try {
+                    cache.touch(childId)
+                }
+                catch (e: SQLiteException) {
+                    GlobalDebugObject.log("ChildEventHistoryLoader failed to update the timeline cache: $e")
+                }
+            }
+        }
+    }
+
+    /** Writes fetched entries to the timeline cache off the main thread */
+    private suspend fun cacheEntries(
+        type: KClass<*>,
+        firstPage: Boolean,
+        totalCount: Int,
+        entries: List<TimeEntry>
+    ) {
+        val cache = fragment.mainActivity.storage.timelineCache
+        withContext(Dispatchers.IO) {
+            try {
+                if (firstPage) {
+                    cache.storeFirstPage(childId, type, totalCount, entries, entries.size >= totalCount)
+                } else {
+                    cache.storeEntries(childId, type, totalCount, entries)
+                }
+            }
+            catch (e: SQLiteException) {
+                GlobalDebugObject.log("ChildEventHistoryLoader failed to update the timeline cache: $e")
+            }
+        }
+    }
+
     inner class BackoffConnectionInterface(val entryName: String) : ConnectingDialogInterface {
         private var retriesLeft = 3
 
@@ -96,29 +172,16 @@ class ChildEventHistoryLoader(
                     async {
                         val activityName = classActivityName(it)
                         try {
-                            val conInterface = BackoffConnectionInterface(activityName)
-                            val mainActivity = fragment.mainActivity
-                            val r = exponentialBackoff(conInterface) {
-                                if (fragment.isDetached) {
-                                    throw InterruptedException()
-                                }
-                                mainActivity.client.v2client.getEntries(
-                                    it,
-                                    offset = queryOffsets.getOrDefault(it, 0),
-                                    limit = HISTORY_ITEM_COUNT,
-                                    childId = childId,
-                                )
-                            }
-                            addTimelineItems(r.offset, r.totalCount, it, r.entries)
+                            syncClass(it, BackoffConnectionInterface(activityName))
                         }
                         catch (e: InterruptedException) {
                             GlobalDebugObject.log("ChildEventHistoryLoader retrieval of ${it.simpleName} failed after retries")
-                            addTimelineItems(0, 0, it, listOf())
+                            classFetchFailed(it)
                         }
                         catch (e: RequestCodeFailure) {
                             GlobalDebugObject.log("ChildEventHistoryLoader retrieval of ${it.simpleName} failed with code ${e.code}")
                             errorPill.showErrorPill(activityName, e)
-                            addTimelineItems(0, 0, it, listOf())
+                            classFetchFailed(it)
                         }
                     }
                 }.awaitAll()
@@ -126,29 +189,107 @@ class ChildEventHistoryLoader(
         }
     }
 
-    private fun newTimelineEntry(e: TimeEntry?): TimelineEntry {
-        val result = if (removedViews.size > 0) {
-            removedViews.removeAt(removedViews.size - 1)
-        } else {
-            TimelineEntry(fragment, e)
-        };
-        result.entry = e
-        result.setModifiedCallback {
-            forceRefresh()
+    private suspend fun fetchEntries(
+        type: KClass<out TimeEntry>,
+        conInterface: ConnectingDialogInterface,
+        offset: Int,
+        limit: Int,
+    ): PaginatedResult<TimeEntry> {
+        val mainActivity = fragment.mainActivity
+        val r = exponentialBackoff(conInterface) {
+            if (fragment.isDetached) {
+                throw InterruptedException()
+            }
+            mainActivity.client.v2client.getEntries(
+                type,
+                offset = offset,
+                limit = limit,
+                childId = childId,
+            )
         }
-        container.addView(result.view)
-        currentList.add(result)
-        return result
+        return PaginatedResult(r.entries, r.offset, r.totalCount)
     }
 
-    private fun timeEntryToContinuousListItem(e: TimeEntry): ContinuousListItem {
-        val result = ContinuousListItem(
-            -e.start.time,
-            e.appType,
-            e.id.toString(),
-        )
-        timeEntryLookup[result] = e
-        return result
+    /**
+     * Brings the entries of a class up to date. Once the newest entries of a class are known, a
+     * poll only asks for the newest entry and the total count. A full page is only downloaded
+     * if that check fails, if the page at the query offset has not been loaded yet, or every
+     * TimelineDeltaSync.verifyInterval polls to pick up edits of older entries.
+     */
+    private suspend fun syncClass(type: KClass<out TimeEntry>, conInterface: ConnectingDialogInterface) {
+        if (deltaSync.isKnown(type)) {
+            val probe = fetchEntries(type, conInterface, 0, 1)
+            val check = deltaSync.check(type, probe.totalCount, probe.entries.firstOrNull())
+            var upToDate = false
+            when (check.action) {
+                TimelineDeltaSync.Action.UNCHANGED -> upToDate = true
+                TimelineDeltaSync.Action.PREPEND -> {
+                    val r = fetchEntries(type, conInterface, 0, check.delta + 1)
+                    if (deltaSync.applyDelta(type, check, r.entries)) {
+                        val newEntries = r.entries.subList(0, check.delta)
+                        integration.prepend(type, check.totalCount, newEntries)
+                        timelineChanged = true
+                        cacheEntries(type, false, check.totalCount, newEntries)
+                        upToDate = true
+                    }
+                }
+                TimelineDeltaSync.Action.RELOAD -> deltaSync.invalidate(type)
+            }
+
+            if (upToDate && (integration.missingPage(type) == null)) {
+                classFetchFinished(type)
+                return
+            }
+        }
+
+        val offset = integration.missingPage(type) ?: integration.queryOffset(type)
+        val r = fetchEntries(type, conInterface, offset, HISTORY_ITEM_COUNT)
+        deltaSync.pageLoaded(type, r.offset, r.totalCount, r.entries)
+        addTimelineItems(r.offset, r.totalCount, type, r.entries)
+        cacheEntries(type, r.offset == 0, r.totalCount, r.entries)
+    }
+
+    /**
+     * Fetches the pages of a class that are missing around the top of the screen, without
+     * waiting for the next poll. Bounded so that a server that keeps changing its counts cannot
+     * keep this busy. Returns the number of pages that were added.
+     */
+    private suspend fun fillWindow(type: KClass<out TimeEntry>, conInterface: ConnectingDialogInterface): Int {
+        repeat(PREFETCH_PAGES_PER_CLASS) { i ->
+            val offset = integration.missingPage(type) ?: return i
+            val r = fetchEntries(type, conInterface, offset, HISTORY_ITEM_COUNT)
+            deltaSync.pageLoaded(type, r.offset, r.totalCount, r.entries)
+            integration.addPage(type, r.offset, r.totalCount, r.entries)
+            cacheEntries(type, r.offset == 0, r.totalCount, r.entries)
+        }
+        return PREFETCH_PAGES_PER_CLASS
+    }
+
+    private fun prefetch() {
+        if ((prefetchJob?.isActive == true) || (fetchJob?.isActive == true)) {
+            return
+        }
+        prefetchJob = scope.launch {
+            val pages = IMPLEMENTED_EVENT_CLASSES.map {
+                async {
+                    try {
+                        fillWindow(it, BackoffConnectionInterface(classActivityName(it)))
+                    }
+                    catch (e: InterruptedException) {
+                        GlobalDebugObject.log("ChildEventHistoryLoader prefetch of ${it.simpleName} failed after retries")
+                        0
+                    }
+                    catch (e: RequestCodeFailure) {
+                        GlobalDebugObject.log("ChildEventHistoryLoader prefetch of ${it.simpleName} failed with code ${e.code}")
+                        0
+                    }
+                }
+            }.awaitAll()
+            // Failed fetches are retried by the next poll, not by the scroll listener
+            if (pages.sum() > 0) {
+                publishSnapshot()
+            }
+        }
     }
 
     private suspend fun addTimelineItems(
@@ -157,17 +298,27 @@ class ChildEventHistoryLoader(
         type: KClass<*>,
         entries: List<TimeEntry>
     ) {
-        activityCollectionGate.remove(type)
+        integration.addPage(type, offset, totalCount, entries)
+        timelineChanged = true
+        classFetchFinished(type)
+    }
 
-        // Put this in separate thread!
-        listIntegrator.updateItemsWithCount(
-            offset,
-            totalCount,
-            classActivityName(type),
-            entries.map { timeEntryToContinuousListItem(it) }.toTypedArray()
-        )
+    /**
+     * Entries of the class that are shown already, from the cache or an earlier poll, stay
+     * as they are and the next poll tries again. Only a class without any entries is marked as
+     * empty, so that the timeline does not wait for it.
+     */
+    private suspend fun classFetchFailed(type: KClass<*>) {
+        if (integration.hasEntries(type)) {
+            classFetchFinished(type)
+            return
+        }
+        deltaSync.invalidate(type)
+        addTimelineItems(0, 0, type, listOf())
+    }
 
-        queryOffsets[type] = listIntegrator.suggestClassQueryOffset(classActivityName(type))
+    private fun classFetchFinished(type: KClass<*>) {
+        activityCollectionGate.remove(type)
 
         val updateUiJob = this.updateUiJob
         if ((updateUiJob == null) || (!updateUiJob.isActive)) {
@@ -181,7 +332,12 @@ class ChildEventHistoryLoader(
 
     private suspend fun updateUiJobImpl() {
         try {
-            deferredUpdate()
+            if (timelineChanged) {
+                timelineChanged = false
+                publishSnapshot()
+            } else {
+                updateTop()
+            }
         }
         finally {
             delay(POLL_INTERVAL.toLong())
@@ -192,55 +348,46 @@ class ChildEventHistoryLoader(
         }
     }
 
-    private suspend fun deferredUpdate() {
-        val items = listIntegrator.items
-        var i = 0
-        val visibleCount = listIntegrator.computeValidCount()
-
-        for (it in items) {
-            val entry = timeEntryLookup[it]
-            val listItem: TimelineEntry =
-                if (i < currentList.size) {
-                    currentList[i]
-                } else {
-                    newTimelineEntry(entry)
-                };
-            if (it.dirty) {
-                listItem.entry = null
-            } else {
-                listItem.entry = entry
-            }
-            listItem.view.visibility = if (i < visibleCount) {
-                View.VISIBLE
-            } else {
-                View.GONE
+    private suspend fun pendingEntryChanges(): PendingEntryChanges {
+        val outbound = fragment.mainActivity.outbound
+        return withContext(Dispatchers.IO) {
+            try {
+                outbound.pendingEntryChanges(childId)
             }
-            i++
-            if (i % 50 == 0) {
-                delay(50)
+            catch (e: SQLiteException) {
+                GlobalDebugObject.log("ChildEventHistoryLoader failed to read the outbound queue: $e")
+                PendingEntryChanges.NONE
             }
-            attemptAddingLongClickTutorialMessage()
         }
-        progressBar.visibility = if (visibleCount == items.size) {
+    }
+
+    /**
+     * Shows the current state of the integration, with the entry changes that are still in the
+     * outbound queue, unless a newer one is shown already
+     */
+    private suspend fun publishSnapshot() {
+        val snapshot = integration.snapshot(pendingEntryChanges())
+        if (closed || (snapshot.version <= publishedVersion)) {
+            return
+        }
+        publishedVersion = snapshot.version
+
+        progressBar.visibility = if (snapshot.complete) {
             View.GONE
         } else {
             View.VISIBLE
         }
-        while (currentList.size > items.size) {
-            val removed = currentList.removeAt(currentList.size - 1)
-            if (removedViews.size < 128) {
-                removedViews.add(removed)
-            }
-            container.removeView(removed.view)
+        val rows = snapshot.rows
+        adapter.submitList(rows) { touchedRows ->
+            GlobalDebugObject.log("ChildEventHistoryLoader rebound $touchedRows of ${rows.size} timeline rows")
+            attemptAddingLongClickTutorialMessage()
+            updateTop()
         }
-        attemptAddingLongClickTutorialMessage()
-        delay(500)
-        updateTop()
     }
 
     private fun attemptAddingLongClickTutorialMessage() {
         if (tutorialMessageAdded) return
-        if (container.childCount <= 0) return
+        if (adapter.itemCount <= 0) return
         tutorialMessageAdded = true
 
         fragment.mainActivity.tutorialManagement.addItem(
@@ -249,8 +396,9 @@ class ChildEventHistoryLoader(
                 object : Trackable() {
                     override val orientation: Direction = Direction.DOWN
                     override val position: PointF? get() {
+                        val view = firstVisibleRow()?.itemView ?: return null
                         val r = Rect()
-                        container.getGlobalVisibleRect(r)
+                        view.getGlobalVisibleRect(r)
                         if (r.isEmpty) return null
                         return PointF((r.left + r.right) / 2f, r.top.toFloat())
                     }
@@ -261,54 +409,98 @@ class ChildEventHistoryLoader(
     }
 
     fun close() {
+        closed = true
         updateUiJob?.cancel()
         fetchJob?.cancel()
-        listIntegrator.clear()
-        removedViews.clear()
-        container.removeAllViews()
-        timeEntryLookup.clear()
-        queryOffsets.clear()
+        topUpdateJob?.cancel()
+        prefetchJob?.cancel()
+        adapter.modifiedCallback = null
+        fragment.mainActivity.outbound.opListeners.remove(outboundOpListener)
+        adapter.submitList(null)
+        deltaSync.clear()
         tutorialMessageAdded = false
     }
 
     fun addEntryToTop(entry: TimeEntry) {
-        val cls = entry::class
-        val activityName = classActivityName(cls)
-
-        val currentList = listIntegrator.items.filter { it.className == activityName }.toMutableList()
-        currentList.add(0, timeEntryToContinuousListItem(entry))
+        if (entry.id == 0) {
+            // Still in the outbound queue, publishSnapshot shows it from there
+            scope.launch {
+                publishSnapshot()
+            }
+            return
+        }
+        // The next poll reloads the first page of the class instead of prepending the entry again
+        deltaSync.invalidate(entry::class)
+        scope.launch {
+            integration.addToTop(entry)
+            publishSnapshot()
+        }
+    }
 
-        listIntegrator.updateItemsWithCount(
-            0, currentList.size, activityName, currentList.toTypedArray()
-        )
-        fragment.mainActivity.scope.launch {
-            deferredUpdate()
+    /** The topmost timeline row that is at least partially on screen */
+    private fun firstVisibleRow(): TimelineAdapter.Holder? {
+        var result: TimelineAdapter.Holder? = null
+        for (i in 0 until recyclerView.childCount) {
+            val child = recyclerView.getChildAt(i)
+            val holder = recyclerView.getChildViewHolder(child)
+            if ((holder !is TimelineAdapter.Holder) || (holder.bindingAdapter !== adapter)) {
+                continue
+            }
+            if (holder.bindingAdapterPosition == RecyclerView.NO_POSITION) {
+                continue
+            }
+            if (!child.getLocalVisibleRect(Rect())) {
+                continue
+            }
+            if ((result == null) || (holder.bindingAdapterPosition < result.bindingAdapterPosition)) {
+                result = holder
+            }
         }
+        return result
     }
 
-    fun updateTop() {
-        var i = 0
-        val liItems = listIntegrator.items
-        listIntegrator.top = null
-        for (item in currentList) {
-            if (i >= liItems.size) {
-                break // this can happen if we are in the middle of the async refresh
+    /**
+     * Limits the recycled views of each row type to the most rows of that type seen on screen
+     * at once (plus one), instead of the fixed size of the RecyclerView pool.
+     */
+    private fun sizeViewPool() {
+        val onScreen = mutableMapOf<Int, Int>()
+        for (i in 0 until recyclerView.childCount) {
+            val holder = recyclerView.getChildViewHolder(recyclerView.getChildAt(i))
+            if ((holder is TimelineAdapter.Holder) && (holder.bindingAdapter === adapter)) {
+                onScreen[holder.itemViewType] = (onScreen[holder.itemViewType] ?: 0) + 1
             }
-            if (visibilityCheck.checkPartiallyVisible(item.view)) {
-                listIntegrator.top = liItems[i]
-                break
+        }
+        for ((viewType, count) in onScreen) {
+            val size = count + 1
+            if (size > (viewPoolSizes[viewType] ?: 0)) {
+                viewPoolSizes[viewType] = size
+                recyclerView.recycledViewPool.setMaxRecycledViews(viewType, size)
             }
-            i++
         }
-        for (cls in IMPLEMENTED_EVENT_CLASSES) {
-            queryOffsets[cls] = listIntegrator.suggestClassQueryOffset(classActivityName(cls))
+    }
+
+    /**
+     * Tells the integration which item is at the top of the screen. Scroll events are
+     * conflated: while an update is running, only the latest position is remembered.
+     */
+    fun updateTop() {
+        if (closed) {
+            return
+        }
+        sizeViewPool()
+        val position = firstVisibleRow()?.bindingAdapterPosition ?: return
+        requestedTop = adapter.currentList.getOrNull(position)?.item ?: return
+
+        if (topUpdateJob?.isActive == true) {
+            return
         }
-        val visibleCount = listIntegrator.computeValidCount()
-        if (i >= visibleCount - 20) {
-            val numberItems = IMPLEMENTED_EVENT_CLASSES.map { listIntegrator.getItemsCount(classActivityName(it)) }.sum()
-            if (numberItems > liItems.size) {
-                if (fetchJob?.isActive != true) {
-                    forceRefresh()
+        topUpdateJob = scope.launch {
+            while (true) {
+                val top = requestedTop ?: break
+                requestedTop = null
+                if (integration.updateTop(top)) {
+                    prefetch()
                 }
             }
         }
@@ -319,6 +511,8 @@ class ChildEventHistoryLoader(
         fetchJob?.cancel("forceRefresh()")
         activityCollectionGate.clear()
         activityCollectionGate.addAll(IMPLEMENTED_EVENT_CLASSES)
+        deltaSync.clear()
+        timelineChanged = true
         startFetch()
     }
 }
\ No newline at end of file
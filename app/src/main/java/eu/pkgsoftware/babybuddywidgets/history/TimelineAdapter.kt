@@ -0,0 +1,121 @@
+package eu.pkgsoftware.babybuddywidgets.history
+
+import android.view.ViewGroup
+import androidx.recyclerview.widget.AdapterListUpdateCallback
+import androidx.recyclerview.widget.AsyncDifferConfig
+import androidx.recyclerview.widget.AsyncListDiffer
+import androidx.recyclerview.widget.DiffUtil
+import androidx.recyclerview.widget.ListUpdateCallback
+import androidx.recyclerview.widget.RecyclerView
+import eu.pkgsoftware.babybuddywidgets.BaseFragment
+import eu.pkgsoftware.babybuddywidgets.logic.ContinuousListItem
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.TimeEntry
+
+/**
+ * One row of the timeline. entry is null while the item is still a placeholder. The dirty flag
+ * is copied because the integrator changes it on its items in place.
+ */
+class TimelineRow(val item: ContinuousListItem, val entry: TimeEntry?) {
+    val dirty = item.dirty
+}
+
+/** Counts the rows that a diff inserted, removed, moved or changed */
+class CountingListUpdateCallback(private val wrapped: ListUpdateCallback) : ListUpdateCallback {
+    var touchedRows = 0
+
+    override fun onInserted(position: Int, count: Int) {
+        touchedRows += count
+        wrapped.onInserted(position, count)
+    }
+
+    override fun onRemoved(position: Int, count: Int) {
+        touchedRows += count
+        wrapped.onRemoved(position, count)
+    }
+
+    override fun onMoved(fromPosition: Int, toPosition: Int) {
+        touchedRows++
+        wrapped.onMoved(fromPosition, toPosition)
+    }
+
+    override fun onChanged(position: Int, count: Int, payload: Any?) {
+        touchedRows += count
+        wrapped.onChanged(position, count, payload)
+    }
+}
+
+/**
+ * Shows the items of the list integrator in a RecyclerView. Only the rows on screen (plus what
+ * the RecyclerView caches) have a TimelineEntry, so the cost of binding and the memory used no
+ * longer depend on the length of the loaded history.
+ *
+ * New lists are diffed against the shown one in the background: rows are identified by
+ * (className, id) and only rebound if their orderNumber, dirty flag or entry changed.
+ */
+class TimelineAdapter(private val fragment: BaseFragment) : RecyclerView.Adapter<TimelineAdapter.Holder>() {
+    companion object {
+        val DIFF_CALLBACK = object : DiffUtil.ItemCallback<TimelineRow>() {
+            override fun areItemsTheSame(oldItem: TimelineRow, newItem: TimelineRow): Boolean {
+                val a = oldItem.item
+                val b = newItem.item
+                if (a.className != b.className) {
+                    return false
+                }
+                if ((a.id == null) || (b.id == null)) {
+                    return a.orderNumber == b.orderNumber
+                }
+                return a.id == b.id
+            }
+
+            override fun areContentsTheSame(oldItem: TimelineRow, newItem: TimelineRow): Boolean {
+                return (oldItem.item.orderNumber == newItem.item.orderNumber) &&
+                    (oldItem.dirty == newItem.dirty) &&
+                    (oldItem.entry == newItem.entry)
+            }
+        }
+    }
+
+    class Holder(val timelineEntry: TimelineEntry) : RecyclerView.ViewHolder(timelineEntry.view)
+
+    private val updateCounter = CountingListUpdateCallback(AdapterListUpdateCallback(this))
+    private val differ = AsyncListDiffer(
+        updateCounter, AsyncDifferConfig.Builder(DIFF_CALLBACK).build()
+    )
+
+    var modifiedCallback: Runnable? = null
+
+    val currentList: List<TimelineRow>
+        get() = differ.currentList
+
+    /**
+     * Replaces the shown rows. committed is called with the number of rows that were touched
+     * once the new list is shown.
+     */
+    fun submitList(rows: List<TimelineRow>?, committed: ((Int) -> Unit)? = null) {
+        differ.submitList(rows) {
+            val touchedRows = updateCounter.touchedRows
+            updateCounter.touchedRows = 0
+            committed?.invoke(touchedRows)
+        }
+    }
+
+    override fun getItemCount(): Int {
+        return differ.currentList.size
+    }
+
+    override fun getItemViewType(position: Int): Int {
+        return TimelineEntry.viewType(differ.currentList[position].entry)
+    }
+
+    override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): Holder {
+        val timelineEntry = TimelineEntry(fragment, null, parent)
+        timelineEntry.setModifiedCallback {
+            modifiedCallback?.run()
+        }
+        return Holder(timelineEntry)
+    }
+
+    override fun onBindViewHolder(holder: Holder, position: Int) {
+        holder.timelineEntry.entry = differ.currentList[position].entry
+    }
+}
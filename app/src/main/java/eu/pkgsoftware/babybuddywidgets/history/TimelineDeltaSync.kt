@@ -0,0 +1,84 @@
+package eu.pkgsoftware.babybuddywidgets.history
+
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.TimeEntry
+import kotlin.reflect.KClass
+
+/**
+ * Remembers the total count and the newest entry of every activity class as last seen on the
+ * server. Polls then only need to fetch the newest entry (limit=1) to find out whether a class
+ * changed: if neither the count nor the newest entry differ, nothing needs to be downloaded; if
+ * only new entries were added on top, just these are fetched. Anything else (deletions, edits of
+ * the newest entry) requires a full page reload.
+ *
+ * Edits of older entries change neither the count nor the newest entry, so every
+ * verifyInterval-th check of a class asks for a page reload anyway.
+ */
+class TimelineDeltaSync(val maxDelta: Int, val verifyInterval: Int = 12) {
+    enum class Action {
+        UNCHANGED,
+        PREPEND,
+        RELOAD,
+    }
+
+    class Check(val action: Action, val totalCount: Int, val delta: Int)
+
+    private class ClassState(val totalCount: Int, val newest: TimeEntry?, var checks: Int = 0)
+
+    private val states = mutableMapOf<KClass<*>, ClassState>()
+
+    fun isKnown(type: KClass<*>): Boolean {
+        return states.containsKey(type)
+    }
+
+    /** Records a page of entries fetched from the server */
+    fun pageLoaded(type: KClass<*>, offset: Int, totalCount: Int, entries: List<TimeEntry>) {
+        if (offset == 0) {
+            states[type] = ClassState(totalCount, entries.firstOrNull())
+        } else if (states[type]?.totalCount != totalCount) {
+            // The list changed while paging, the newest entry is not known anymore
+            states.remove(type)
+        }
+    }
+
+    /** Compares the result of a limit=1 query with what is known about the class */
+    fun check(type: KClass<*>, totalCount: Int, newest: TimeEntry?): Check {
+        val state = states[type] ?: return Check(Action.RELOAD, totalCount, 0)
+        state.checks++
+        if (state.checks >= verifyInterval) {
+            return Check(Action.RELOAD, totalCount, 0)
+        }
+        if ((totalCount == state.totalCount) && (newest == state.newest)) {
+            return Check(Action.UNCHANGED, totalCount, 0)
+        }
+        val delta = totalCount - state.totalCount
+        if ((state.newest != null) && (newest != null) && (delta > 0) && (delta <= maxDelta)) {
+            return Check(Action.PREPEND, totalCount, delta)
+        }
+        return Check(Action.RELOAD, totalCount, 0)
+    }
+
+    /**
+     * Verifies the delta + 1 newest entries fetched for a PREPEND check: only if the entry
+     * following the new ones is the known newest entry, the new entries can be put on top of the
+     * known list. Returns false if a full reload is required.
+     */
+    fun applyDelta(type: KClass<*>, check: Check, entries: List<TimeEntry>): Boolean {
+        val state = states[type]
+        if ((state == null) || (check.action != Action.PREPEND) ||
+            (entries.size != check.delta + 1) || (entries[check.delta] != state.newest)
+        ) {
+            states.remove(type)
+            return false
+        }
+        states[type] = ClassState(check.totalCount, entries[0], state.checks)
+        return true
+    }
+
+    fun invalidate(type: KClass<*>) {
+        states.remove(type)
+    }
+
+    fun clear() {
+        states.clear()
+    }
+}
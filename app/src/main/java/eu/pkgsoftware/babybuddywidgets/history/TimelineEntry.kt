@@ -2,6 +2,7 @@ package eu.pkgsoftware.babybuddywidgets.history
 
 import android.view.MotionEvent
 import android.view.View
+import android.view.ViewGroup
 import com.squareup.phrase.Phrase
 import eu.pkgsoftware.babybuddywidgets.BaseFragment
 import eu.pkgsoftware.babybuddywidgets.Constants
@@ -11,14 +12,11 @@ import eu.pkgsoftware.babybuddywidgets.DialogCallback
 import eu.pkgsoftware.babybuddywidgets.R
 import eu.pkgsoftware.babybuddywidgets.databinding.TimelineItemBinding
 import eu.pkgsoftware.babybuddywidgets.networking.BabyBuddyClient
-import eu.pkgsoftware.babybuddywidgets.networking.RequestCodeFailure
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.ChangeEntry
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.FeedingEntry
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.PumpingEntry
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.TimeEntry
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.serverTimeToClientTime
-import kotlinx.coroutines.launch
-import java.io.IOException
 import java.net.MalformedURLException
 import java.text.DateFormat
 import java.text.NumberFormat
@@ -40,13 +38,40 @@ fun interpreteAmountValue(fragment: BaseFragment, amount: Double?): String {
     return result + "\n"
 }
 
-class TimelineEntry(private val fragment: BaseFragment, private var _entry: TimeEntry?) {
+class TimelineEntry(
+    private val fragment: BaseFragment,
+    private var _entry: TimeEntry?,
+    parent: ViewGroup? = null,
+) {
     companion object {
         val DATE_FORMAT = DateFormat.getDateInstance(DateFormat.SHORT)
         val TIME_FORMAT = DateFormat.getTimeInstance(DateFormat.SHORT)
+
+        const val PLACEHOLDER_VIEW_TYPE = 0
+        const val DEFAULT_VIEW_TYPE = 1
+
+        private val VIEW_TYPES = listOf(
+            BabyBuddyClient.ACTIVITIES.TUMMY_TIME,
+            BabyBuddyClient.EVENTS.CHANGE,
+            BabyBuddyClient.ACTIVITIES.SLEEP,
+            BabyBuddyClient.ACTIVITIES.FEEDING,
+            BabyBuddyClient.EVENTS.NOTE,
+            BabyBuddyClient.ACTIVITIES.PUMPING,
+        )
+
+        /** The sub-view an entry is shown with, used as RecyclerView view type */
+        fun viewType(entry: TimeEntry?): Int {
+            if (entry == null) {
+                return PLACEHOLDER_VIEW_TYPE
+            }
+            val i = VIEW_TYPES.indexOf(entry.appType)
+            return if (i < 0) DEFAULT_VIEW_TYPE else DEFAULT_VIEW_TYPE + 1 + i
+        }
     }
 
-    private val binding = TimelineItemBinding.inflate(fragment.mainActivity.layoutInflater)
+    private val binding = TimelineItemBinding.inflate(
+        fragment.mainActivity.layoutInflater, parent, false
+    )
     private var modifiedCallback: Runnable? = null
     private fun hideAllSubviews() {
         for (i in 0 until binding.viewGroup.childCount) {
@@ -71,6 +96,9 @@ class TimelineEntry(private val fragment: BaseFragment, private var _entry: Time
     private fun updateUi() {
         val entry = _entry
         if (entry == null) {
+            // Placeholders take the space of a single line entry
+            hideAllSubviews()
+            binding.defaultView.visibility = View.VISIBLE
             binding.root.visibility = View.INVISIBLE
         } else {
             binding.root.visibility = View.VISIBLE
@@ -290,18 +318,11 @@ class TimelineEntry(private val fragment: BaseFragment, private var _entry: Time
                     if (!b) {
                         return
                     }
-                    val client = fragment.mainActivity.client
-                    fragment.mainActivity.scope.launch {
-                        try {
-                            client.v2client.deleteEntry(thisEntry)
-                            this@TimelineEntry.entry = null
-                            modifiedCallback?.run()
-                        } catch (e: RequestCodeFailure) {
-                            e.printStackTrace()
-                        } catch (e: IOException) {
-                            e.printStackTrace()
-                        }
-                    }                }
+                    // Sent by the outbound queue, the timeline shows it as deleted right away
+                    fragment.mainActivity.outbound.deleteEntry(thisEntry)
+                    this@TimelineEntry.entry = null
+                    modifiedCallback?.run()
+                }
             }
         )
     }
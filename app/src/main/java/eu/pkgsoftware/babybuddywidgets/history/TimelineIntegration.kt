@@ -0,0 +1,330 @@
+package eu.pkgsoftware.babybuddywidgets.history
+
+import eu.pkgsoftware.babybuddywidgets.logic.ContinuousListItem
+import eu.pkgsoftware.babybuddywidgets.logic.EndAwareContinuousListIntegrator
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.PaginatedResult
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.TimeEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.classActivityName
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import kotlin.reflect.KClass
+
+/** What the timeline shows at one point in time. Snapshots are never modified. */
+class TimelineSnapshot(val version: Int, val rows: List<TimelineRow>, val complete: Boolean)
+
+/**
+ * Entries of a child that were created or deleted locally and still wait in the outbound
+ * queue. Created entries have no server id yet, deleted ones may not have one either, so
+ * createdKeys holds a key for each created entry that is unique within the queue, e.g. the
+ * idempotency key of its operation.
+ */
+class PendingEntryChanges(
+    val created: List<TimeEntry>,
+    val deleted: List<TimeEntry>,
+    val createdKeys: List<String> = created.indices.map { it.toString() },
+) {
+    companion object {
+        val NONE = PendingEntryChanges(listOf(), listOf())
+
+        /** Row id of a created entry, server ids are plain numbers and never look like this */
+        fun localItemId(key: String): String = "local:$key"
+    }
+
+    fun isDeleted(entry: TimeEntry): Boolean {
+        return deleted.any {
+            (it::class == entry::class) && (if (it.id != 0) it.id == entry.id else it == entry)
+        }
+    }
+}
+
+/**
+ * Owns the list integrator of a child timeline. All state of this class is confined to a single
+ * background thread: every call hops onto it and calls are executed in the order they were
+ * made, so fetch results are integrated in order and never on the main thread. The UI only
+ * receives finished TimelineSnapshots.
+ *
+ * Only a window of keepPages pages per class on either side of the top of the screen is kept.
+ * Entries above the window become placeholders, entries below it are dropped, so memory does
+ * not depend on how far back the user scrolled. missingPage tells which page to fetch next,
+ * preferring pages in the direction the user scrolls.
+ */
+class TimelineIntegration(
+    private val pageSize: Int,
+    private val classes: List<KClass<out TimeEntry>>,
+    private val keepPages: Int = 3,
+    private val prefetchPages: Int = 2,
+) {
+    private val context = Dispatchers.Default.limitedParallelism(1)
+
+    // className -> id -> entry, only holding entries that the integrator still has items for
+    private val entries = mutableMapOf<String, MutableMap<String, TimeEntry>>()
+    private val listIntegrator = EndAwareContinuousListIntegrator()
+    private val queryOffsets = mutableMapOf<KClass<*>, Int>()
+    private var version = 0
+    private var topOrderNumber: Long? = null
+    private var scrollingUp = false
+
+    private fun toListItem(e: TimeEntry): ContinuousListItem {
+        val result = ContinuousListItem(
+            -e.start.time,
+            e.appType,
+            e.id.toString(),
+        )
+        entries.getOrPut(e.appType) { mutableMapOf() }[result.id!!] = e
+        return result
+    }
+
+    private fun lookupEntry(item: ContinuousListItem): TimeEntry? {
+        return item.id?.let { entries[item.className]?.get(it) }
+    }
+
+    /** Drops the entries of a class that are no longer in the integrator */
+    private fun evictEntries(activityName: String) {
+        val classEntries = entries[activityName] ?: return
+        val ids = listIntegrator.classItems(activityName).mapNotNullTo(HashSet()) { it.id }
+        classEntries.keys.retainAll(ids)
+    }
+
+    private fun updateClass(activityName: String, offset: Int, totalCount: Int, items: Array<ContinuousListItem>) {
+        listIntegrator.updateItemsWithCount(offset, totalCount, activityName, items)
+        trimWindow(activityName)
+        evictEntries(activityName)
+    }
+
+    private fun placeholder(orderNumber: Long, activityName: String): ContinuousListItem {
+        val result = ContinuousListItem(orderNumber, activityName, null)
+        result.dirty = true
+        return result
+    }
+
+    /**
+     * Puts a page into the class list at offset, keeping the items before and after it. The
+     * integrator itself drops everything after a page, and everything before it if the page
+     * lands on placeholders.
+     */
+    private fun splicePage(activityName: String, offset: Int, totalCount: Int, items: Array<ContinuousListItem>) {
+        if (items.isEmpty()) {
+            updateClass(activityName, offset, totalCount, items)
+            return
+        }
+        val current = listIntegrator.classItems(activityName)
+        val pageIds = items.mapNotNullTo(HashSet()) { it.id }
+        val result = ArrayList<ContinuousListItem>(Math.max(current.size, offset + items.size))
+        current.subList(0, Math.min(offset, current.size)).filterTo(result) { it.id !in pageIds }
+        repeat(offset - current.size) {
+            result.add(placeholder(items[0].orderNumber, activityName))
+        }
+        result.addAll(items)
+        if (offset + items.size < current.size) {
+            current.subList(offset + items.size, current.size).filterTo(result) { it.id !in pageIds }
+        }
+        while (result.size > totalCount) {
+            result.removeAt(result.size - 1)
+        }
+        updateClass(activityName, 0, totalCount, result.toTypedArray())
+    }
+
+    /** Turns loaded items above the window into placeholders and drops items below it */
+    private fun trimWindow(activityName: String) {
+        val items = listIntegrator.classItems(activityName)
+        val top = listIntegrator.suggestClassQueryOffset(activityName)
+        val keepStart = top - keepPages * pageSize
+        val keepEnd = Math.min(items.size, top + (keepPages + 1) * pageSize)
+        val loadedAbove = (0 until Math.max(0, keepStart)).any { !items[it].dirty }
+        if (!loadedAbove && (keepEnd == items.size)) {
+            return
+        }
+        val trimmed = Array(keepEnd) {
+            val item = items[it]
+            if ((it < keepStart) && !item.dirty) placeholder(item.orderNumber, activityName) else item
+        }
+        listIntegrator.updateItemsWithCount(
+            0, listIntegrator.getItemsCount(activityName), activityName, trimmed
+        )
+    }
+
+    /** Number of entries held, for tests */
+    suspend fun entryCount(): Int {
+        return withContext(context) {
+            entries.values.sumOf { it.size }
+        }
+    }
+
+    private fun updateQueryOffset(type: KClass<*>): Int {
+        val offset = listIntegrator.suggestClassQueryOffset(classActivityName(type))
+        queryOffsets[type] = offset
+        return offset
+    }
+
+    /**
+     * Adds the pages returned by load for classes that have no items yet. Used for the entries
+     * stored on the device, load is called on the integration thread.
+     */
+    suspend fun addInitialPages(load: (KClass<out TimeEntry>) -> PaginatedResult<TimeEntry>?): Boolean {
+        return withContext(context) {
+            var added = false
+            for (type in classes) {
+                val activityName = classActivityName(type)
+                if (listIntegrator.classElementCount(activityName) > 0) {
+                    continue
+                }
+                val page = load(type) ?: continue
+                updateClass(
+                    activityName,
+                    page.offset,
+                    page.totalCount,
+                    page.entries.map { toListItem(it) }.toTypedArray()
+                )
+                added = true
+            }
+            added
+        }
+    }
+
+    /** Integrates a page of entries fetched from the server */
+    suspend fun addPage(type: KClass<*>, offset: Int, totalCount: Int, entries: List<TimeEntry>) {
+        withContext(context) {
+            splicePage(
+                classActivityName(type),
+                offset,
+                totalCount,
+                entries.map { toListItem(it) }.toTypedArray()
+            )
+            updateQueryOffset(type)
+        }
+    }
+
+    /** Puts entries that are newer than all known entries of the class on top */
+    suspend fun prepend(type: KClass<*>, totalCount: Int, entries: List<TimeEntry>) {
+        withContext(context) {
+            val activityName = classActivityName(type)
+            val currentList = entries.map { toListItem(it) }.toMutableList()
+            currentList.addAll(listIntegrator.classItems(activityName))
+            updateClass(activityName, 0, totalCount, currentList.toTypedArray())
+            updateQueryOffset(type)
+        }
+    }
+
+    /**
+     * Adds an entry that was just created on top, increasing the count of its class. Entries
+     * without a server id are still queued, snapshot shows those from the PendingEntryChanges.
+     */
+    suspend fun addToTop(entry: TimeEntry) {
+        if (entry.id == 0) {
+            return
+        }
+        withContext(context) {
+            val activityName = classActivityName(entry::class)
+            val currentList = listIntegrator.classItems(activityName).toMutableList()
+            currentList.add(0, toListItem(entry))
+            updateClass(activityName, 0, currentList.size, currentList.toTypedArray())
+            updateQueryOffset(entry::class)
+        }
+    }
+
+    /** True if the class has entries, from the device cache or from the server */
+    suspend fun hasEntries(type: KClass<*>): Boolean {
+        return withContext(context) {
+            listIntegrator.classElementCount(classActivityName(type)) > 0
+        }
+    }
+
+    suspend fun queryOffset(type: KClass<*>): Int {
+        return withContext(context) {
+            queryOffsets[type] ?: updateQueryOffset(type)
+        }
+    }
+
+    private fun findMissingPage(type: KClass<*>): Int? {
+        val activityName = classActivityName(type)
+        val items = listIntegrator.classItems(activityName)
+        val totalCount = listIntegrator.getItemsCount(activityName)
+        val top = Math.min(listIntegrator.suggestClassQueryOffset(activityName), totalCount)
+        val isMissing = { i: Int -> (i >= items.size) || items[i].dirty }
+
+        // What is on screen first, then ahead in scroll direction, then behind
+        val below = top + pageSize * (if (scrollingUp) 1 else 1 + prefetchPages)
+        val above = top - pageSize * (if (scrollingUp) prefetchPages else 1)
+        (top until Math.min(totalCount, top + pageSize)).firstOrNull(isMissing)?.let {
+            return it
+        }
+        val missingBelow = (top + pageSize until Math.min(totalCount, below)).firstOrNull(isMissing)
+        val missingAbove = (top - 1 downTo Math.max(0, above)).firstOrNull(isMissing)?.let {
+            Math.max(0, it - pageSize + 1)
+        }
+        return if (scrollingUp) missingAbove ?: missingBelow else missingBelow ?: missingAbove
+    }
+
+    /**
+     * The offset of the next page of the class that should be fetched to fill the window around
+     * the top of the screen, or null if the window is loaded.
+     */
+    suspend fun missingPage(type: KClass<*>): Int? {
+        return withContext(context) {
+            findMissingPage(type)
+        }
+    }
+
+    /**
+     * Moves the top of the timeline to the given item. Returns true if pages around it are
+     * missing.
+     */
+    suspend fun updateTop(top: ContinuousListItem?): Boolean {
+        return withContext(context) {
+            val previous = topOrderNumber
+            if ((top != null) && (previous != null) && (top.orderNumber != previous)) {
+                // orderNumbers are negated start times: older entries further down are larger
+                scrollingUp = top.orderNumber < previous
+            }
+            topOrderNumber = top?.orderNumber
+            listIntegrator.top = top
+            for (type in classes) {
+                updateQueryOffset(type)
+            }
+            classes.any { findMissingPage(it) != null }
+        }
+    }
+
+    /**
+     * Adds the rows of pending creations to rows and hides those of pending deletions, so that
+     * reloading a page from the server does not undo changes that were not sent yet. Created
+     * entries older than the last loaded row are left out until the rows reach them.
+     */
+    private fun applyPending(rows: ArrayList<TimelineRow>, complete: Boolean, pending: PendingEntryChanges) {
+        if (pending.deleted.isNotEmpty()) {
+            rows.removeAll { row -> row.entry?.let { pending.isDeleted(it) } == true }
+        }
+        val lastOrderNumber = rows.lastOrNull()?.item?.orderNumber
+        val shown = rows.mapNotNullTo(HashSet()) { it.entry }
+        for ((i, entry) in pending.created.withIndex()) {
+            if ((entry in shown) || pending.isDeleted(entry)) {
+                continue
+            }
+            val item = ContinuousListItem(
+                -entry.start.time,
+                entry.appType,
+                PendingEntryChanges.localItemId(pending.createdKeys[i]),
+            )
+            if (!complete && (lastOrderNumber != null) && (item.orderNumber > lastOrderNumber)) {
+                continue
+            }
+            val index = rows.indexOfFirst { it.item.orderNumber > item.orderNumber }
+            rows.add(if (index < 0) rows.size else index, TimelineRow(item, entry))
+        }
+    }
+
+    suspend fun snapshot(pending: PendingEntryChanges = PendingEntryChanges.NONE): TimelineSnapshot {
+        return withContext(context) {
+            val items = listIntegrator.items
+            val validCount = listIntegrator.computeValidCount()
+            val rows = ArrayList<TimelineRow>(validCount + pending.created.size)
+            for (i in 0 until validCount) {
+                val item = items[i]
+                rows.add(TimelineRow(item, if (item.dirty) null else lookupEntry(item)))
+            }
+            val complete = validCount == items.size
+            applyPending(rows, complete, pending)
+            TimelineSnapshot(++version, rows, complete)
+        }
+    }
+}
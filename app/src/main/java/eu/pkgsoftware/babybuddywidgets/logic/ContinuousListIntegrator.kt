@@ -1,5 +1,7 @@
 package eu.pkgsoftware.babybuddywidgets.logic
 
+import java.util.PriorityQueue
+
 class ContinuousListItem(val orderNumber: Long, val className: String, val id: String?) {
     var dirty = false
     var userdata: Any? = null
@@ -29,14 +31,42 @@ class ContinuousListItem(val orderNumber: Long, val className: String, val id: S
     }
 }
 
+/**
+ * Integrates pages of several independently paginated lists ("classes") into a single list
+ * ordered by orderNumber. Gaps in front of a page are padded with dirty dummy items.
+ *
+ * Every class is kept as its own sorted list. Updating a class only touches the affected page
+ * of that list; the merged list is produced lazily by a k-way merge of the class lists and cached
+ * until the next modification. Items with equal orderNumber are kept in insertion order.
+ */
 open class ContinuousListIntegrator {
+    private class Slot(val item: ContinuousListItem, val sequence: Long)
+
+    private val SLOT_ORDER = Comparator<Slot> { a, b ->
+        val c = a.item.orderNumber.compareTo(b.item.orderNumber)
+        if (c != 0) c else a.sequence.compareTo(b.sequence)
+    }
+
     private var topOffset = Long.MIN_VALUE
-    private val listItems = mutableListOf<ContinuousListItem>()
+    private var sequenceCounter = 0L
+    private val classSlots = mutableMapOf<String, MutableList<Slot>>()
+
+    private var mergedCache: Array<ContinuousListItem>? = null
+    private var nonDirtyCache: Array<ContinuousListItem>? = null
+
+    /** The merged list. The returned array is shared and must not be modified. */
+    val items: Array<ContinuousListItem> get() = merged()
+
+    /** The merged list without dummy items. The returned array is shared and must not be modified. */
+    val nonDirtyItems: Array<ContinuousListItem>
+        get() {
+            return nonDirtyCache ?: merged().filter { !it.dirty }.toTypedArray().also {
+                nonDirtyCache = it
+            }
+        }
 
-    val items get() = listItems.toTypedArray()
-    val nonDirtyItems get() = listItems.filter { !it.dirty }.toTypedArray()
     var top: ContinuousListItem?
-        get() = nonDirtyItems.minByOrNull { Math.abs(it.orderNumber - topOffset) }
+        get() = topSlot()?.item
         set(v) {
             if (v == null) {
                 selectTop(Long.MIN_VALUE)
@@ -55,117 +85,346 @@ open class ContinuousListIntegrator {
         return dummy
     }
 
+    private fun newSlot(item: ContinuousListItem): Slot {
+        return Slot(item, sequenceCounter++)
+    }
+
+    private fun invalidate() {
+        mergedCache = null
+        nonDirtyCache = null
+    }
+
     open fun updateItems(listOffset: Int, className: String, items: Array<ContinuousListItem>) {
-        val currentItems = listItems.filter { it.className == className }
+        val currentItems = classSlots.getOrPut(className) { ArrayList() }
         if (items.size > 0) {
             integrateListWithItems(currentItems, items, listOffset, className)
         } else {
             integrateEmptyList(currentItems, listOffset, className)
         }
-        listItems.sortBy { it.orderNumber }
+        if (currentItems.isEmpty()) {
+            classSlots.remove(className)
+        }
+        invalidate()
     }
 
     private fun integrateEmptyList(
-        currentItems: List<ContinuousListItem>,
+        currentItems: MutableList<Slot>,
         listOffset: Int,
         className: String
     ) {
         val lastOrderNumbers =
             if (currentItems.isNotEmpty()) {
-                currentItems.last().orderNumber
-            } else if (listItems.isNotEmpty()) {
-                listItems.last().orderNumber
+                currentItems.last().item.orderNumber
             } else {
-                Long.MIN_VALUE
+                classSlots.values.maxOfOrNull {
+                    if (it.isEmpty()) Long.MIN_VALUE else it.last().item.orderNumber
+                } ?: Long.MIN_VALUE
             };
         if (listOffset > currentItems.size) {
-            listItems.addAll((0 until listOffset - currentItems.size).map {
-                newDummy(lastOrderNumbers, className)
-            })
+            // Dummies sort behind everything else of the class, no need to search a position
+            repeat(listOffset - currentItems.size) {
+                currentItems.add(newSlot(newDummy(lastOrderNumbers, className)))
+            }
         } else if (listOffset < currentItems.size) {
-            listItems.removeAll(currentItems.slice(listOffset until currentItems.size))
+            truncate(currentItems, listOffset)
         }
     }
 
     private fun integrateListWithItems(
-        currentItems: List<ContinuousListItem>,
+        currentItems: MutableList<Slot>,
         items: Array<ContinuousListItem>,
         listOffset: Int,
         className: String
     ) {
-        val foundOffset =
-            if (currentItems.isNotEmpty()) {
-                currentItems.indexOf(items[0])
-            } else {
-                -1
-            };
-        val initialOrderNumber =
-            if (items.isNotEmpty()) {
-                items[0].orderNumber
-            } else if (listItems.size > 0) {
-                listItems[0].orderNumber
-            } else {
-                Long.MIN_VALUE
-            };
-        if (foundOffset < 0) {
-            // We have nothing to go off, we need to trust the listOffset itself and pad everything with dummy values
-            listItems.removeAll(currentItems)
-            listItems.addAll((0 until listOffset).map {
-                newDummy(initialOrderNumber, className)
-            })
-            listItems.addAll(items)
-        } else if (foundOffset == listOffset) {
+        val foundOffset = indexOfItem(currentItems, items[0])
+        if (foundOffset == listOffset) {
             // All good, we can go and combine things
             var equalLen = 0
             val foundOffsetRemainder = currentItems.size - foundOffset
-            for (i in 0 until Math.min(foundOffsetRemainder, items.size)) {
-                if (currentItems[foundOffset + i] != items[i]) {
+            while (equalLen < Math.min(foundOffsetRemainder, items.size)) {
+                if (currentItems[foundOffset + equalLen].item != items[equalLen]) {
                     break
                 }
-                equalLen = i + 1
+                equalLen++
             }
 
-            listItems.removeAll(
-                currentItems.slice(foundOffset + equalLen until currentItems.size)
-            )
-            listItems.addAll(items.slice(equalLen until items.size))
+            truncate(currentItems, foundOffset + equalLen)
+            insertSorted(currentItems, (equalLen until items.size).map { newSlot(items[it]) })
         } else {
-            listItems.removeAll(currentItems)
-            listItems.addAll((0 until listOffset).map {
-                newDummy(initialOrderNumber, className)
-            })
-            listItems.addAll(items)
+            // We have nothing to go off, we need to trust the listOffset itself and pad everything with dummy values
+            val initialOrderNumber = items[0].orderNumber
+            currentItems.clear()
+            val added = ArrayList<Slot>(listOffset + items.size)
+            repeat(listOffset) {
+                added.add(newSlot(newDummy(initialOrderNumber, className)))
+            }
+            items.forEach { added.add(newSlot(it)) }
+            insertSorted(currentItems, added)
+        }
+    }
+
+    /**
+     * Removes all slots starting at index from. Retained items equal to a removed one are dropped
+     * as well, so that duplicates delivered by overlapping pages do not survive.
+     */
+    private fun truncate(slots: MutableList<Slot>, from: Int) {
+        val tail = slots.subList(from, slots.size)
+        val removed = tail.map { it.item }
+        tail.clear()
+        for (item in removed) {
+            var i = indexOfItem(slots, item)
+            while (i >= 0) {
+                slots.removeAt(i)
+                i = indexOfItem(slots, item)
+            }
+        }
+    }
+
+    /**
+     * Adds slots to a sorted class list. Pages usually continue behind the retained part of the
+     * list, in which case this is a plain append; otherwise both lists are merged.
+     */
+    private fun insertSorted(target: MutableList<Slot>, added: List<Slot>) {
+        if (added.isEmpty()) {
+            return
+        }
+        val sortedAdded = if (isSorted(added)) added else added.sortedWith(SLOT_ORDER)
+        if (target.isEmpty() || SLOT_ORDER.compare(target.last(), sortedAdded.first()) <= 0) {
+            target.addAll(sortedAdded)
+            return
+        }
+
+        val merged = ArrayList<Slot>(target.size + sortedAdded.size)
+        var i = 0
+        var j = 0
+        while ((i < target.size) && (j < sortedAdded.size)) {
+            if (SLOT_ORDER.compare(target[i], sortedAdded[j]) <= 0) {
+                merged.add(target[i++])
+            } else {
+                merged.add(sortedAdded[j++])
+            }
+        }
+        merged.addAll(target.subList(i, target.size))
+        merged.addAll(sortedAdded.subList(j, sortedAdded.size))
+        target.clear()
+        target.addAll(merged)
+    }
+
+    private fun isSorted(slots: List<Slot>): Boolean {
+        for (i in 1 until slots.size) {
+            if (SLOT_ORDER.compare(slots[i - 1], slots[i]) > 0) {
+                return false
+            }
+        }
+        return true
+    }
+
+    /** Same as indexOf(item), but only looks at the items with the same orderNumber */
+    private fun indexOfItem(slots: List<Slot>, item: ContinuousListItem): Int {
+        var i = lowerBound(slots.size, item.orderNumber) { slots[it].item.orderNumber }
+        while ((i < slots.size) && (slots[i].item.orderNumber == item.orderNumber)) {
+            if (item == slots[i].item) {
+                return i
+            }
+            i++
+        }
+        return -1
+    }
+
+    private fun merged(): Array<ContinuousListItem> {
+        mergedCache?.let { return it }
+
+        val lists = classSlots.values.filter { it.isNotEmpty() }
+        val positions = IntArray(lists.size)
+        val heap = PriorityQueue<Int>(Math.max(1, lists.size)) { a, b ->
+            SLOT_ORDER.compare(lists[a][positions[a]], lists[b][positions[b]])
+        }
+        lists.indices.forEach { heap.add(it) }
+
+        val result = ArrayList<ContinuousListItem>(lists.sumOf { it.size })
+        while (heap.isNotEmpty()) {
+            val l = heap.poll()!!
+            result.add(lists[l][positions[l]].item)
+            positions[l]++
+            if (positions[l] < lists[l].size) {
+                heap.add(l)
+            }
+        }
+        return result.toTypedArray().also { mergedCache = it }
+    }
+
+    /** Looks up the top item in every class list, without building the merged list */
+    private fun topSlot(): Slot? {
+        var best: Slot? = null
+        var bestDistance = 0L
+        for (slots in classSlots.values) {
+            val i = closestIndex(
+                slots.size, topOffset, { slots[it].item.orderNumber }, { slots[it].item.dirty }
+            )
+            if (i < 0) {
+                continue
+            }
+            val distance = Math.abs(slots[i].item.orderNumber - topOffset)
+            if ((best == null) || (distance < bestDistance) ||
+                ((distance == bestDistance) && (SLOT_ORDER.compare(slots[i], best) < 0))
+            ) {
+                best = slots[i]
+                bestDistance = distance
+            }
         }
+        return best
+    }
+
+    private fun topIndex(all: Array<ContinuousListItem>): Int {
+        return closestIndex(all.size, topOffset, { all[it].orderNumber }, { all[it].dirty })
     }
 
     open fun clear() {
         top = null
-        listItems.clear()
+        classSlots.clear()
+        invalidate()
+    }
+
+    /** Number of items in the merged list; does not build the merged list */
+    val size: Int get() = classSlots.values.sumOf { it.size }
+
+    /**
+     * Same as items.indexOf(classItems(className)[classIndex]), but computed by binary searches
+     * in the class lists instead of building and scanning the merged list.
+     */
+    protected fun mergedIndexOf(className: String, classIndex: Int): Int {
+        val slots = classSlots[className] ?: return -1
+        val first = indexOfItem(slots, slots[classIndex].item)
+        val slot = slots[first]
+        var result = first
+        for ((otherName, otherSlots) in classSlots) {
+            if (otherName != className) {
+                result += countBefore(otherSlots, slot)
+            }
+        }
+        return result
+    }
+
+    private fun countBefore(slots: List<Slot>, slot: Slot): Int {
+        var lo = 0
+        var hi = slots.size
+        while (lo < hi) {
+            val mid = (lo + hi) ushr 1
+            if (SLOT_ORDER.compare(slots[mid], slot) < 0) {
+                lo = mid + 1
+            } else {
+                hi = mid
+            }
+        }
+        return lo
     }
 
     fun classElementCount(className: String): Int {
-        return listItems.count { it.className == className }
+        return classSlots[className]?.size ?: 0
+    }
+
+    /** The items of a single class, in list order */
+    fun classItems(className: String): List<ContinuousListItem> {
+        return classSlots[className]?.map { it.item } ?: listOf()
     }
 
     fun nElementsFromTop(startOffset: Int, n: Int): Array<ContinuousListItem> {
-        val topOffset = listItems.indexOf(this.top)
+        val listItems = merged()
+        val topOffset = topIndex(listItems)
         if (topOffset == -1) {
             return arrayOf()
         }
 
         val start = Math.min(listItems.size - 1, Math.max(0, topOffset + startOffset))
         val count = Math.min(n, Math.max(0, listItems.size - (topOffset + startOffset)))
-        return listItems.slice(start until start + count).toTypedArray()
+        return listItems.copyOfRange(start, start + count)
     }
 
     fun suggestClassQueryOffset(className: String): Int {
-        val currentItems = listItems.filter { it.className == className }
+        val currentItems = classSlots[className] ?: return 0
+        val selected = closestIndex(
+            currentItems.size, topOffset, { currentItems[it].item.orderNumber }, { false }
+        )
+        return Math.max(0, selected)
+    }
+}
 
-        val selected = currentItems.minByOrNull { Math.abs(it.orderNumber - topOffset) }
-        if (selected == null) {
-            return 0
+private fun lowerBound(size: Int, value: Long, orderAt: (Int) -> Long): Int {
+    var lo = 0
+    var hi = size
+    while (lo < hi) {
+        val mid = (lo + hi) ushr 1
+        if (orderAt(mid) < value) {
+            lo = mid + 1
+        } else {
+            hi = mid
         }
+    }
+    return lo
+}
+
+private fun distanceFits(a: Long, b: Long): Boolean {
+    val d = a - b
+    return ((a xor b) and (a xor d)) >= 0 && d != Long.MIN_VALUE
+}
 
-        return currentItems.indexOf(selected)
+/**
+ * Index of the first item (in list order) minimizing abs(orderNumber - target), skipping
+ * items for which skip returns true, or -1. The items must be sorted by orderNumber.
+ * Binary searches for the target unless the distances overflow, in which case the
+ * wrapped-around distances are not monotonic anymore and all items are scanned.
+ */
+private fun closestIndex(
+    size: Int,
+    target: Long,
+    orderAt: (Int) -> Long,
+    skip: (Int) -> Boolean
+): Int {
+    if (size == 0) {
+        return -1
     }
-}
\ No newline at end of file
+    if (!distanceFits(orderAt(0), target) || !distanceFits(orderAt(size - 1), target)) {
+        var best = -1
+        var bestDistance = 0L
+        for (i in 0 until size) {
+            if (skip(i)) {
+                continue
+            }
+            val d = Math.abs(orderAt(i) - target)
+            if ((best < 0) || (d < bestDistance)) {
+                best = i
+                bestDistance = d
+            }
+        }
+        return best
+    }
+
+    val bound = lowerBound(size, target, orderAt)
+    var above = bound
+    while ((above < size) && skip(above)) {
+        above++
+    }
+    var below = bound - 1
+    while ((below >= 0) && skip(below)) {
+        below--
+    }
+    if (below >= 0) {
+        // Several items may share the orderNumber, the first one wins
+        val orderNumber = orderAt(below)
+        var i = below - 1
+        while ((i >= 0) && (orderAt(i) == orderNumber)) {
+            if (!skip(i)) {
+                below = i
+            }
+            i--
+        }
+    }
+
+    if (below < 0) {
+        return if (above < size) above else -1
+    }
+    if (above >= size) {
+        return below
+    }
+    return if (target - orderAt(below) <= orderAt(above) - target) below else above
+}
@@ -1,21 +1,31 @@
 package eu.pkgsoftware.babybuddywidgets.logic
 
+/**
+ * ContinuousListIntegrator that also knows the total number of items of each class. Items behind
+ * the last loaded item of a class that has more items on the server are not "valid" yet, because
+ * items of that class may still be missing in between. The number of valid items is recomputed
+ * on every update so that computeValidCount() is cheap.
+ */
 class EndAwareContinuousListIntegrator : ContinuousListIntegrator() {
     private val itemCounts = mutableMapOf<String, Int>()
+    private var validCount = 0
 
     fun updateItemsWithCount(listOffset: Int, totalCount: Int, className: String, items: Array<ContinuousListItem>) {
         itemCounts.put(className, totalCount)
         super.updateItems(listOffset, className, items)
+        updateValidCount()
     }
 
     override fun updateItems(listOffset: Int, className: String, items: Array<ContinuousListItem>) {
         itemCounts.remove(className)
         super.updateItems(listOffset, className, items)
+        updateValidCount()
     }
 
     override fun clear() {
         itemCounts.clear()
         super.clear()
+        validCount = 0
     }
 
     fun getItemsCount(className: String): Int {
@@ -23,30 +33,26 @@ class EndAwareContinuousListIntegrator : ContinuousListIntegrator() {
     }
 
     fun computeValidCount(): Int {
-        val allItems = super.items
-        val itemsByClass = mutableMapOf<String, MutableList<ContinuousListItem>>()
-        for (item in allItems) {
-            val l = itemsByClass.computeIfAbsent(item.className) {
-                mutableListOf()
-            }
-            l.add(item)
-        }
+        return validCount
+    }
 
-        var validCount = allItems.size
+    private fun updateValidCount() {
+        var result = size
         for ((className, count) in itemCounts) {
             if (count == 0) {
                 continue
             }
-            val items = itemsByClass[className]
-            if (items == null || items.isEmpty()) {
-                return 0
+            val classCount = classElementCount(className)
+            if (classCount == 0) {
+                result = 0
+                break
             }
-            if (count == items.size) {
+            if (count == classCount) {
                 continue // Complete list is not contributing to invalid tail
             }
-            val lastValidClassItem = allItems.indexOf(items[Math.min(count, items.size) - 1])
-            validCount = Math.min(validCount, lastValidClassItem + 1)
+            val lastValidClassItem = mergedIndexOf(className, Math.min(count, classCount) - 1)
+            result = Math.min(result, lastValidClassItem + 1)
         }
-        return validCount
+        validCount = result
     }
-}
\ No newline at end of file
+}
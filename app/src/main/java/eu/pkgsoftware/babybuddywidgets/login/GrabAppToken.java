@@ -25,7 +25,6 @@ Search HTML for "api_key_regenerate", <div>, then find the first "code like"
 text node before that input.
  */
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -44,6 +43,7 @@ import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import eu.pkgsoftware.babybuddywidgets.SharedObjectMapper;
 import eu.pkgsoftware.babybuddywidgets.networking.StreamReader;
 import eu.pkgsoftware.babybuddywidgets.networking.UserFormInteractions;
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.Profile;
@@ -267,8 +267,7 @@ public class GrabAppToken extends StreamReader {
         }
 
         String json = loadHttpData(con);
-        ObjectMapper mapper = new ObjectMapper();
-        Profile profile = mapper.readValue(json, Profile.class);
+        Profile profile = SharedObjectMapper.getMapper().readValue(json, Profile.class);
         return profile.getApiKey();
     }
 
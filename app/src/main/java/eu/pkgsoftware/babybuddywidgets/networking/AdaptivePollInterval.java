@@ -0,0 +1,95 @@
+package eu.pkgsoftware.babybuddywidgets.networking;
+
+import androidx.annotation.NonNull;
+import eu.pkgsoftware.babybuddywidgets.debugging.GlobalDebugObject;
+
+/**
+ * Computes the polling interval for a StateObserver. Polls run at the base interval while
+ * something is actively happening (a timer is running, or the data / a local modification changed
+ * recently) and back off gradually up to maxInterval while responses stay unchanged.
+ * <p>
+ * Pausing while the app is in the background or the screen is off is not handled here: the
+ * ChildrenStateTracker is closed in LoggedInFragment.onPause and recreated in onResume.
+ */
+public class AdaptivePollInterval {
+    public enum Policy {
+        ACTIVE,
+        RECENT_CHANGE,
+        BACKOFF,
+    }
+
+    public static final double BACKOFF_FACTOR = 1.5;
+    public static final int UNCHANGED_GRACE_COUNT = 5;
+    public static final long RECENT_CHANGE_WINDOW_MS = 30000;
+
+    private final String name;
+    private final long baseInterval;
+    private final long maxInterval;
+
+    private boolean active = false;
+    private long lastChangeTime = Long.MIN_VALUE / 2;
+    private int unchangedCount = 0;
+
+    private Policy lastPolicy = null;
+    private long lastInterval = -1;
+
+    public AdaptivePollInterval(@NonNull String name, long baseInterval, long maxInterval) {
+        if (baseInterval <= 0 || maxInterval < baseInterval) {
+            throw new IllegalArgumentException("invalid intervals");
+        }
+        this.name = name;
+        this.baseInterval = baseInterval;
+        this.maxInterval = maxInterval;
+    }
+
+    /** Marks that something is running (for example an active timer) that warrants fast polls */
+    public void setActive(boolean active) {
+        this.active = active;
+    }
+
+    /** Call after the app modified data locally; polls will be fast for a while */
+    public void notifyLocalChange(long now) {
+        lastChangeTime = now;
+        unchangedCount = 0;
+    }
+
+    /** Call for each completed poll; changed is false if the response equals the previous one */
+    public void pollCompleted(boolean changed, long now) {
+        if (changed) {
+            lastChangeTime = now;
+            unchangedCount = 0;
+        } else if (unchangedCount < Integer.MAX_VALUE) {
+            unchangedCount++;
+        }
+    }
+
+    @NonNull
+    public Policy getPolicy(long now) {
+        if (active) {
+            return Policy.ACTIVE;
+        }
+        if (now - lastChangeTime < RECENT_CHANGE_WINDOW_MS) {
+            return Policy.RECENT_CHANGE;
+        }
+        return Policy.BACKOFF;
+    }
+
+    public long getInterval(long now) {
+        final Policy policy = getPolicy(now);
+        long interval = baseInterval;
+        if (policy == Policy.BACKOFF) {
+            int steps = Math.max(0, unchangedCount - UNCHANGED_GRACE_COUNT);
+            double scaled = baseInterval * Math.pow(BACKOFF_FACTOR, Math.min(steps, 64));
+            interval = (long) Math.min(maxInterval, scaled);
+        }
+
+        if ((policy != lastPolicy) || (interval != lastInterval)) {
+            GlobalDebugObject.log(
+                "AdaptivePollInterval " + name + ": policy=" + policy + " interval=" + interval + "ms"
+            );
+            lastPolicy = policy;
+            lastInterval = interval;
+        }
+        return interval;
+    }
+}
@@ -3,16 +3,17 @@ package eu.pkgsoftware.babybuddywidgets.networking;
 import android.os.Handler;
 import android.os.Looper;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
 import org.jetbrains.annotations.NotNull;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
@@ -33,8 +34,15 @@ import java.util.TimeZone;
 import androidx.annotation.NonNull;
 import eu.pkgsoftware.babybuddywidgets.Constants;
 import eu.pkgsoftware.babybuddywidgets.CredStore;
+import eu.pkgsoftware.babybuddywidgets.SharedObjectMapper;
 import eu.pkgsoftware.babybuddywidgets.debugging.GlobalDebugObject;
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.Client;
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.DateHandlingKt;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
 
 public class BabyBuddyClient extends StreamReader {
     public static final String DATE_FORMAT_STRING = "yyyy-MM-dd'T'HH:mm:ssX";
@@ -95,25 +103,140 @@ public class BabyBuddyClient extends StreamReader {
         }
     }
 
-    private static Date parseNullOrDate(JSONObject o, String field) throws JSONException, ParseException {
-        if (o.isNull(field)) {
+    private static Date parseNullOrDate(String strDate) throws ParseException {
+        if (strDate == null) {
             return null;
         }
-        final SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT_STRING, Locale.ENGLISH);
+        final long millis = DateHandlingKt.parseServerTimestampMillis(strDate);
+        if (millis != DateHandlingKt.INVALID_TIMESTAMP) {
+            return new Date(millis);
+        }
 
-        // Remove milliseconds
-        String strDate = o.getString(field);
+        // Lenient fallback; remove milliseconds
+        final SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT_STRING, Locale.ENGLISH);
         strDate = strDate.replaceAll("\\.[0-9]+([+-Z])", "$1");
         strDate = strDate.replaceAll("Z$", "+00:00");
         return sdf.parse(strDate);
     }
 
-    private static String dateToString(Date date) {
-        if (date == null) {
+    /*
+     * Token level helpers for the response parsers below. Model objects are populated directly
+     * from the parser without building an intermediate tree. Every readX helper expects the
+     * parser to be positioned on the value token.
+     */
+
+    private static JsonParser createParser(String json) throws IOException {
+        return SharedObjectMapper.getMapper().getFactory().createParser(json);
+    }
+
+    private static JsonParser createParser(InputStream in) throws IOException {
+        return SharedObjectMapper.getMapper().getFactory().createParser(in);
+    }
+
+    private static void expectToken(JsonParser p, JsonToken token) throws IOException {
+        if (p.currentToken() != token) {
+            throw new JsonParseException(p, "Expected " + token + " but found " + p.currentToken());
+        }
+    }
+
+    private static int readInt(JsonParser p) throws IOException {
+        switch (p.currentToken()) {
+            case VALUE_NUMBER_INT:
+                return p.getIntValue();
+            case VALUE_NUMBER_FLOAT:
+                return (int) p.getDoubleValue();
+            case VALUE_STRING:
+                try {
+                    return (int) Double.parseDouble(p.getText().trim());
+                } catch (NumberFormatException e) {
+                    throw new JsonParseException(p, "Not a number: " + p.getText());
+                }
+            default:
+                throw new JsonParseException(p, "Expected a number but found " + p.currentToken());
+        }
+    }
+
+    private static String readNullableString(JsonParser p) throws IOException {
+        final JsonToken token = p.currentToken();
+        if (token == JsonToken.VALUE_NULL) {
             return null;
         }
-        final SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT_STRING, Locale.ENGLISH);
-        return sdf.format(date);
+        if (!token.isScalarValue()) {
+            throw new JsonParseException(p, "Expected a value but found " + token);
+        }
+        return p.getText();
+    }
+
+    private static boolean readBoolean(JsonParser p, boolean fallback) throws IOException {
+        switch (p.currentToken()) {
+            case VALUE_TRUE:
+                return true;
+            case VALUE_FALSE:
+                return false;
+            case VALUE_STRING:
+                if ("true".equalsIgnoreCase(p.getText())) {
+                    return true;
+                } else if ("false".equalsIgnoreCase(p.getText())) {
+                    return false;
+                }
+                return fallback;
+            default:
+                p.skipChildren();
+                return fallback;
+        }
+    }
+
+    private static void requireField(JsonParser p, boolean present, String field) throws IOException {
+        if (!present) {
+            throw new JsonParseException(p, "Missing field " + field);
+        }
+    }
+
+    private interface ItemParser<T> {
+        T parse(@NonNull JsonParser p) throws IOException, ParseException;
+    }
+
+    private static class PaginatedList<T> {
+        int count = -1;
+        List<T> results = null;
+    }
+
+    /**
+     * Parses a paginated response of the form {"count": n, "results": [...]}. Unknown fields are
+     * skipped; itemParser is called with the parser positioned on each START_OBJECT of the
+     * results array. p must not have been advanced yet.
+     */
+    private static <T> PaginatedList<T> parsePaginatedList(
+        JsonParser p, ItemParser<T> itemParser
+    ) throws IOException, ParseException {
+        p.nextToken();
+        expectToken(p, JsonToken.START_OBJECT);
+        PaginatedList<T> result = new PaginatedList<>();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = p.currentName();
+            p.nextToken();
+            if ("count".equals(field)) {
+                result.count = readInt(p);
+            } else if ("results".equals(field)) {
+                expectToken(p, JsonToken.START_ARRAY);
+                result.results = new ArrayList<>();
+                while (p.nextToken() != JsonToken.END_ARRAY) {
+                    result.results.add(itemParser.parse(p));
+                }
+            } else {
+                p.skipChildren();
+            }
+        }
+        requireField(p, result.results != null, "results");
+        return result;
+    }
+
+    /** Adapts a parser for a single object to a ResponseParser for a response of that object */
+    private static <T> ResponseParser<T> singleObject(ItemParser<T> itemParser) {
+        return p -> {
+            p.nextToken();
+            return itemParser.parse(p);
+        };
     }
 
     private static String dateToQueryString(Date date) {
@@ -167,8 +290,12 @@ public class BabyBuddyClient extends StreamReader {
             return result.toString();
         }
 
-        public JSONObject toJsonObject() {
-            return new JSONObject(queryValues);
+        public String toJsonString() {
+            try {
+                return SharedObjectMapper.getMapper().writeValueAsString(queryValues);
+            } catch (IOException e) {
+                throw new RuntimeException("ERROR should not happen", e);
+            }
         }
     }
 
@@ -191,32 +318,43 @@ public class BabyBuddyClient extends StreamReader {
                 Objects.equals(birth_date, child.birth_date);
         }
 
-        public static Child fromJSON(String s) throws JSONException {
-            return fromJSON(new JSONObject(s));
+        public static Child fromJSON(String s) throws IOException {
+            try (JsonParser p = createParser(s)) {
+                p.nextToken();
+                return fromJSON(p);
+            }
         }
 
-        public static Child fromJSON(JSONObject obj) throws JSONException {
+        public static Child fromJSON(JsonParser p) throws IOException {
+            expectToken(p, JsonToken.START_OBJECT);
             Child c = new Child();
-            c.id = obj.getInt("id");
-            c.slug = obj.getString("slug");
-            c.first_name = obj.getString("first_name");
-            c.last_name = obj.getString("last_name");
-            c.birth_date = obj.getString("birth_date");
-            return c;
-        }
-
-        public JSONObject toJSON() {
-            JSONObject o = new JSONObject();
-            try {
-                o.put("id", id);
-                o.put("slug", slug);
-                o.put("first_name", first_name);
-                o.put("last_name", last_name);
-                o.put("birth_date", birth_date);
-            } catch (JSONException e) {
-                throw new RuntimeException("ERROR should not happen");
+            boolean hasId = false;
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = p.currentName();
+                p.nextToken();
+                switch (field) {
+                    case "id":
+                        c.id = readInt(p);
+                        hasId = true;
+                        break;
+                    case "slug":
+                        c.slug = readNullableString(p);
+                        break;
+                    case "first_name":
+                        c.first_name = readNullableString(p);
+                        break;
+                    case "last_name":
+                        c.last_name = readNullableString(p);
+                        break;
+                    case "birth_date":
+                        c.birth_date = readNullableString(p);
+                        break;
+                    default:
+                        p.skipChildren();
+                }
             }
-            return o;
+            requireField(p, hasId, "id");
+            return c;
         }
     }
 
@@ -244,33 +382,60 @@ public class BabyBuddyClient extends StreamReader {
             return new Date(serverMillis);
         }
 
-        public static Timer fromJSON(JSONObject obj) throws JSONException, ParseException {
-            Timer t = new Timer();
-            t.id = obj.getInt("id");
-            t.child_id = obj.isNull("child") ? null : obj.getInt("child");
-            t.name = obj.isNull("name") ? null : obj.getString("name");
-            t.start = parseNullOrDate(obj, "start");
-            t.end = parseNullOrDate(obj, "end");
-            // Starting at v2.0 of baby buddy, the active-field is gone. Timers are always active when present!
-            t.active = obj.optBoolean("active", true);
-            t.user_id = obj.getInt("user");
-            return t;
+        public static Timer fromJSON(String s) throws IOException, ParseException {
+            try (JsonParser p = createParser(s)) {
+                p.nextToken();
+                return fromJSON(p);
+            }
         }
 
-        public JSONObject toJSON() {
-            JSONObject o = new JSONObject();
-            try {
-                o.put("id", id);
-                o.put("child", child_id);
-                o.put("name", name);
-                o.put("start", dateToString(start));
-                o.put("end", dateToString(end));
-                o.put("active", active);
-                o.put("user", user_id);
-            } catch (JSONException e) {
-                throw new RuntimeException("ERROR should not happen");
+        public static Timer fromJSON(JsonParser p) throws IOException, ParseException {
+            expectToken(p, JsonToken.START_OBJECT);
+            Timer t = new Timer();
+            // Starting at v2.0 of baby buddy, the active-field is gone. Timers are always active when present!
+            t.active = true;
+            boolean hasId = false;
+            boolean hasUser = false;
+            String start = null;
+            String end = null;
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = p.currentName();
+                p.nextToken();
+                switch (field) {
+                    case "id":
+                        t.id = readInt(p);
+                        hasId = true;
+                        break;
+                    case "child":
+                        t.child_id = p.currentToken() == JsonToken.VALUE_NULL ? null : readInt(p);
+                        break;
+                    case "name":
+                        t.name = readNullableString(p);
+                        break;
+                    case "start":
+                        start = readNullableString(p);
+                        break;
+                    case "end":
+                        end = readNullableString(p);
+                        break;
+                    case "active":
+                        t.active = readBoolean(p, true);
+                        break;
+                    case "user":
+                        t.user_id = readInt(p);
+                        hasUser = true;
+                        break;
+                    default:
+                        p.skipChildren();
+                }
             }
-            return o;
+            requireField(p, hasId, "id");
+            requireField(p, hasUser, "user");
+            // Dates are converted after the object was consumed so that a ParseException leaves
+            // the parser at a well-defined position
+            t.start = parseNullOrDate(start);
+            t.end = parseNullOrDate(end);
+            return t;
         }
 
         @Override
@@ -314,19 +479,54 @@ public class BabyBuddyClient extends StreamReader {
         public Date end;
         public String notes;
 
-        public static TimeEntry fromJsonObject(JSONObject json, String type) throws JSONException, ParseException {
+        public static TimeEntry fromJSON(String s, String type) throws IOException, ParseException {
+            try (JsonParser p = createParser(s)) {
+                p.nextToken();
+                return fromJSON(p, type);
+            }
+        }
+
+        public static TimeEntry fromJSON(JsonParser p, String type) throws IOException, ParseException {
+            expectToken(p, JsonToken.START_OBJECT);
+            int id = 0;
+            boolean hasId = false;
+            String milestone = null;
             String notes = null;
-            if (json.has("milestone")) {
-                notes = json.getString("milestone");
+            String start = null;
+            String end = null;
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = p.currentName();
+                p.nextToken();
+                switch (field) {
+                    case "id":
+                        id = readInt(p);
+                        hasId = true;
+                        break;
+                    case "milestone":
+                        milestone = readNullableString(p);
+                        break;
+                    case "notes":
+                        notes = readNullableString(p);
+                        break;
+                    case "start":
+                        start = readNullableString(p);
+                        break;
+                    case "end":
+                        end = readNullableString(p);
+                        break;
+                    default:
+                        p.skipChildren();
+                }
             }
-            if (json.has("notes")) {
-                notes = json.getString("notes");
+            requireField(p, hasId, "id");
+            if (notes == null) {
+                notes = milestone;
             }
             return new TimeEntry(
                 type,
-                json.getInt("id"),
-                parseNullOrDate(json, "start"),
-                parseNullOrDate(json, "end"),
+                id,
+                parseNullOrDate(start),
+                parseNullOrDate(end),
                 notes == null ? "" : notes
             );
         }
@@ -403,11 +603,12 @@ public class BabyBuddyClient extends StreamReader {
     private CredStore credStore;
     private Looper mainLoop;
     private long serverDateOffset = -1000;
+    private volatile int maxResponseSize = StreamReader.MAX_RESPONSE_SIZE;
 
     public final Client v2client;
 
-    private void updateServerDateTime(HttpURLConnection con) {
-        String dateString = con.getHeaderField("Date");
+    private void updateServerDateTime(Response response) {
+        String dateString = response.header("Date");
         if (dateString == null) {
             GlobalDebugObject.log("updateServerDateTime(): Date header not found");
             return; // Chicken out, no dateString found, let's hope everything works!
@@ -431,29 +632,34 @@ public class BabyBuddyClient extends StreamReader {
         return new URL(prefix + "/" + path);
     }
 
-    private HttpURLConnection doQuery(String path) throws IOException {
-        HttpURLConnection con = (HttpURLConnection) pathToUrl(path).openConnection();
-        String token = credStore.getAppToken();
-        con.setRequestProperty("Authorization", "Token " + token);
-
-        QueryValues qValues = new QueryValues();
-        for (Map.Entry<String, String> entry : credStore.getAuthCookies().entrySet()) {
-            qValues.add(entry.getKey(), entry.getValue());
+    private static final MediaType JSON_MEDIA_TYPE = MediaType.get("application/json; charset=utf-8");
+
+    private Request doQuery(String method, String path, String payload) throws IOException {
+        // Authorization and cookies are added by the AuthInterceptor of the shared v2client stack
+        Request.Builder builder = new Request.Builder().url(pathToUrl(path));
+        if (payload != null) {
+            builder.header("Accept", "application/json");
+            builder.method(method, RequestBody.create(payload.getBytes(StandardCharsets.UTF_8), JSON_MEDIA_TYPE));
+        } else if ("POST".equals(method) || "PATCH".equals(method) || "PUT".equals(method)) {
+            builder.method(method, RequestBody.create(new byte[0], null));
+        } else {
+            builder.method(method, null);
         }
-        con.setRequestProperty("Cookie", qValues.toCookiesString());
-
-        con.setDoInput(true);
-        return con;
+        return builder.build();
     }
 
     @NonNull
-    private String now() {
+    private static String formatTimestamp(Date date) {
         SimpleDateFormat sdf = new SimpleDateFormat(
             "yyyy-MM-dd'T'HH:mm:ss.SSSXXX", Locale.ENGLISH
         );
         sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-        final Date now = new Date(System.currentTimeMillis() + serverDateOffset);
-        return sdf.format(now);
+        return sdf.format(date);
+    }
+
+    @NonNull
+    private String now() {
+        return formatTimestamp(new Date(System.currentTimeMillis() + serverDateOffset));
     }
 
     public BabyBuddyClient(Looper mainLoop, CredStore credStore) {
@@ -468,53 +674,107 @@ public class BabyBuddyClient extends StreamReader {
         return Math.abs(requestIdGenerator.nextInt()) % 10000;
     }
 
-    private void dispatchQuery(String method, String path, String payload, RequestCallback<String> callback) {
+    /**
+     * Converts a response body into the result type. The parser has not been advanced to the
+     * first token yet. Parsers run on the query worker thread, so only fully parsed results are
+     * posted to the main looper.
+     */
+    private interface ResponseParser<R> {
+        R parse(@NonNull JsonParser p) throws Exception;
+    }
+
+    private <R> void dispatchQuery(
+        String method,
+        String path,
+        String payload,
+        ResponseParser<R> parser,
+        RequestCallback<R> callback
+    ) {
+        dispatchQuery(method, path, payload, null, parser, callback);
+    }
+
+    /**
+     * Like dispatchQuery, but if conditional is not null the request is sent as conditional GET
+     * and the callback receives null instead of a parsed result if the response did not
+     * change since the last call with the same state object.
+     */
+    private <R> void dispatchQuery(
+        String method,
+        String path,
+        String payload,
+        ConditionalRequestState conditional,
+        ResponseParser<R> parser,
+        RequestCallback<R> callback
+    ) {
         final int REQUEST_ID = newRequestId();
         final String QUERY_STR = "Query " + REQUEST_ID;
 
-        Thread thread = new Thread() {
+        QueryExecutor.execute(QUERY_STR, new Runnable() {
             @Override
             public void run() {
                 try {
-                    HttpURLConnection query = doQuery(path);
+                    Request request = doQuery(method, path, payload);
+                    if (conditional != null) {
+                        request = conditional.decorate(request);
+                    }
                     GlobalDebugObject.log(QUERY_STR + ": " + method + " to " + path + "; payload = " + payload);
 
-                    query.setRequestMethod(method);
-                    if (payload != null) {
-                        query.setDoOutput(true);
-                        query.setRequestProperty("Content-Type", "application/json; utf-8");
-                        query.setRequestProperty("Accept", "application/json");
-                        OutputStream os = query.getOutputStream();
-                        os.write(payload.getBytes(StandardCharsets.UTF_8));
-                        os.flush();
-                    }
+                    final R parsed;
+                    try (Response response = v2client.getHttpClient().newCall(request).execute()) {
+                        updateServerDateTime(response);
 
-                    query.connect();
-                    updateServerDateTime(query);
+                        int responseCode = response.code();
+                        ResponseBody body = response.body();
+                        if ((conditional != null) && (responseCode == 304) && conditional.hasSeen(response)) {
+                            GlobalDebugObject.log(QUERY_STR + " not modified");
+                            syncMessage.post(() -> callback.response(null));
+                            return;
+                        }
+                        if ((responseCode < 200) || (responseCode >= 300)) {
+                            String message = response.message();
+                            String messageText;
+                            if (body == null) {
+                                messageText = "[no message]";
+                            } else {
+                                messageText = loadHttpData(body.byteStream(), body.contentLength(), maxResponseSize);
+                            }
+                            GlobalDebugObject.log(
+                                QUERY_STR + " response error: " + responseCode + "; messageText = " + messageText
+                            );
+                            throw new RequestCodeFailure(responseCode, message, messageText);
+                        }
 
-                    int responseCode = query.getResponseCode();
-                    if ((responseCode < 200) || (responseCode >= 300)) {
-                        String message = query.getResponseMessage();
-                        InputStream errorStream = query.getErrorStream();
-                        String messageText;
-                        if (errorStream == null) {
-                            messageText = "[no message]";
+                        if ((conditional != null) && !ConditionalRequestState.hasValidators(response)) {
+                            // Without validators only the body tells whether anything changed, so
+                            // it has to be read completely before it is worth parsing
+                            final String result = body == null ? "" : loadHttpData(body.byteStream(), body.contentLength(), maxResponseSize);
+                            if (conditional.isUnchanged(response, result)) {
+                                GlobalDebugObject.log(QUERY_STR + " unchanged response body");
+                                syncMessage.post(() -> callback.response(null));
+                                return;
+                            }
+                            GlobalDebugObject.log(QUERY_STR + " succeeded: response = " + result);
+                            try (JsonParser p = createParser(result)) {
+                                parsed = parser.parse(p);
+                            }
+                            conditional.recordParsed(response, result);
                         } else {
-                            messageText = loadHttpData(errorStream);
+                            GlobalDebugObject.log(QUERY_STR + " succeeded: " + responseCode);
+                            final InputStream in = body == null ? new ByteArrayInputStream(new byte[0]) : body.byteStream();
+                            try (JsonParser p = createParser(limitedStream(in, maxResponseSize))) {
+                                parsed = parser.parse(p);
+                            }
+                            if (conditional != null) {
+                                // Only now, a failed parse must not turn the next poll into a 304
+                                conditional.recordParsed(response, null);
+                            }
                         }
-                        GlobalDebugObject.log(
-                            QUERY_STR + " response error: " + responseCode + "; messageText = " + messageText
-                        );
-                        throw new RequestCodeFailure(responseCode, message, messageText);
                     }
 
-
-                    final String result = loadHttpData(query);
-                    GlobalDebugObject.log(QUERY_STR + " succeeded: response = " + result);
                     syncMessage.post(new Runnable() {
                         @Override
                         public void run() {
-                            callback.response(result);
+                            callback.response(parsed);
                         }
                     });
                 } catch (Exception e) {
@@ -522,8 +782,67 @@ public class BabyBuddyClient extends StreamReader {
                     syncMessage.post(() -> callback.error(e));
                 }
             }
-        };
-        thread.start();
+        });
+    }
+
+    @NonNull
+    public static Child[] parseChildList(String response) throws IOException, ParseException {
+        try (JsonParser p = createParser(response)) {
+            return parseChildList(p);
+        }
+    }
+
+    @NonNull
+    private static Child[] parseChildList(JsonParser p) throws IOException, ParseException {
+        return parsePaginatedList(p, Child::fromJSON).results.toArray(new Child[0]);
+    }
+
+    @NonNull
+    public static Timer[] parseTimerList(String response) throws IOException, ParseException {
+        try (JsonParser p = createParser(response)) {
+            return parseTimerList(p);
+        }
+    }
+
+    @NonNull
+    private static Timer[] parseTimerList(JsonParser p) throws IOException, ParseException {
+        List<Timer> result = parsePaginatedList(p, Timer::fromJSON).results;
+        result.sort(Comparator.comparingInt(t -> t.id));
+        return result.toArray(new Timer[0]);
+    }
+
+    @NonNull
+    public static TimeEntry[] parseTimeEntryList(String response, String type) throws IOException, ParseException {
+        try (JsonParser p = createParser(response)) {
+            return parseTimeEntryPage(p, type).results.toArray(new TimeEntry[0]);
+        }
+    }
+
+    /**
+     * Parses a page of activity entries. Entries with dates that cannot be parsed are logged and
+     * skipped, the rest of the page is still returned.
+     */
+    private static PaginatedList<TimeEntry> parseTimeEntryPage(JsonParser response, String type) throws IOException, ParseException {
+        final int[] index = {0};
+        PaginatedList<TimeEntry> page = parsePaginatedList(response, p -> {
+            final int i = index[0]++;
+            try {
+                return TimeEntry.fromJSON(p, type);
+            } catch (ParseException e) {
+                GlobalDebugObject.log(
+                    "parseTimeEntryPage(): skipping unparsable " + type + " entry at index " + i + "; " + e
+                );
+                return null;
+            }
+        });
+        final int total = page.results.size();
+        page.results.removeIf(Objects::isNull);
+        if (page.results.size() < total) {
+            GlobalDebugObject.log(
+                "parseTimeEntryPage(): skipped " + (total - page.results.size()) + " of " + total + " " + type + " entries"
+            );
+        }
+        return page;
     }
 
     public void listChildren(RequestCallback<Child[]> callback) {
@@ -536,61 +855,41 @@ public class BabyBuddyClient extends StreamReader {
             "GET",
             "api/children/?" + queryValues.toQueryString(),
             null,
-            new RequestCallback<String>() {
-                @Override
-                public void error(@NonNull Exception e) {
-                    callback.error(e);
-                }
-
-                @Override
-                public void response(String response) {
-                    try {
-                        JSONObject obj = new JSONObject(response);
-                        JSONArray children = obj.getJSONArray("results");
-                        List<Child> result = new ArrayList<>(children.length());
-                        for (int i = 0; i < children.length(); i++) {
-                            JSONObject c = children.getJSONObject(i);
-                            result.add(Child.fromJSON(c));
-                        }
-                        callback.response(result.toArray(new Child[0]));
-                    } catch (JSONException e) {
-                        this.error(e);
-                    }
-                }
-            });
+            BabyBuddyClient::parseChildList,
+            callback
+        );
     }
 
-    public void checkChildExists(int child_id, RequestCallback<Boolean> callback) {
-        listChildren(
-            new QueryValues().add("id", child_id),
-            new RequestCallback<Child[]>() {
-                @Override
-                public void error(@NonNull Exception error) {
-                    callback.error(error);
-                }
-
-                @Override
-                public void response(Child[] response) {
-                    for (Child c : response) {
-                        if (c.id == child_id) {
-                            callback.response(true);
-                        }
-                    }
-                    callback.response(false);
-                }
-            }
+    /**
+     * Polling variant of listChildren. The callback receives null if the children list did not
+     * change since the last call using the same state.
+     */
+    public void pollChildren(ConditionalRequestState state, RequestCallback<Child[]> callback) {
+        final QueryValues queryValues = new QueryValues().add("limit", 1000000);
+        dispatchQuery(
+            "GET",
+            "api/children/?" + queryValues.toQueryString(),
+            null,
+            state,
+            BabyBuddyClient::parseChildList,
+            callback
         );
     }
 
     public void createTimer(int child_id, String name, RequestCallback<Timer> callback) {
+        createTimer(child_id, name, null, callback);
+    }
+
+    /** Creates a timer that was started at the given server time, or now if start is null */
+    public void createTimer(int child_id, String name, Date start, RequestCallback<Timer> callback) {
+        ObjectNode payload = SharedObjectMapper.getMapper().createObjectNode()
+            .put("child", child_id)
+            .put("name", name)
+            .put("start", start == null ? now() : formatTimestamp(start));
         String data;
         try {
-            data = (new JSONObject())
-                .put("child", child_id)
-                .put("name", name)
-                .put("start", now())
-                .toString();
-        } catch (JSONException e) {
+            data = SharedObjectMapper.getMapper().writeValueAsString(payload);
+        } catch (IOException e) {
             throw new RuntimeException("JSON Structure not built correctly");
         }
 
@@ -598,24 +897,8 @@ public class BabyBuddyClient extends StreamReader {
             "POST",
             "api/timers/",
             data,
-            new RequestCallback<String>() {
-                @Override
-                public void error(@NonNull Exception e) {
-                    callback.error(e);
-                }
-
-                @Override
-                public void response(String response) {
-                    Timer result;
-                    try {
-                        result = Timer.fromJSON(new JSONObject(response));
-                    } catch (JSONException | ParseException e) {
-                        error(e);
-                        return;
-                    }
-                    callback.response(result);
-                }
-            }
+            singleObject(Timer::fromJSON),
+            callback
         );
     }
 
@@ -624,34 +907,27 @@ public class BabyBuddyClient extends StreamReader {
     }
 
     public void listTimers(Integer child_id, RequestCallback<Timer[]> callback) {
+        pollTimers(child_id, null, callback);
+    }
+
+    /**
+     * Polling variant of listTimers. If state is not null, the callback receives null if the
+     * timer list did not change since the last call using the same state.
+     */
+    public void pollTimers(Integer child_id, ConditionalRequestState state, RequestCallback<Timer[]> callback) {
         final QueryValues qv = new QueryValues();
         if (child_id != null) {
             qv.add("child", child_id);
         }
         qv.add("limit", 1000000);
-        dispatchQuery("GET", "api/timers/?" + qv.toQueryString(), null, new RequestCallback<String>() {
-            @Override
-            public void error(@NonNull Exception e) {
-                callback.error(e);
-            }
-
-            @Override
-            public void response(String response) {
-                try {
-                    JSONObject obj = new JSONObject(response);
-                    JSONArray timers = obj.getJSONArray("results");
-                    List<Timer> result = new ArrayList<>(timers.length());
-                    for (int i = 0; i < timers.length(); i++) {
-                        JSONObject item = timers.getJSONObject(i);
-                        result.add(Timer.fromJSON(item));
-                    }
-                    result.sort(Comparator.comparingInt(t -> t.id));
-                    callback.response(result.toArray(new Timer[0]));
-                } catch (JSONException | ParseException e) {
-                    this.error(e);
-                }
-            }
-        });
+        dispatchQuery(
+            "GET",
+            "api/timers/?" + qv.toQueryString(),
+            null,
+            state,
+            BabyBuddyClient::parseTimerList,
+            callback
+        );
     }
 
     public void deleteTimer(int timer_id, RequestCallback<Boolean> callback) {
@@ -671,28 +947,24 @@ public class BabyBuddyClient extends StreamReader {
             "PATCH",
             "api/timers/" + timer_id + "/restart/",
             null,
-            new RequestCallback<>() {
-                @Override
-                public void error(@NonNull Exception e) {
-                    callback.error(e);
-                }
-
-                @Override
-                public void response(String response) {
-                    try {
-                        JSONObject obj = new JSONObject(response);
-                        callback.response(Timer.fromJSON(obj));
-                    } catch (JSONException | ParseException e) {
-                        this.error(e);
-                    }
-                }
-            });
+            singleObject(Timer::fromJSON),
+            callback
+        );
     }
 
     public long getServerDateOffsetMillis() {
         return serverDateOffset;
     }
 
+    public int getMaxResponseSize() {
+        return maxResponseSize;
+    }
+
+    /** Responses larger than this many bytes fail with a StreamReader.ResponseTooLargeException */
+    public void setMaxResponseSize(int maxResponseSize) {
+        this.maxResponseSize = maxResponseSize;
+    }
+
     @NonNull
     private static String addQueryParameters(QueryValues queryValues, @NonNull String path) {
         if (queryValues == null) {
@@ -708,24 +980,16 @@ public class BabyBuddyClient extends StreamReader {
             method,
             path,
             null,
-            new RequestCallback<>() {
-                @Override
-                public void error(@NonNull Exception e) {
-                    callback.error(e);
-                }
-
-                @Override
-                public void response(String response) {
-                    callback.response(true);
-                }
-            });
+            response -> true,
+            callback
+        );
     }
 
     public void listGeneric(
         String activity,
         int offset,
         QueryValues queryValues,
-        RequestCallback<GenericSubsetResponseHeader<JSONArray>> callback
+        RequestCallback<GenericSubsetResponseHeader<TimeEntry[]>> callback
     ) {
         String path = "api/" + activity + "/";
         if (queryValues == null) {
@@ -733,27 +997,19 @@ public class BabyBuddyClient extends StreamReader {
         }
         queryValues.add("offset", offset);
         path = addQueryParameters(queryValues, path);
-        dispatchQuery("GET", path, null, new RequestCallback<String>() {
-            @Override
-            public void error(@NonNull Exception error) {
-                callback.error(error);
-            }
-
-            @Override
-            public void response(String response) {
-                JSONArray result = null;
-                int totalCount = 0;
-                try {
-                    JSONObject listResponse = new JSONObject(response);
-                    totalCount = listResponse.getInt("count");
-                    result = listResponse.getJSONArray("results");
-                } catch (JSONException e) {
-                    error(e);
-                    return;
+        dispatchQuery(
+            "GET",
+            path,
+            null,
+            response -> {
+                PaginatedList<TimeEntry> page = parseTimeEntryPage(response, activity);
+                if (page.count < 0) {
+                    throw new IOException("Missing field count");
                 }
-                callback.response(new GenericSubsetResponseHeader<>(offset, totalCount, result));
-            }
-        });
+                return new GenericSubsetResponseHeader<>(offset, page.count, page.results.toArray(new TimeEntry[0]));
+            },
+            callback
+        );
     }
 
     public void updateTimelineEntry(
@@ -765,23 +1021,9 @@ public class BabyBuddyClient extends StreamReader {
         dispatchQuery(
             "PATCH",
             path,
-            values.toJsonObject().toString(),
-            new RequestCallback<String>() {
-                @Override
-                public void error(@NonNull Exception error) {
-                    callback.error(error);
-                }
-
-                @Override
-                public void response(String response) {
-                    try {
-                        JSONObject o = new JSONObject(response);
-                        callback.response(TimeEntry.fromJsonObject(o, entry.type));
-                    } catch (JSONException | ParseException e) {
-                        callback.error(e);
-                    }
-                }
-            }
+            values.toJsonString(),
+            singleObject(p -> TimeEntry.fromJSON(p, entry.type)),
+            callback
         );
     }
 }
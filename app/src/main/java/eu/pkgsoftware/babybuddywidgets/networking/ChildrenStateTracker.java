@@ -2,20 +2,15 @@ package eu.pkgsoftware.babybuddywidgets.networking;
 
 import android.os.Handler;
 import android.os.Looper;
-import android.util.ArrayMap;
 
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Queue;
+import java.util.Objects;
 import java.util.function.Consumer;
 
 import androidx.annotation.NonNull;
-import androidx.recyclerview.widget.RecyclerView;
 
 public class ChildrenStateTracker {
     public static class CancelledException extends Exception {
@@ -25,115 +20,56 @@ public class ChildrenStateTracker {
         void connectionStateChanged(boolean connected, long disconnectedFor);
     }
 
-    private abstract class DeferredRequest {
-        public long startTime = System.currentTimeMillis();
-
-        public long getScheduledTime() {
-            return startTime;
-        }
-
-        protected void retry() {
-            startTime = System.currentTimeMillis();
-            requestQueue.add(this);
-            queueNextRequest();
-        }
-
-        public abstract void cancel();
-
-        public abstract void doRequest();
-    }
-
     private static final int DEFER_BASE_TIMEOUT = 500;
     private static final int MAX_DEFERRED_TIMEOUT = 20000;
+    private static final int MIN_REQUEST_DELAY = 50;
+    private static final int MAX_IN_FLIGHT_REQUESTS = 2;
 
     private BabyBuddyClient client;
     private boolean closed = false;
 
     private Handler queueHandler = null;
-    private CancellableRequest pendingRequest = null;
+    private final RequestScheduler scheduler;
 
     private boolean connected = false;
     private ConnectionStateListener connectionStateListener = null;
     private long disconnectedStartTime = 0;
     private int disconnectRetryCounter = 0;
 
-    private final ArrayList<DeferredRequest> requestQueue = new ArrayList<>();
-
-    private static abstract class CancellableRequest implements Runnable {
-        public DeferredRequest deferredRequest;
-
-        public CancellableRequest(DeferredRequest req) {
-            deferredRequest = req;
-        }
-
-        private boolean cancelled = false;
-
-        public void cancel() {
-            cancelled = true;
-        }
-
-        public void run() {
-            if (!cancelled) {
-                runIfNotCancelled();
-            }
-        }
-
-        public abstract void runIfNotCancelled();
-    }
-
     public ChildrenStateTracker(BabyBuddyClient client, Looper looper) {
         this.client = client;
         this.queueHandler = new Handler(looper);
+        this.scheduler = new RequestScheduler(new RequestScheduler.Host() {
+            @Override
+            public long currentTimeMillis() {
+                return System.currentTimeMillis();
+            }
 
-        connected = true;
-        setDisconnected();
-    }
-
-    private void queueNextRequest() {
-        if (closed || (requestQueue.size() <= 0)) {
-            return;
-        }
-
-        Collections.sort(requestQueue, (a, b) -> Long.compare(a.getScheduledTime(), b.getScheduledTime()));
-        final DeferredRequest req = requestQueue.get(0);
+            @Override
+            public void postDelayed(@NonNull Runnable r, long delayMillis) {
+                queueHandler.postDelayed(r, delayMillis);
+            }
 
-        if (pendingRequest != null) {
-            if (req.getScheduledTime() < pendingRequest.deferredRequest.getScheduledTime()) {
-                pendingRequest.cancel();
-                requestQueue.add(pendingRequest.deferredRequest);
-            } else {
-                return;
+            @Override
+            public void removeCallbacks(@NonNull Runnable r) {
+                queueHandler.removeCallbacks(r);
             }
-        }
-        requestQueue.remove(0);
 
-        pendingRequest = new CancellableRequest(req) {
             @Override
-            public void runIfNotCancelled() {
-                if (closed) {
-                    req.cancel();
-                    pendingRequest = null;
-                    return;
+            public long additionalDelay() {
+                long exponentialBackoff = 0;
+                if (disconnectRetryCounter > 0) {
+                    exponentialBackoff = Math.min(
+                        MAX_DEFERRED_TIMEOUT,
+                        (long) Math.pow(1.5, disconnectRetryCounter - 1) * DEFER_BASE_TIMEOUT
+                    );
                 }
-                pendingRequest = null;
-
-                req.doRequest();
-                queueNextRequest();
+                return MIN_REQUEST_DELAY + exponentialBackoff;
             }
-        };
+        }, MAX_IN_FLIGHT_REQUESTS);
 
-        long exponentialBackoff = 0;
-        if (disconnectRetryCounter > 0) {
-            exponentialBackoff = Math.min(
-                MAX_DEFERRED_TIMEOUT,
-                (long) Math.pow(1.5, disconnectRetryCounter - 1) * DEFER_BASE_TIMEOUT
-            );
-        }
-
-        queueHandler.postDelayed(
-            pendingRequest,
-            Math.max(0, req.getScheduledTime() - System.currentTimeMillis() + 50 + exponentialBackoff)
-        );
+        connected = true;
+        setDisconnected();
     }
 
     private class QueueRequest<R> {
@@ -149,27 +85,30 @@ public class ChildrenStateTracker {
         public void queue(
             Consumer<BabyBuddyClient.RequestCallback<R>> request,
             BabyBuddyClient.RequestCallback<R> responseCallback) {
-            requestQueue.add(new DeferredRequest() {
+            scheduler.schedule(new RequestScheduler.Task() {
                 @Override
-                public void cancel() {
+                public void cancelled() {
                     responseCallback.error(new CancelledException());
                 }
 
                 @Override
-                public void doRequest() {
+                public void run(@NonNull Runnable done) {
+                    final RequestScheduler.Task self = this;
                     BabyBuddyClient.RequestCallback<R> local = new BabyBuddyClient.RequestCallback<R>() {
                         @Override
                         public void error(@NotNull Exception error) {
+                            done.run();
                             if (deferErrors) {
                                 responseCallback.error(error);
                             } else {
                                 setDisconnected();
-                                retry();
+                                scheduler.schedule(self, System.currentTimeMillis());
                             }
                         }
 
                         @Override
                         public void response(R response) {
+                            done.run();
                             setConnected();
                             responseCallback.response(response);
                         }
@@ -182,8 +121,7 @@ public class ChildrenStateTracker {
                 public String toString() {
                     return "DeferredRequest{requesting" + this.getClass().getGenericSuperclass() + "}";
                 }
-            });
-            queueNextRequest();
+            }, System.currentTimeMillis());
         }
     }
 
@@ -231,10 +169,7 @@ public class ChildrenStateTracker {
 
     public void close() {
         closed = true;
-        for (DeferredRequest r : requestQueue) {
-            r.cancel();
-        }
-        requestQueue.clear();
+        scheduler.close();
     }
 
     public void setConnectionStateListener(ConnectionStateListener l) {
@@ -244,17 +179,18 @@ public class ChildrenStateTracker {
     public void resetDisconnectTimer() {
         disconnectedStartTime = System.currentTimeMillis();
         disconnectRetryCounter = 0;
-        queueNextRequest();
+        scheduler.reschedule();
     }
 
     private abstract class StateObserver {
         private final long requestInterval;
+        private final Runnable updateRunnable = this::update;
         private boolean closed = false;
         private boolean requeued = true;
 
         public StateObserver(long requestInterval) {
             this.requestInterval = requestInterval;
-            queueHandler.post(this::update);
+            queueHandler.post(updateRunnable);
         }
 
         public void close() {
@@ -273,7 +209,7 @@ public class ChildrenStateTracker {
             if (isClosed()) {
                 return;
             }
-            queueHandler.postDelayed(this::update, requestInterval);
+            queueHandler.postDelayed(updateRunnable, nextInterval());
             if (requeued) {
                 requeued = false;
                 queueRequests();
@@ -284,6 +220,23 @@ public class ChildrenStateTracker {
             requeued = true;
         }
 
+        /** Delay until the next update, subclasses can override this to adapt the poll rate */
+        protected long nextInterval() {
+            return requestInterval;
+        }
+
+        /**
+         * Runs the next update as soon as possible instead of waiting for the interval to pass.
+         * Multiple calls before the update runs result in a single update.
+         */
+        protected void triggerUpdate() {
+            if (isClosed()) {
+                return;
+            }
+            queueHandler.removeCallbacks(updateRunnable);
+            queueHandler.post(updateRunnable);
+        }
+
         protected abstract void queueRequests();
     }
 
@@ -294,9 +247,14 @@ public class ChildrenStateTracker {
 
     public class ChildListObserver extends StateObserver {
         public static final long INTERVAL = 10000;
+        public static final long MAX_INTERVAL = 60000;
 
         private ChildrenListListener listener;
         private BabyBuddyClient.Child[] childrenList = null;
+        private final ConditionalRequestState conditionalState = new ConditionalRequestState();
+        private final AdaptivePollInterval pollInterval = new AdaptivePollInterval(
+            "children", INTERVAL, MAX_INTERVAL
+        );
 
         public ChildListObserver(ChildrenListListener listener) {
             super(INTERVAL);
@@ -304,10 +262,15 @@ public class ChildrenStateTracker {
             this.listener = listener;
         }
 
+        @Override
+        protected long nextInterval() {
+            return pollInterval.getInterval(System.currentTimeMillis());
+        }
+
         @Override
         protected void queueRequests() {
             new QueueRequest<BabyBuddyClient.Child[]>().queue(
-                client::listChildren,
+                cb -> client.pollChildren(conditionalState, cb),
                 new BabyBuddyClient.RequestCallback<BabyBuddyClient.Child[]>() {
                     @Override
                     public void error(@NonNull Exception error) {
@@ -317,8 +280,12 @@ public class ChildrenStateTracker {
                     @Override
                     public void response(BabyBuddyClient.Child[] response) {
                         requeue();
-                        if ((childrenList == null) || (!Arrays.equals(response, childrenList))) {
+                        final boolean changed = (response != null)
+                            && ((childrenList == null) || (!Arrays.equals(response, childrenList)));
+                        pollInterval.pollCompleted(changed, System.currentTimeMillis());
+                        if (changed) {
                             childrenList = response;
+                            closeObserversOfMissingChildren(response);
                             if (listener != null) {
                                 listener.childrenListUpdated(response);
                             }
@@ -329,88 +296,212 @@ public class ChildrenStateTracker {
         }
     }
 
-    /* Generic base to implement classes that should fail when child_id is missing */
-    public abstract class ChildIdStateObserver extends StateObserver {
-        private boolean childExistsVerificationRunning = false;
-        protected final int childId;
+    /* Child listener */
+    public interface ChildListener {
+        void timersUpdated(BabyBuddyClient.Timer[] timers);
+    }
 
-        public ChildIdStateObserver(int childId, long requestInterval) {
-            super(requestInterval);
-            this.childId = childId;
-        }
+    private TimerPollCoordinator timerPollCoordinator = null;
 
-        protected void closeWhenChildIsMissing() {
-            if (isClosed()) {
-                return;
+    /**
+     * The shared timer poll is not filtered by child, so it cannot tell that a child was deleted.
+     * The children poll can: observers of children that are no longer listed are closed.
+     */
+    private void closeObserversOfMissingChildren(BabyBuddyClient.Child[] children) {
+        if (timerPollCoordinator == null) {
+            return;
+        }
+        for (ChildObserver observer : new ArrayList<>(timerPollCoordinator.observers)) {
+            boolean found = false;
+            for (BabyBuddyClient.Child c : children) {
+                found |= c.id == observer.childId;
             }
-            if (childExistsVerificationRunning) {
-                return;
+            if (!found) {
+                observer.close();
             }
-            childExistsVerificationRunning = true;
-
-            client.checkChildExists(childId, new BabyBuddyClient.RequestCallback<Boolean>() {
-                @Override
-                public void error(@NonNull Exception error) {
-                    setDisconnected();
-                    childExistsVerificationRunning = false;
-                }
+        }
+    }
 
-                @Override
-                public void response(Boolean response) {
-                    childExistsVerificationRunning = false;
-                    if (!response) {
-                        close();
-                    }
-                }
-            });
+    private TimerPollCoordinator getTimerPollCoordinator() {
+        if (timerPollCoordinator == null) {
+            timerPollCoordinator = new TimerPollCoordinator();
         }
+        return timerPollCoordinator;
+    }
 
+    /**
+     * Polls the timers of all children with a single request per interval and distributes the
+     * results to the registered ChildObservers by child id.
+     */
+    private class TimerPollCoordinator extends StateObserver {
+        public static final long MAX_INTERVAL = 15000;
+
+        private final ArrayList<ChildObserver> observers = new ArrayList<>();
+        private final ConditionalRequestState conditionalState = new ConditionalRequestState();
+        private final AdaptivePollInterval pollInterval = new AdaptivePollInterval(
+            "timers", ChildObserver.INTERVAL, MAX_INTERVAL
+        );
+        private BabyBuddyClient.Timer[] lastTimers = null;
+        private boolean requestInFlight = false;
+        private boolean refreshAfterRequest = false;
 
-    }
+        public TimerPollCoordinator() {
+            super(ChildObserver.INTERVAL);
+        }
 
-    /* Child listener */
-    public interface ChildListener {
-        void timersUpdated(BabyBuddyClient.Timer[] timers);
-    }
+        public void register(ChildObserver observer) {
+            if (!observers.contains(observer)) {
+                observers.add(observer);
+            }
+            requestRefresh();
+        }
 
-    public class ChildObserver extends ChildIdStateObserver {
-        public static final long INTERVAL = 1000;
+        public void unregister(ChildObserver observer) {
+            observers.remove(observer);
+        }
 
-        private final ChildListener listener;
+        /**
+         * Requests a timer list refresh as soon as possible. Refresh requests arriving before the
+         * next fetch starts are served by that fetch; requests arriving while a fetch is running
+         * are served by a single follow-up fetch.
+         */
+        public void requestRefresh() {
+            pollInterval.notifyLocalChange(System.currentTimeMillis());
+            if (requestInFlight) {
+                refreshAfterRequest = true;
+            } else {
+                triggerUpdate();
+            }
+        }
 
-        public ChildObserver(int childId, ChildListener listener) {
-            super(childId, INTERVAL);
-            this.listener = listener;
+        private void finishRequest() {
+            requestInFlight = false;
+            if (refreshAfterRequest) {
+                refreshAfterRequest = false;
+                triggerUpdate();
+            }
         }
 
-        private class BoundTimerListCall {
-            public void call(BabyBuddyClient.RequestCallback<BabyBuddyClient.Timer[]> callback) {
-                client.listTimers(childId, callback);
+        @Override
+        protected long nextInterval() {
+            return pollInterval.getInterval(System.currentTimeMillis());
+        }
+
+        private void distribute() {
+            for (ChildObserver observer : new ArrayList<>(observers)) {
+                if (observer.isClosed()) {
+                    continue;
+                }
+                ArrayList<BabyBuddyClient.Timer> childTimers = new ArrayList<>();
+                for (BabyBuddyClient.Timer t : lastTimers) {
+                    if (Objects.equals(t.child_id, observer.childId)) {
+                        childTimers.add(t);
+                    }
+                }
+                observer.deliver(childTimers.toArray(new BabyBuddyClient.Timer[0]));
             }
         }
 
+        @Override
         protected void queueRequests() {
-            new QueueRequest<BabyBuddyClient.Timer[]>(true).queue(
-                new BoundTimerListCall()::call,
+            if (observers.isEmpty()) {
+                requeue();
+                return;
+            }
+
+            requestInFlight = true;
+            // Failed requests are retried by the scheduler with backoff, error is only called
+            // when the request was cancelled
+            new QueueRequest<BabyBuddyClient.Timer[]>().queue(
+                cb -> client.pollTimers(null, conditionalState, cb),
                 new BabyBuddyClient.RequestCallback<>() {
                     @Override
                     public void error(@NonNull Exception error) {
-                        closeWhenChildIsMissing();
                         requeue();
+                        finishRequest();
                     }
 
                     @Override
                     public void response(BabyBuddyClient.Timer[] response) {
                         requeue();
-
                         if (isClosed()) {
                             return;
                         }
 
-                        listener.timersUpdated(response);
+                        pollInterval.pollCompleted(response != null, System.currentTimeMillis());
+                        if (response != null) {
+                            lastTimers = response;
+                            boolean anyActive = false;
+                            for (BabyBuddyClient.Timer t : response) {
+                                anyActive |= t.active;
+                            }
+                            pollInterval.setActive(anyActive);
+                        }
+                        if (lastTimers != null) {
+                            distribute();
+                        }
+                        finishRequest();
                     }
                 }
             );
         }
     }
+
+    public class ChildObserver {
+        public static final long INTERVAL = 1000;
+
+        protected final int childId;
+        private final ChildListener listener;
+        private boolean closed = false;
+        private BabyBuddyClient.Timer[] lastDelivered = null;
+
+        public ChildObserver(int childId, ChildListener listener) {
+            this.childId = childId;
+            this.listener = listener;
+            getTimerPollCoordinator().register(this);
+        }
+
+        public void close() {
+            closed = true;
+            if (timerPollCoordinator != null) {
+                timerPollCoordinator.unregister(this);
+            }
+        }
+
+        public boolean isClosed() {
+            return closed || ChildrenStateTracker.this.closed;
+        }
+
+        public ChildrenStateTracker getTracker() {
+            return ChildrenStateTracker.this;
+        }
+
+        /**
+         * Forces the next poll to be delivered to the listener, even if the timer list did not
+         * change on the server. Needed when the listener discarded an update.
+         */
+        public void resync() {
+            lastDelivered = null;
+        }
+
+        /**
+         * Asks for the timer list to be refreshed immediately, for example after a local
+         * modification of a timer. The result is always delivered to the listener.
+         */
+        public void requestRefresh() {
+            if (isClosed()) {
+                return;
+            }
+            resync();
+            getTimerPollCoordinator().requestRefresh();
+        }
+
+        private void deliver(BabyBuddyClient.Timer[] timers) {
+            if ((lastDelivered != null) && Arrays.equals(lastDelivered, timers)) {
+                return;
+            }
+            lastDelivered = timers;
+            listener.timersUpdated(timers);
+        }
+    }
 }
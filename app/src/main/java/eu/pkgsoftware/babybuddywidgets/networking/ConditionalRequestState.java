@@ -0,0 +1,106 @@
+package eu.pkgsoftware.babybuddywidgets.networking;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Remembers the validators (ETag, Last-Modified) and a hash of the last body per URL for a
+ * polling loop. Requests are sent as conditional GETs; a 304 response or a body identical to the
+ * previous one is reported as "unchanged" so that the caller can skip parsing and dispatching.
+ * The body is only compared for responses without validators; responses that carry them are
+ * parsed from the stream without buffering the body first, see hasValidators().
+ * <p>
+ * Every poller should own its own instance. Pollers keep the last parsed result and hand it out
+ * again when a response is reported as unchanged, so the state never has to be cleared.
+ */
+public class ConditionalRequestState {
+    private static class Validators {
+        String etag = null;
+        String lastModified = null;
+        byte[] bodyHash = null;
+        boolean seen = false;
+    }
+
+    private final Map<String, Validators> validators = new HashMap<>();
+
+    @NonNull
+    public synchronized Request decorate(@NonNull Request request) {
+        Validators v = validators.get(request.url().toString());
+        if (v == null) {
+            return request;
+        }
+        Request.Builder builder = request.newBuilder();
+        if (v.etag != null) {
+            builder.header("If-None-Match", v.etag);
+        }
+        if (v.lastModified != null) {
+            builder.header("If-Modified-Since", v.lastModified);
+        }
+        return builder.build();
+    }
+
+    /**
+     * True if the server sent an ETag or Last-Modified header, so unchanged content will be
+     * answered with 304 and the body does not have to be compared.
+     */
+    public static boolean hasValidators(@NonNull Response response) {
+        return (response.header("ETag") != null) || (response.header("Last-Modified") != null);
+    }
+
+    /**
+     * True if body is the same as the last body that was parsed for the same URL. Nothing is
+     * recorded, see recordParsed.
+     */
+    public synchronized boolean isUnchanged(@NonNull Response response, @NonNull String body) {
+        Validators v = validators.get(response.request().url().toString());
+        if ((v == null) || (v.bodyHash == null)) {
+            return false;
+        }
+        return Arrays.equals(v.bodyHash, hashBody(body));
+    }
+
+    /**
+     * Records the validators and the body hash of a response once its body was parsed. Only then
+     * later responses may be reported as unchanged, so a response that failed to parse is
+     * requested and parsed again. body may be null if it was not buffered.
+     */
+    public synchronized void recordParsed(@NonNull Response response, @Nullable String body) {
+        final String url = response.request().url().toString();
+        Validators v = validators.get(url);
+        if (v == null) {
+            v = new Validators();
+            validators.put(url, v);
+        }
+        v.etag = response.header("ETag");
+        v.lastModified = response.header("Last-Modified");
+        v.bodyHash = hashBody(body);
+        v.seen = true;
+    }
+
+    public synchronized boolean hasSeen(@NonNull Response response) {
+        Validators v = validators.get(response.request().url().toString());
+        return (v != null) && v.seen;
+    }
+
+    @Nullable
+    private static byte[] hashBody(@Nullable String body) {
+        if (body == null) {
+            return null;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return digest.digest(body.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+}
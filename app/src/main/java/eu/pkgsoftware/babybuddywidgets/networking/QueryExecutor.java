@@ -0,0 +1,120 @@
+package eu.pkgsoftware.babybuddywidgets.networking;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+import eu.pkgsoftware.babybuddywidgets.debugging.GlobalDebugObject;
+
+/**
+ * Small, shared worker pool for the blocking network calls of the legacy client. The periodic
+ * polling of timers and children used to start a new thread per request; this pool keeps a few
+ * workers around instead and records how long requests wait in the queue and how long they take
+ * to execute.
+ */
+public class QueryExecutor {
+    public static final int MAX_WORKERS = 4;
+    public static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+    public static final int METRICS_LOG_INTERVAL = 100;
+
+    public static class Metrics {
+        public final long requestCount;
+        public final long totalQueueWaitMillis;
+        public final long totalExecutionMillis;
+        public final long maxQueueWaitMillis;
+
+        public Metrics(long requestCount, long totalQueueWaitMillis, long totalExecutionMillis, long maxQueueWaitMillis) {
+            this.requestCount = requestCount;
+            this.totalQueueWaitMillis = totalQueueWaitMillis;
+            this.totalExecutionMillis = totalExecutionMillis;
+            this.maxQueueWaitMillis = maxQueueWaitMillis;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            if (requestCount <= 0) {
+                return "Metrics{no requests}";
+            }
+            return "Metrics{" +
+                "requests=" + requestCount +
+                ", avgQueueWait=" + (totalQueueWaitMillis / requestCount) + "ms" +
+                ", maxQueueWait=" + maxQueueWaitMillis + "ms" +
+                ", avgExecution=" + (totalExecutionMillis / requestCount) + "ms" +
+                '}';
+        }
+    }
+
+    private static final ThreadPoolExecutor EXECUTOR;
+
+    static {
+        final AtomicInteger threadCounter = new AtomicInteger(0);
+        final ThreadFactory factory = r -> {
+            Thread t = new Thread(r, "BabyBuddyQuery-" + threadCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        EXECUTOR = new ThreadPoolExecutor(
+            MAX_WORKERS,
+            MAX_WORKERS,
+            WORKER_KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            factory
+        );
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Object METRICS_LOCK = new Object();
+    private static long requestCount = 0;
+    private static long totalQueueWaitMillis = 0;
+    private static long totalExecutionMillis = 0;
+    private static long maxQueueWaitMillis = 0;
+
+    public static void execute(@NonNull String name, @NonNull Runnable task) {
+        final long queuedAt = System.nanoTime();
+        EXECUTOR.execute(() -> {
+            final long startedAt = System.nanoTime();
+            try {
+                task.run();
+            } finally {
+                final long finishedAt = System.nanoTime();
+                final long queueWait = TimeUnit.NANOSECONDS.toMillis(startedAt - queuedAt);
+                final long execution = TimeUnit.NANOSECONDS.toMillis(finishedAt - startedAt);
+                final long count = recordMetrics(queueWait, execution);
+                GlobalDebugObject.log(
+                    name + ": queue wait " + queueWait + " ms, execution " + execution + " ms, " +
+                        getQueuedCount() + " queued"
+                );
+                if (count % METRICS_LOG_INTERVAL == 0) {
+                    GlobalDebugObject.log("QueryExecutor " + getMetrics());
+                }
+            }
+        });
+    }
+
+    /** Returns the number of requests recorded so far */
+    private static long recordMetrics(long queueWait, long execution) {
+        synchronized (METRICS_LOCK) {
+            requestCount++;
+            totalQueueWaitMillis += queueWait;
+            totalExecutionMillis += execution;
+            maxQueueWaitMillis = Math.max(maxQueueWaitMillis, queueWait);
+            return requestCount;
+        }
+    }
+
+    @NonNull
+    private static Metrics getMetrics() {
+        synchronized (METRICS_LOCK) {
+            return new Metrics(requestCount, totalQueueWaitMillis, totalExecutionMillis, maxQueueWaitMillis);
+        }
+    }
+
+    private static int getQueuedCount() {
+        return EXECUTOR.getQueue().size();
+    }
+}
@@ -0,0 +1,227 @@
+package eu.pkgsoftware.babybuddywidgets.networking;
+
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Deadline scheduler for the deferred requests of ChildrenStateTracker. Tasks are kept in a
+ * binary heap ordered by scheduled time (ties are run in submission order) and up to
+ * maxInFlight tasks may run concurrently. A task occupies its slot until it calls the completion
+ * callback passed to Task.run().
+ * <p>
+ * The scheduler is not thread safe; all calls and all Host callbacks must happen on the same
+ * thread (the main looper in the app).
+ */
+public class RequestScheduler {
+    public interface Host {
+        long currentTimeMillis();
+
+        void postDelayed(@NonNull Runnable r, long delayMillis);
+
+        void removeCallbacks(@NonNull Runnable r);
+
+        /** Extra delay applied to every task, used for the disconnect backoff */
+        long additionalDelay();
+    }
+
+    public static abstract class Task {
+        private Entry entry = null;
+        private long scheduledTime = 0;
+
+        public long getScheduledTime() {
+            return scheduledTime;
+        }
+
+        public boolean isQueued() {
+            return entry != null;
+        }
+
+        /**
+         * Starts the task. done must be called exactly once when the task has finished; further
+         * calls are ignored.
+         */
+        public abstract void run(@NonNull Runnable done);
+
+        /** Called if the task is cancelled or the scheduler is closed before the task ran */
+        public abstract void cancelled();
+    }
+
+    // Heap entries are separate from tasks so that a cancelled entry can stay in the heap
+    // (lazy deletion) while its task is already queued again.
+    private static class Entry {
+        final Task task;
+        final long time;
+        final long sequence;
+        boolean cancelled = false;
+
+        Entry(Task task, long time, long sequence) {
+            this.task = task;
+            this.time = time;
+            this.sequence = sequence;
+        }
+    }
+
+    private final Host host;
+    private final int maxInFlight;
+    private final PriorityQueue<Entry> heap = new PriorityQueue<>(16, (a, b) -> {
+        int c = Long.compare(a.time, b.time);
+        return c != 0 ? c : Long.compare(a.sequence, b.sequence);
+    });
+    private final Runnable dispatchRunnable = this::dispatch;
+
+    private long sequenceCounter = 0;
+    private int liveCount = 0;
+    private int inFlight = 0;
+    private boolean wakeupPosted = false;
+    private long wakeupTime = 0;
+    private boolean closed = false;
+
+    public RequestScheduler(@NonNull Host host, int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        this.host = host;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /** Queues task to run at time (or later). Tasks are never run synchronously from here. */
+    public void schedule(@NonNull Task task, long time) {
+        if (closed) {
+            task.cancelled();
+            return;
+        }
+        if (task.entry != null) {
+            throw new IllegalStateException("Task is already queued");
+        }
+        task.scheduledTime = time;
+        task.entry = new Entry(task, time, sequenceCounter++);
+        heap.add(task.entry);
+        liveCount++;
+        scheduleWakeup();
+    }
+
+    /**
+     * Cancels a queued task. The task is removed lazily from the heap when it reaches the top.
+     * Returns false if the task was not queued (already running, finished or cancelled).
+     */
+    public boolean cancel(@NonNull Task task) {
+        if (task.entry == null) {
+            return false;
+        }
+        task.entry.cancelled = true;
+        task.entry = null;
+        liveCount--;
+        task.cancelled();
+        return true;
+    }
+
+    /** Cancels all queued tasks. Completions of running tasks are ignored afterwards. */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (wakeupPosted) {
+            host.removeCallbacks(dispatchRunnable);
+            wakeupPosted = false;
+        }
+        ArrayList<Entry> remaining = new ArrayList<>(heap);
+        remaining.sort(heap.comparator());
+        heap.clear();
+        liveCount = 0;
+        for (Entry e : remaining) {
+            if (!e.cancelled) {
+                e.cancelled = true;
+                e.task.entry = null;
+                e.task.cancelled();
+            }
+        }
+    }
+
+    /** Recomputes the next wakeup, for example after the additional delay changed */
+    public void reschedule() {
+        if (wakeupPosted) {
+            host.removeCallbacks(dispatchRunnable);
+            wakeupPosted = false;
+        }
+        scheduleWakeup();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int size() {
+        return liveCount;
+    }
+
+    public int getInFlightCount() {
+        return inFlight;
+    }
+
+    private Entry peekLive() {
+        Entry e = heap.peek();
+        while ((e != null) && e.cancelled) {
+            heap.poll();
+            e = heap.peek();
+        }
+        return e;
+    }
+
+    private void scheduleWakeup() {
+        if (closed || (inFlight >= maxInFlight)) {
+            return;
+        }
+        final Entry head = peekLive();
+        if (head == null) {
+            return;
+        }
+        final long now = host.currentTimeMillis();
+        final long due = head.time + host.additionalDelay();
+        final long delay = Math.max(0, due - now);
+        if (wakeupPosted) {
+            if (wakeupTime <= now + delay) {
+                return;
+            }
+            host.removeCallbacks(dispatchRunnable);
+        }
+        wakeupPosted = true;
+        wakeupTime = now + delay;
+        host.postDelayed(dispatchRunnable, delay);
+    }
+
+    private void dispatch() {
+        wakeupPosted = false;
+        while (!closed && (inFlight < maxInFlight)) {
+            final Entry head = peekLive();
+            if (head == null) {
+                return;
+            }
+            final long due = head.time + host.additionalDelay();
+            if (due > host.currentTimeMillis()) {
+                break;
+            }
+
+            heap.poll();
+            head.task.entry = null;
+            liveCount--;
+            inFlight++;
+            head.task.run(new Runnable() {
+                private boolean finished = false;
+
+                @Override
+                public void run() {
+                    if (finished) {
+                        return;
+                    }
+                    finished = true;
+                    inFlight--;
+                    scheduleWakeup();
+                }
+            });
+        }
+        scheduleWakeup();
+    }
+}
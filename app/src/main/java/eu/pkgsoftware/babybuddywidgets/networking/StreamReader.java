@@ -1,43 +1,169 @@
 package eu.pkgsoftware.babybuddywidgets.networking;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import androidx.annotation.NonNull;
 
 public class StreamReader {
+    public static final int MAX_RESPONSE_SIZE = 4 * 1024 * 1024;
+
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    private static final int TRANSFER_BUFFER_SIZE = 8 * 1024;
+
+    public static class ResponseTooLargeException extends IOException {
+        public final long limit;
+
+        public ResponseTooLargeException(long limit) {
+            super("Response exceeds the maximum allowed size of " + limit + " bytes");
+            this.limit = limit;
+        }
+    }
+
+    // Per-thread scratch buffer for responses without a Content-Length. The legacy client reads
+    // from a small fixed worker pool, so this stays at a few buffers in total.
+    private static final ThreadLocal<byte[]> transferBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[TRANSFER_BUFFER_SIZE];
+        }
+    };
+
     @NonNull
     public static String loadHttpData(HttpURLConnection con) throws IOException {
         InputStream in = con.getInputStream();
-
-        // Load the html - max 1 MB
-        return loadHttpData(in);
+        return loadHttpData(in, con.getContentLengthLong());
     }
 
     @NonNull
     public static String loadHttpData(InputStream in) throws IOException {
-        byte[] buffer = new byte[1000000];
+        return loadHttpData(in, -1);
+    }
+
+    @NonNull
+    public static String loadHttpData(InputStream in, long contentLength) throws IOException {
+        return loadHttpData(in, contentLength, MAX_RESPONSE_SIZE);
+    }
+
+    /**
+     * Reads the complete stream as UTF-8 text. contentLength is only used as a sizing hint and
+     * may be -1 if it is unknown. Throws a ResponseTooLargeException if the stream holds more
+     * than limit bytes.
+     */
+    @NonNull
+    public static String loadHttpData(InputStream in, long contentLength, int limit) throws IOException {
+        if (contentLength > limit) {
+            throw new ResponseTooLargeException(limit);
+        }
 
+        byte[] buffer;
         int offset = 0;
-        while (true) {
-            if (buffer.length - offset <= 0) {
-                break;
+        if (contentLength >= 0) {
+            // Read directly into an exactly sized buffer, one extra byte to detect lying servers
+            buffer = new byte[(int) contentLength + 1];
+            while (true) {
+                if (offset >= buffer.length) {
+                    buffer = grow(buffer, offset + 1, limit);
+                }
+                int len = in.read(buffer, offset, buffer.length - offset);
+                if (len < 0) {
+                    break;
+                }
+                offset += len;
             }
-            int len = in.read(buffer, offset, buffer.length - offset);
-            if (len <= 0) {
-                break;
+        } else {
+            final byte[] chunk = transferBuffer.get();
+            buffer = new byte[INITIAL_BUFFER_SIZE];
+            while (true) {
+                int len = in.read(chunk, 0, chunk.length);
+                if (len < 0) {
+                    break;
+                }
+                if (offset + len > buffer.length) {
+                    buffer = grow(buffer, offset + len, limit);
+                }
+                System.arraycopy(chunk, 0, buffer, offset, len);
+                offset += len;
             }
-            offset += len;
         }
 
-        String html;
         if (offset <= 0) {
-            html = "";
-        } else {
-            html = new String(buffer, 0, offset, StandardCharsets.UTF_8);
+            return "";
+        }
+        return new String(buffer, 0, offset, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] grow(byte[] buffer, long required, int limit) throws ResponseTooLargeException {
+        if (required > limit) {
+            throw new ResponseTooLargeException(limit);
+        }
+        long newSize = Math.max(required, (long) buffer.length * 2);
+        return Arrays.copyOf(buffer, (int) Math.min(newSize, limit));
+    }
+
+    /**
+     * Wraps a response stream so that it can be handed to a streaming (JSON) parser directly,
+     * while still enforcing a size limit like loadHttpData(). Used by
+     * BabyBuddyClient.dispatchQuery for all responses it does not have to buffer.
+     */
+    @NonNull
+    public static InputStream limitedStream(@NonNull InputStream in) {
+        return limitedStream(in, MAX_RESPONSE_SIZE);
+    }
+
+    @NonNull
+    public static InputStream limitedStream(@NonNull InputStream in, long limit) {
+        return new LimitedInputStream(in, limit);
+    }
+
+    private static class LimitedInputStream extends FilterInputStream {
+        private final long limit;
+        private long consumed = 0;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        private void account(long n) throws ResponseTooLargeException {
+            if (n > 0) {
+                consumed += n;
+                if (consumed > limit) {
+                    throw new ResponseTooLargeException(limit);
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                account(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            account(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            account(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
         }
-        return html;
     }
 }
@@ -0,0 +1,75 @@
+package eu.pkgsoftware.babybuddywidgets.networking.babybuddy
+
+import com.fasterxml.jackson.databind.JsonNode
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.ApiInterface
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.ChildKey
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.PaginatedEntries
+import retrofit2.Call
+import java.lang.reflect.Method
+import kotlin.reflect.KClass
+import kotlin.reflect.KType
+import kotlin.reflect.full.findAnnotation
+import kotlin.reflect.full.findParameterByName
+import kotlin.reflect.full.functions
+import kotlin.reflect.jvm.javaMethod
+
+class ApiDispatchEntry(
+    val getter: Method?,
+    val getterName: String?,
+    val childKey: String?,
+    val creator: Method?,
+)
+
+/**
+ * Maps entry classes to the ApiInterface methods used to page through and create them. The
+ * table is built with Kotlin reflection once, on first use, instead of scanning ApiInterface
+ * for every single getEntries / createEntry call.
+ */
+object ApiDispatch {
+    private val EMPTY_ENTRY = ApiDispatchEntry(null, null, null, null)
+
+    private val table: Map<KClass<*>, ApiDispatchEntry> by lazy { buildTable() }
+
+    fun forClass(itemClass: KClass<*>): ApiDispatchEntry {
+        return table[itemClass] ?: EMPTY_ENTRY
+    }
+
+    private fun typeArgumentClass(type: KType?): KClass<*>? {
+        return type?.arguments?.singleOrNull()?.type?.classifier as? KClass<*>
+    }
+
+    private fun buildTable(): Map<KClass<*>, ApiDispatchEntry> {
+        val getters = mutableMapOf<KClass<*>, Pair<Method, String?>>()
+        val getterNames = mutableMapOf<KClass<*>, String>()
+        val creators = mutableMapOf<KClass<*>, Method>()
+
+        for (func in ApiInterface::class.functions) {
+            if (func.returnType.classifier != Call::class) {
+                continue
+            }
+            val callType = func.returnType.arguments.singleOrNull()?.type ?: continue
+            val method = func.javaMethod ?: continue
+
+            if (callType.classifier == PaginatedEntries::class) {
+                val itemClass = typeArgumentClass(callType) ?: continue
+                getters[itemClass] = Pair(method, func.findAnnotation<ChildKey>()?.name)
+                getterNames[itemClass] = func.name
+            } else if (func.findParameterByName("data")?.type?.classifier == JsonNode::class) {
+                val itemClass = callType.classifier as? KClass<*> ?: continue
+                creators[itemClass] = method
+            }
+        }
+
+        val result = mutableMapOf<KClass<*>, ApiDispatchEntry>()
+        for (itemClass in getters.keys + creators.keys) {
+            val getter = getters[itemClass]
+            result[itemClass] = ApiDispatchEntry(
+                getter = getter?.first,
+                getterName = getterNames[itemClass],
+                childKey = getter?.second,
+                creator = creators[itemClass],
+            )
+        }
+        return result
+    }
+}
@@ -1,13 +1,11 @@
 package eu.pkgsoftware.babybuddywidgets.networking.babybuddy
 
-import com.fasterxml.jackson.databind.JsonNode
 import com.fasterxml.jackson.databind.node.ObjectNode
-import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import eu.pkgsoftware.babybuddywidgets.SharedObjectMapper
 import eu.pkgsoftware.babybuddywidgets.debugging.GlobalDebugObject
 import eu.pkgsoftware.babybuddywidgets.networking.RequestCodeFailure
 import eu.pkgsoftware.babybuddywidgets.networking.ServerAccessProviderInterface
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.ApiInterface
-import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.ChildKey
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.IncorrectApiConfiguration
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.PaginatedEntries
 import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.Profile
@@ -28,28 +26,19 @@ import java.net.MalformedURLException
 import java.net.URL
 import kotlin.random.Random
 import kotlin.reflect.KClass
-import kotlin.reflect.KFunction
-import kotlin.reflect.KTypeProjection
-import kotlin.reflect.KVariance
-import kotlin.reflect.full.createType
-import kotlin.reflect.full.findAnnotation
-import kotlin.reflect.full.findParameterByName
-import kotlin.reflect.full.functions
-import kotlin.reflect.jvm.javaMethod
 
 fun genRequestId(): String {
     return Random.nextInt(0xFFFFFF + 1).toString(16).padStart(6, '0')
 }
 
 class AuthInterceptor(
-    private val authToken: String,
-    private val cookies: Map<String, String>
+    private val credStore: ServerAccessProviderInterface
 ) : Interceptor {
     override fun intercept(chain: Interceptor.Chain): Response {
         val originalRequest = chain.request()
         val requestWithAuth = originalRequest.newBuilder()
-            .header("Authorization", authToken)
-            .header("Cookie", cookies.map { "${it.key}=${it.value}" }.joinToString("; "))
+            .header("Authorization", "Token " + credStore.appToken)
+            .header("Cookie", credStore.authCookies.map { "${it.key}=${it.value}" }.joinToString("; "))
             .build()
         return chain.proceed(requestWithAuth)
     }
@@ -98,15 +87,15 @@ data class PaginatedResult<T> (
 )
 
 class Client(val credStore: ServerAccessProviderInterface) {
-    val httpClient = OkHttpClient.Builder()
+    val httpClient: OkHttpClient = SharedHttpClient.base.newBuilder()
         .addInterceptor(ServerTimeOffsetInterceptor(SystemServerTimeOffsetTracker))
-        .addInterceptor(AuthInterceptor("Token " + credStore.appToken, credStore.authCookies))
+        .addInterceptor(AuthInterceptor(credStore))
         .addInterceptor(DebugNetworkInterceptor())
         .build()
 
     val retrofit = Retrofit.Builder()
         .baseUrl(credStore.serverUrl.trimEnd('/') + "/api/")
-        .addConverterFactory(JacksonConverterFactory.create())
+        .addConverterFactory(JacksonConverterFactory.create(SharedObjectMapper.mapper))
         .client(httpClient)
         .build()
 
@@ -169,19 +158,20 @@ class Client(val credStore: ServerAccessProviderInterface) {
             try {
                 GlobalDebugObject.log("${REQID} V2Client::getEntries ${itemClass.simpleName} childId=${childId} offset=${offset} limit=${limit}")
 
-                val selected: KFunction<*> = selectPaginatedGetterFunction(itemClass)
+                val dispatch = ApiDispatch.forClass(itemClass)
+                val getter = dispatch.getter
                     ?: throw IncorrectApiConfiguration("getter for ${itemClass.qualifiedName} is missing")
 
                 val lExtraArgs = extraArgs.toMutableMap()
                 if (childId != null) {
-                    val childKeyAnn = selected.findAnnotation<ChildKey>()
+                    val childKey = dispatch.childKey
                         ?: throw IncorrectApiConfiguration(
-                            "ChildKey annotation for ${selected.name} is missing"
+                            "ChildKey annotation for ${dispatch.getterName} is missing"
                         )
-                    lExtraArgs[childKeyAnn.name] = childId.toString()
+                    lExtraArgs[childKey] = childId.toString()
                 }
 
-                val call: Call<PaginatedEntries<T>> = selected.javaMethod!!.invoke(
+                val call: Call<PaginatedEntries<T>> = getter.invoke(
                     api, offset, limit, lExtraArgs
                 ) as Call<PaginatedEntries<T>>
                 val callResult = executeCall(call)
@@ -218,68 +208,22 @@ class Client(val credStore: ServerAccessProviderInterface) {
         }
     }
 
-    private fun <T : Any> selectPaginatedGetterFunction(itemClass: KClass<T>): KFunction<*>? {
-        val desiredReturnType = Call::class.createType(
-            arguments = listOf(
-                KTypeProjection(
-                    KVariance.INVARIANT,
-                    PaginatedEntries::class.createType(
-                        arguments = listOf(
-                            KTypeProjection(
-                                KVariance.INVARIANT,
-                                itemClass.createType()
-                            )
-                        )
-                    )
-                )
-            )
-        )
-
-        var selected: KFunction<*>? = null
-        for (func in ApiInterface::class.functions) {
-            if (func.returnType == desiredReturnType) {
-                selected = func
-            }
-        }
-        return selected
-    }
-
     suspend fun <T : TimeEntry> createEntry(itemClass: KClass<T>, item: T): T {
         val REQID = genRequestId()
         val klass = item.javaClass.kotlin
 
-        val desiredArgumentType = JsonNode::class.createType()
-        val desiredReturnType = Call::class.createType(
-            arguments = listOf(
-                KTypeProjection(
-                    KVariance.INVARIANT,
-                    itemClass.createType()
-                )
-            )
-        )
-        var selected: KFunction<*>? = null
-        for (func in ApiInterface::class.functions) {
-            if (desiredArgumentType == func.findParameterByName("data")?.type) {
-                if (desiredReturnType == func.returnType) {
-                    selected = func
-                }
-            }
-        }
-
-        if (selected == null) {
-            throw IncorrectApiConfiguration(
+        val selected = ApiDispatch.forClass(itemClass).creator
+            ?: throw IncorrectApiConfiguration(
                 "${REQID} V2Client::createEntry setter for ${klass.qualifiedName} is missing"
             )
-        }
 
-        val mapper = jacksonObjectMapper()
-        val node = mapper.valueToTree<ObjectNode>(item)
+        val node = SharedObjectMapper.mapper.valueToTree<ObjectNode>(item)
         node.remove("id")
 
         GlobalDebugObject.log("${REQID} V2Client::createEntry ${klass.simpleName}")
         return withContext(Dispatchers.IO) {
             try {
-                val call: Call<T> = selected.javaMethod!!.invoke(api, node) as Call<T>
+                val call: Call<T> = selected.invoke(api, node) as Call<T>
                 return@withContext executeCall(call)
             }
             catch (e: Exception) {
@@ -10,7 +10,132 @@ var SystemServerTimeOffsetTracker = ServerTimeOffsetTracker()
 val DATE_TIME_FORMAT_STRING = "yyyy-MM-dd'T'HH:mm:ssX"
 val DATE_ONLY_FORMAT_STRING = "yyyy-MM-dd"
 
+const val INVALID_TIMESTAMP = Long.MIN_VALUE
+
+private fun parseDigits(s: CharSequence, start: Int, count: Int): Int {
+    var v = 0
+    for (i in start until start + count) {
+        val c = s[i]
+        if (c < '0' || c > '9') {
+            return -1
+        }
+        v = v * 10 + (c - '0')
+    }
+    return v
+}
+
+private fun daysInMonth(year: Int, month: Int): Int {
+    return when (month) {
+        2 -> if ((year % 4 == 0 && year % 100 != 0) || year % 400 == 0) 29 else 28
+        4, 6, 9, 11 -> 30
+        else -> 31
+    }
+}
+
+// Days since 1970-01-01 of a proleptic gregorian date (Howard Hinnant's days_from_civil)
+private fun daysFromCivil(year: Int, month: Int, day: Int): Long {
+    val y = if (month <= 2) year - 1 else year
+    val era = (if (y >= 0) y else y - 399) / 400
+    val yoe = y - era * 400
+    val mp = (month + 9) % 12
+    val doy = (153 * mp + 2) / 5 + day - 1
+    val doe = yoe * 365 + yoe / 4 - yoe / 100 + doy
+    return era.toLong() * 146097 + doe - 719468
+}
+
+/**
+ * Parses timestamps in the format sent by the Baby Buddy server, for example
+ * "2023-10-13T00:07:08.351000+02:00", without any intermediate allocations. Accepted offsets
+ * are "Z", "+hh", "+hhmm" and "+hh:mm". Fractional seconds are dropped, like the previous
+ * SimpleDateFormat based parsing did.
+ *
+ * Returns the epoch milliseconds or INVALID_TIMESTAMP if the string does not strictly match
+ * the format.
+ */
+fun parseServerTimestampMillis(s: CharSequence): Long {
+    val n = s.length
+    if (n < 20) {
+        return INVALID_TIMESTAMP
+    }
+    if (s[4] != '-' || s[7] != '-' || s[10] != 'T' || s[13] != ':' || s[16] != ':') {
+        return INVALID_TIMESTAMP
+    }
+    val year = parseDigits(s, 0, 4)
+    val month = parseDigits(s, 5, 2)
+    val day = parseDigits(s, 8, 2)
+    val hour = parseDigits(s, 11, 2)
+    val minute = parseDigits(s, 14, 2)
+    val second = parseDigits(s, 17, 2)
+    if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+        return INVALID_TIMESTAMP
+    }
+    if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+        return INVALID_TIMESTAMP
+    }
+
+    var i = 19
+    if (s[i] == '.') {
+        i++
+        val fractionStart = i
+        while (i < n && s[i] >= '0' && s[i] <= '9') {
+            i++
+        }
+        if (i == fractionStart) {
+            return INVALID_TIMESTAMP
+        }
+    }
+    if (i >= n) {
+        return INVALID_TIMESTAMP
+    }
+
+    val offsetMinutes: Int
+    val zoneChar = s[i]
+    if (zoneChar == 'Z') {
+        offsetMinutes = 0
+        i++
+    } else if (zoneChar == '+' || zoneChar == '-') {
+        i++
+        if (i + 2 > n) {
+            return INVALID_TIMESTAMP
+        }
+        val offsetHours = parseDigits(s, i, 2)
+        i += 2
+        var offsetMins = 0
+        if (i < n) {
+            if (s[i] == ':') {
+                i++
+            }
+            if (i + 2 > n) {
+                return INVALID_TIMESTAMP
+            }
+            offsetMins = parseDigits(s, i, 2)
+            i += 2
+        }
+        if (offsetHours < 0 || offsetHours > 23 || offsetMins < 0 || offsetMins > 59) {
+            return INVALID_TIMESTAMP
+        }
+        val absOffset = offsetHours * 60 + offsetMins
+        offsetMinutes = if (zoneChar == '-') -absOffset else absOffset
+    } else {
+        return INVALID_TIMESTAMP
+    }
+    if (i != n) {
+        return INVALID_TIMESTAMP
+    }
+
+    val days = daysFromCivil(year, month, day)
+    return ((days * 24 + hour) * 60 + minute - offsetMinutes) * 60_000L + second * 1000L
+}
+
 fun parseNullOrDate(s: String, format: String): Date? {
+    if (format == DATE_TIME_FORMAT_STRING) {
+        val millis = parseServerTimestampMillis(s)
+        if (millis != INVALID_TIMESTAMP) {
+            return Date(millis)
+        }
+    }
+
+    // Lenient fallback for date-only values and anything the fast parser does not accept
     val sdf = SimpleDateFormat(format, Locale.ENGLISH)
 
     try {
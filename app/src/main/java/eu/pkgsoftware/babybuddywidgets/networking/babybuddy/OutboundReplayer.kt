@@ -0,0 +1,462 @@
+package eu.pkgsoftware.babybuddywidgets.networking.babybuddy
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties
+import com.fasterxml.jackson.annotation.JsonProperty
+import com.fasterxml.jackson.core.JsonProcessingException
+import eu.pkgsoftware.babybuddywidgets.OutboundOp
+import eu.pkgsoftware.babybuddywidgets.OutboundOpKind
+import eu.pkgsoftware.babybuddywidgets.OutboundQueueStats
+import eu.pkgsoftware.babybuddywidgets.OutboundStorage
+import eu.pkgsoftware.babybuddywidgets.SharedObjectMapper
+import eu.pkgsoftware.babybuddywidgets.TimelineCache
+import eu.pkgsoftware.babybuddywidgets.compat.BabyBuddyV2TimerAdapter
+import eu.pkgsoftware.babybuddywidgets.debugging.GlobalDebugObject
+import eu.pkgsoftware.babybuddywidgets.history.IMPLEMENTED_EVENT_CLASSES
+import eu.pkgsoftware.babybuddywidgets.history.PendingEntryChanges
+import eu.pkgsoftware.babybuddywidgets.networking.BabyBuddyClient
+import eu.pkgsoftware.babybuddywidgets.networking.RequestCodeFailure
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.IncorrectApiConfiguration
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.TimeEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.classActivityName
+import eu.pkgsoftware.babybuddywidgets.utils.AsyncClientRequest
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
+import java.io.IOException
+import java.util.Date
+import kotlin.random.Random
+import kotlin.reflect.KClass
+
+const val OUTBOUND_BATCH_SIZE = 10
+const val OUTBOUND_INITIAL_RETRY_INTERVAL = 1000L
+const val OUTBOUND_RETRY_LIMIT = 5 * 60 * 1000L
+const val OUTBOUND_MAX_ATTEMPTS = 10
+const val OUTBOUND_LOOKUP_SIZE = 50
+
+/**
+ * Delay before the next replay after failures failed replays in a row. Doubles with every
+ * failure up to OUTBOUND_RETRY_LIMIT, plus up to 25% jitter so that several devices that lost
+ * the connection together do not retry in lockstep.
+ */
+fun outboundRetryDelay(failures: Int, random: Random = Random.Default): Long {
+    var base = OUTBOUND_INITIAL_RETRY_INTERVAL
+    for (i in 1 until failures) {
+        base *= 2
+        if (base >= OUTBOUND_RETRY_LIMIT) {
+            base = OUTBOUND_RETRY_LIMIT
+            break
+        }
+    }
+    return base + random.nextLong(base / 4 + 1)
+}
+
+/** The entry created from local, which has no server id yet, as returned by the server */
+fun isSameEntry(local: TimeEntry, server: TimeEntry): Boolean {
+    return (local::class == server::class) &&
+        (Math.abs(local.start.time - server.start.time) < 1000) && (local.notes == server.notes)
+}
+
+/** The server rejected the operation itself, sending it again will not help */
+fun isRejectedOutboundOp(e: RequestCodeFailure): Boolean {
+    return (e.code >= 400) && (e.code < 500) &&
+        (e.code != 401) && (e.code != 403) && (e.code != 408) && (e.code != 429)
+}
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+data class OutboundTimerStart(
+    @JsonProperty("name") val name: String,
+    @JsonProperty("start") val start: Long,
+)
+
+fun interface OutboundQueueListener {
+    fun outboundQueueChanged(stats: OutboundQueueStats)
+}
+
+fun interface OutboundOpListener {
+    /** Called when op was sent, or with the error if it was rejected or failed too often and was dropped */
+    fun outboundOpDone(op: OutboundOp, error: Exception?)
+}
+
+/** The server calls needed to replay operations */
+interface OutboundServer {
+    suspend fun recentEntries(type: KClass<TimeEntry>, childId: Int, limit: Int): List<TimeEntry>
+
+    suspend fun createEntry(type: KClass<TimeEntry>, entry: TimeEntry)
+
+    suspend fun deleteEntry(entry: TimeEntry)
+
+    suspend fun listTimers(childId: Int): Array<BabyBuddyClient.Timer>
+
+    suspend fun createTimer(childId: Int, name: String, start: Date)
+
+    suspend fun deleteTimer(timerId: Int)
+}
+
+class ClientOutboundServer(private val clientProvider: () -> BabyBuddyClient) : OutboundServer {
+    override suspend fun recentEntries(type: KClass<TimeEntry>, childId: Int, limit: Int): List<TimeEntry> {
+        return clientProvider().v2client.getEntries(type, limit = limit, childId = childId).entries
+    }
+
+    override suspend fun createEntry(type: KClass<TimeEntry>, entry: TimeEntry) {
+        clientProvider().v2client.createEntry(type, entry)
+    }
+
+    override suspend fun deleteEntry(entry: TimeEntry) {
+        clientProvider().v2client.deleteEntry(entry)
+    }
+
+    override suspend fun listTimers(childId: Int): Array<BabyBuddyClient.Timer> {
+        val client = clientProvider()
+        return AsyncClientRequest.call<Array<BabyBuddyClient.Timer>> { client.listTimers(childId, it) }
+    }
+
+    override suspend fun createTimer(childId: Int, name: String, start: Date) {
+        val client = clientProvider()
+        AsyncClientRequest.call<BabyBuddyClient.Timer> { client.createTimer(childId, name, start, it) }
+    }
+
+    override suspend fun deleteTimer(timerId: Int) {
+        val client = clientProvider()
+        AsyncClientRequest.call<Boolean> { client.deleteTimer(timerId, it) }
+    }
+}
+
+/**
+ * Sends the operations of the OutboundQueue to the server, in order. Writes are added to the
+ * queue and complete locally right away; the replay loop picks them up in batches of
+ * OUTBOUND_BATCH_SIZE. If the server cannot be reached, the loop stops at the failed operation,
+ * so later operations never overtake it, and waits for outboundRetryDelay or for replayNow,
+ * which is called when the device gets a network connection.
+ *
+ * The server has no support for idempotency keys, so an operation that was sent before without
+ * a confirmed result is checked against the server state before it is sent again: entries with
+ * the same start and notes count as created, timers are looked up by activity.
+ *
+ * Unexpected errors, like a response that cannot be read, are retried like connection errors
+ * until the operation was tried OUTBOUND_MAX_ATTEMPTS times; then it is dropped, so that it
+ * does not hold up the rest of the queue forever.
+ */
+class OutboundReplayer(
+    private val queue: OutboundStorage,
+    private val server: OutboundServer,
+    private val scope: CoroutineScope,
+) {
+    private val wakeUp = Channel<Unit>(Channel.CONFLATED)
+    private var job: Job? = null
+
+    val queueListeners = mutableListOf<OutboundQueueListener>()
+    val opListeners = mutableListOf<OutboundOpListener>()
+
+    var stats = queue.stats()
+        private set
+
+    /** Starts the replay loop, or restarts it after stop() */
+    fun start() {
+        if (job?.isActive != true) {
+            job = scope.launch {
+                replayLoop()
+            }
+        }
+    }
+
+    fun stop() {
+        job?.cancel()
+        job = null
+    }
+
+    /** Skips the current retry delay */
+    fun replayNow() {
+        wakeUp.trySend(Unit)
+    }
+
+    private fun publishStats() {
+        stats = queue.stats()
+        for (l in queueListeners.toList()) {
+            l.outboundQueueChanged(stats)
+        }
+    }
+
+    private fun changed() {
+        publishStats()
+        replayNow()
+    }
+
+    /** Queues the creation of entry and returns it right away, without a server id */
+    fun <T : TimeEntry> createEntry(entry: T): T {
+        queue.enqueue(
+            entry.childId,
+            OutboundOpKind.CREATE_ENTRY,
+            classActivityName(entry::class),
+            TimelineCache.encodeEntry(entry)
+        )
+        changed()
+        return entry
+    }
+
+    /**
+     * Queues the deletion of entry. An entry without a server id was created locally: if its
+     * creation was not sent yet, it is just forgotten, otherwise the replay of the deletion
+     * looks up the id the server gave it, see replayDeleteEntry.
+     */
+    fun deleteEntry(entry: TimeEntry) {
+        val type = classActivityName(entry::class)
+        val payload = TimelineCache.encodeEntry(entry)
+        if ((entry.id == 0) && queue.removeCreate(entry.childId, type, payload)) {
+            // Never reached the server, forgetting the creation is enough
+            changed()
+            return
+        }
+        queue.enqueue(entry.childId, OutboundOpKind.DELETE_ENTRY, type, payload)
+        changed()
+    }
+
+    /** Queues starting the timer of activity, using the server time start as start time */
+    fun startTimer(childId: Int, activity: String, name: String, start: Date): OutboundOp {
+        val payload = SharedObjectMapper.mapper.writeValueAsString(
+            OutboundTimerStart(name, start.time)
+        )
+        val result = queue.enqueue(childId, OutboundOpKind.START_TIMER, activity, payload)
+        changed()
+        return result
+    }
+
+    fun stopTimer(childId: Int, activity: String): OutboundOp {
+        val result = queue.enqueue(childId, OutboundOpKind.STOP_TIMER, activity, "")
+        changed()
+        return result
+    }
+
+    fun pendingTimerOps(childId: Int): List<OutboundOp> {
+        return queue.pending(childId).filter {
+            (it.kind == OutboundOpKind.START_TIMER) || (it.kind == OutboundOpKind.STOP_TIMER)
+        }
+    }
+
+    fun isPending(op: OutboundOp): Boolean {
+        return queue.contains(op.idempotencyKey)
+    }
+
+    /** The entries of the child that were created or deleted locally and not sent yet */
+    fun pendingEntryChanges(childId: Int): PendingEntryChanges {
+        val created = mutableListOf<TimeEntry>()
+        val createdKeys = mutableListOf<String>()
+        val deleted = mutableListOf<TimeEntry>()
+        for (op in queue.pending(childId)) {
+            if ((op.kind != OutboundOpKind.CREATE_ENTRY) && (op.kind != OutboundOpKind.DELETE_ENTRY)) {
+                continue
+            }
+            try {
+                val entry = TimelineCache.decodeEntry(entryClass(op), op.payload)
+                if (op.kind == OutboundOpKind.CREATE_ENTRY) {
+                    created.add(entry)
+                    createdKeys.add(op.idempotencyKey)
+                } else {
+                    deleted.add(entry)
+                }
+            }
+            catch (e: JsonProcessingException) {
+                // Dropped by the replay
+            }
+            catch (e: IncorrectApiConfiguration) {
+                // Dropped by the replay
+            }
+        }
+        return PendingEntryChanges(created, deleted, createdKeys)
+    }
+
+    private suspend fun replayLoop() {
+        var failures = 0
+        while (true) {
+            if (replayPending()) {
+                failures = 0
+                wakeUp.receive()
+                continue
+            }
+            failures++
+            val delayMs = outboundRetryDelay(failures)
+            GlobalDebugObject.log("OutboundReplayer: replay failed $failures times, retrying in ${delayMs}ms")
+            withTimeoutOrNull(delayMs) {
+                wakeUp.receive()
+            }
+        }
+    }
+
+    /**
+     * Sends the queued operations in order. Returns true once the queue is empty, false if an
+     * operation has to be retried later.
+     */
+    suspend fun replayPending(): Boolean {
+        while (true) {
+            val batch = withContext(Dispatchers.IO) {
+                queue.head(OUTBOUND_BATCH_SIZE)
+            }
+            if (batch.isEmpty()) {
+                return true
+            }
+            if (!replayBatch(batch)) {
+                return false
+            }
+        }
+    }
+
+    /** Returns false if an operation has to be retried later */
+    private suspend fun replayBatch(batch: List<OutboundOp>): Boolean {
+        for (op in batch) {
+            var error: Exception? = null
+            try {
+                val stillQueued = withContext(Dispatchers.IO) {
+                    queue.contains(op.idempotencyKey).also {
+                        if (it) queue.markAttempt(op)
+                    }
+                }
+                if (!stillQueued) {
+                    continue
+                }
+                execute(op)
+            }
+            catch (e: CancellationException) {
+                throw e
+            }
+            catch (e: JsonProcessingException) {
+                GlobalDebugObject.log("OutboundReplayer: dropping unreadable ${op.kind} ${op.type}: $e")
+                error = e
+            }
+            catch (e: IncorrectApiConfiguration) {
+                GlobalDebugObject.log("OutboundReplayer: dropping ${op.kind} ${op.type}: $e")
+                error = e
+            }
+            catch (e: RequestCodeFailure) {
+                if (!isRejectedOutboundOp(e)) {
+                    markFailed(op, e)
+                    return false
+                }
+                GlobalDebugObject.log("OutboundReplayer: server rejected ${op.kind} ${op.type}: ${e.code}")
+                error = e
+            }
+            catch (e: IOException) {
+                markFailed(op, e)
+                return false
+            }
+            catch (e: Exception) {
+                // op.attempts does not include the attempt that just failed
+                if (op.attempts + 1 < OUTBOUND_MAX_ATTEMPTS) {
+                    GlobalDebugObject.log("OutboundReplayer: ${op.kind} ${op.type} failed: $e")
+                    markFailed(op, e)
+                    return false
+                }
+                GlobalDebugObject.log("OutboundReplayer: dropping ${op.kind} ${op.type} after ${op.attempts + 1} attempts: $e")
+                error = e
+            }
+
+            withContext(Dispatchers.IO) {
+                queue.remove(op)
+            }
+            publishStats()
+            for (l in opListeners.toList()) {
+                l.outboundOpDone(op, error)
+            }
+        }
+        return true
+    }
+
+    private suspend fun markFailed(op: OutboundOp, e: Exception) {
+        withContext(Dispatchers.IO) {
+            queue.markFailed(op, e.toString())
+        }
+    }
+
+    private suspend fun execute(op: OutboundOp) {
+        when (op.kind) {
+            OutboundOpKind.CREATE_ENTRY -> replayCreateEntry(op)
+            OutboundOpKind.DELETE_ENTRY -> replayDeleteEntry(op)
+            OutboundOpKind.START_TIMER -> replayStartTimer(op)
+            OutboundOpKind.STOP_TIMER -> replayStopTimer(op)
+        }
+    }
+
+    private fun entryClass(op: OutboundOp): KClass<TimeEntry> {
+        val result = IMPLEMENTED_EVENT_CLASSES.firstOrNull { classActivityName(it) == op.type }
+            ?: throw IncorrectApiConfiguration("No entry class for activity ${op.type}")
+        @Suppress("UNCHECKED_CAST")
+        return result as KClass<TimeEntry>
+    }
+
+    private suspend fun replayCreateEntry(op: OutboundOp) {
+        val type = entryClass(op)
+        val entry = TimelineCache.decodeEntry(type, op.payload)
+        if (op.attempts > 0) {
+            val recent = server.recentEntries(type, op.childId, OUTBOUND_LOOKUP_SIZE)
+            if (recent.any { isSameEntry(entry, it) }) {
+                return
+            }
+        }
+        server.createEntry(type, entry)
+    }
+
+    private suspend fun replayDeleteEntry(op: OutboundOp) {
+        val type = entryClass(op)
+        val local = TimelineCache.decodeEntry(type, op.payload)
+        val entry = if (local.id != 0) {
+            local
+        } else {
+            // Created locally: the creation was queued earlier, so it was replayed (or dropped)
+            // by now and the entry can be found on the server
+            server.recentEntries(type, op.childId, OUTBOUND_LOOKUP_SIZE).firstOrNull {
+                isSameEntry(local, it)
+            } ?: return
+        }
+        try {
+            server.deleteEntry(entry)
+        }
+        catch (e: RequestCodeFailure) {
+            if (e.code != 404) {
+                throw e
+            }
+        }
+    }
+
+    private suspend fun activityTimers(op: OutboundOp): List<BabyBuddyClient.Timer> {
+        return server.listTimers(op.childId).filter {
+            BabyBuddyV2TimerAdapter.mapBabyBuddyNameToActivity(it.readableName()) == op.type
+        }
+    }
+
+    private suspend fun replayStartTimer(op: OutboundOp) {
+        val start = SharedObjectMapper.mapper.readValue(op.payload, OutboundTimerStart::class.java)
+        val existing = activityTimers(op).firstOrNull()
+        if (existing?.active == true) {
+            return
+        }
+        if (existing != null) {
+            // Version 1.x keeps stopped timers around. Restarting one would start it at the time
+            // of the replay, so it is replaced by a timer with the start time that was shown.
+            try {
+                server.deleteTimer(existing.id)
+            }
+            catch (e: RequestCodeFailure) {
+                if (e.code != 404) {
+                    throw e
+                }
+            }
+        }
+        server.createTimer(op.childId, start.name, Date(start.start))
+    }
+
+    private suspend fun replayStopTimer(op: OutboundOp) {
+        for (timer in activityTimers(op)) {
+            try {
+                server.deleteTimer(timer.id)
+            }
+            catch (e: RequestCodeFailure) {
+                if (e.code != 404) {
+                    throw e
+                }
+            }
+        }
+    }
+}
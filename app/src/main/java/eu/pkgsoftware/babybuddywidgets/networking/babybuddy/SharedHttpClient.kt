@@ -0,0 +1,28 @@
+package eu.pkgsoftware.babybuddywidgets.networking.babybuddy
+
+import okhttp3.ConnectionPool
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import java.util.concurrent.TimeUnit
+
+/**
+ * Process wide OkHttp base client. Both the legacy BabyBuddyClient and the V2 Client derive their
+ * clients from this one using newBuilder(), so they share a single connection pool and dispatcher.
+ * The timer and children polling therefore reuses warm (keep-alive, and where the server
+ * supports it, HTTP/2) connections instead of doing a TCP/TLS handshake for every poll.
+ */
+object SharedHttpClient {
+    // A handful of idle connections is plenty: the app only ever talks to one server and the
+    // legacy query pool is limited to a few workers.
+    const val MAX_IDLE_CONNECTIONS = 5
+    const val KEEP_ALIVE_MINUTES = 5L
+
+    val connectionPool = ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES)
+
+    @JvmStatic
+    val base: OkHttpClient = OkHttpClient.Builder()
+        .connectionPool(connectionPool)
+        .protocols(listOf(Protocol.HTTP_2, Protocol.HTTP_1_1))
+        .retryOnConnectionFailure(true)
+        .build()
+}
@@ -14,6 +14,7 @@ import eu.pkgsoftware.babybuddywidgets.networking.BabyBuddyClient.ACTIVITIES
 import eu.pkgsoftware.babybuddywidgets.networking.BabyBuddyClient.EVENTS
 import eu.pkgsoftware.babybuddywidgets.DateTimeDeserializer
 import eu.pkgsoftware.babybuddywidgets.DateOnlyDeserializer
+import eu.pkgsoftware.babybuddywidgets.DateOnlySerializer
 import eu.pkgsoftware.babybuddywidgets.DateTimeSerializer
 import java.util.Date
 import kotlin.reflect.KClass
@@ -188,7 +189,7 @@ data class NoteEntry(
 data class BmiEntry(
     @JsonProperty("id", required = true) override val id: Int,
     @JsonProperty("child", required = true) override val childId: Int,
-    @JsonProperty("date", required = true) @JsonDeserialize(using = DateOnlyDeserializer::class) override val start: Date,
+    @JsonProperty("date", required = true) @JsonDeserialize(using = DateOnlyDeserializer::class) @JsonSerialize(using = DateOnlySerializer::class) override val start: Date,
     @param:JsonProperty("notes", required = false) val _notes: String?,
     @JsonProperty("bmi", required = true) val bmi: Double,
 ) : TimeEntry {
@@ -205,7 +206,7 @@ data class BmiEntry(
 data class TemperatureEntry(
     @JsonProperty("id", required = true) override val id: Int,
     @JsonProperty("child", required = true) override val childId: Int,
-    @JsonProperty("time", required = true) @JsonDeserialize(using = DateTimeDeserializer::class) override val start: Date,
+    @JsonProperty("time", required = true) @JsonDeserialize(using = DateTimeDeserializer::class) @JsonSerialize(using = DateTimeSerializer::class) override val start: Date,
     @param:JsonProperty("notes", required = false) val _notes: String?,
     @JsonProperty("temperature", required = true) val temperature: Double,
 ) : TimeEntry {
@@ -222,7 +223,7 @@ data class TemperatureEntry(
 data class WeightEntry(
     @JsonProperty("id", required = true) override val id: Int,
     @JsonProperty("child", required = true) override val childId: Int,
-    @JsonProperty("date", required = true) @JsonDeserialize(using = DateOnlyDeserializer::class) override val start: Date,
+    @JsonProperty("date", required = true) @JsonDeserialize(using = DateOnlyDeserializer::class) @JsonSerialize(using = DateOnlySerializer::class) override val start: Date,
     @param:JsonProperty("notes", required = false) val _notes: String?,
     @JsonProperty("weight", required = true) val weight: Double,
 ) : TimeEntry {
@@ -239,7 +240,7 @@ data class WeightEntry(
 data class HeightEntry(
     @JsonProperty("id", required = true) override val id: Int,
     @JsonProperty("child", required = true) override val childId: Int,
-    @JsonProperty("date", required = true) @JsonDeserialize(using = DateOnlyDeserializer::class) override val start: Date,
+    @JsonProperty("date", required = true) @JsonDeserialize(using = DateOnlyDeserializer::class) @JsonSerialize(using = DateOnlySerializer::class) override val start: Date,
     @param:JsonProperty("notes", required = false) val _notes: String?,
     @JsonProperty("height", required = true) val height: Double,
 ) : TimeEntry {
@@ -256,7 +257,7 @@ data class HeightEntry(
 data class HeadCircumferenceEntry(
     @JsonProperty("id", required = true) override val id: Int,
     @JsonProperty("child", required = true) override val childId: Int,
-    @JsonProperty("date", required = true) @JsonDeserialize(using = DateOnlyDeserializer::class) override val start: Date,
+    @JsonProperty("date", required = true) @JsonDeserialize(using = DateOnlyDeserializer::class) @JsonSerialize(using = DateOnlySerializer::class) override val start: Date,
     @param:JsonProperty("notes", required = false) val _notes: String?,
     @JsonProperty("head_circumference", required = true) val head_circumference: Double,
 ) : TimeEntry {
@@ -8,6 +8,10 @@ interface TimersUpdatedCallback {
     fun newTimerListLoaded(timers: Array<Timer>)
 }
 
+fun interface TimerModificationFailedCallback {
+    fun timerModificationFailed(timer: Timer, error: TranslatedException?)
+}
+
 class TranslatedException(message: String, val originalError: java.lang.Exception?) :
     Exception(message) {
 }
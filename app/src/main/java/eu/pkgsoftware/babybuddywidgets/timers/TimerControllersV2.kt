@@ -1,7 +1,6 @@
 package eu.pkgsoftware.babybuddywidgets.timers
 
 import android.content.Context
-import android.os.Handler
 import android.view.View
 import android.view.ViewGroup
 import android.view.inputmethod.InputMethodManager
@@ -50,6 +49,7 @@ import eu.pkgsoftware.babybuddywidgets.utils.AsyncPromise
 import eu.pkgsoftware.babybuddywidgets.utils.AsyncPromiseFailure
 import eu.pkgsoftware.babybuddywidgets.utils.ConcurrentEventBlocker
 import eu.pkgsoftware.babybuddywidgets.utils.Promise
+import eu.pkgsoftware.babybuddywidgets.utils.SecondTicker
 import eu.pkgsoftware.babybuddywidgets.widgets.HorizontalDecIncEditor
 import eu.pkgsoftware.babybuddywidgets.widgets.SwitchButtonLogic
 import kotlinx.coroutines.Runnable
@@ -410,8 +410,7 @@ class DiaperLoggingController(val fragment: BaseFragment, childId: Int) : Loggin
         val color = if (extraOptionsLogic.state) diaperColor?.post_name else null
         val amount = if (extraOptionsLogic.state) bindings.amountEditor.value else null
 
-        return fragment.mainActivity.client.v2client.createEntry(
-            ChangeEntry::class,
+        return fragment.mainActivity.outbound.createEntry(
             ChangeEntry(
                 id = 0,
                 childId = childId,
@@ -472,8 +471,7 @@ class NotesLoggingController(val fragment: BaseFragment, childId: Int) : Logging
     }
 
     suspend override fun save(): TimeEntry {
-        return fragment.mainActivity.client.v2client.createEntry(
-            NoteEntry::class,
+        return fragment.mainActivity.outbound.createEntry(
             NoteEntry(
                 id = 0,
                 childId = childId,
@@ -936,7 +934,12 @@ class LoggingButtonController(
         ),
     )
 
-    private var timerHandler: Handler? = Handler(fragment.mainActivity.mainLooper)
+    private var ticker: SecondTicker.Subscription? = null
+    private val timerAdapter = fragment.mainActivity.getChildTimerControl(child)
+    private val timerModificationFailed = TimerModificationFailedCallback { _, error ->
+        // The switch was already flipped back by the rollback of the timer state
+        fragment.showError(true, R.string.activity_store_failure_message, error?.message)
+    }
     private var cachedTimers = emptyArray<Timer>()
     private val timerModificationsBlocker = ConcurrentEventBlocker()
 
@@ -975,7 +978,9 @@ class LoggingButtonController(
             }
         }
 
-        timerHandler()
+        timerAdapter.modificationFailedCallback = timerModificationFailed
+        updateVisuals()
+        ticker = SecondTicker.subscribe(bindings.root) { updateVisuals() }
     }
 
     private fun startTimerFromSwitch(
@@ -1079,12 +1084,9 @@ class LoggingButtonController(
         }
     }
 
-    private fun timerHandler() {
-        timerHandler?.let {
-            it.postDelayed(Runnable { timerHandler() }, 500)
-            for (c in loggingControllers.values) {
-                c.updateVisuals()
-            }
+    private fun updateVisuals() {
+        for (c in loggingControllers.values) {
+            c.updateVisuals()
         }
     }
 
@@ -1156,7 +1158,11 @@ class LoggingButtonController(
             logic.destroy()
         }
         timerControl.unregisterTimersUpdatedCallback(this)
-        timerHandler = null
+        ticker?.cancel()
+        ticker = null
+        if (timerAdapter.modificationFailedCallback === timerModificationFailed) {
+            timerAdapter.modificationFailedCallback = null
+        }
     }
 
     override fun newTimerListLoaded(timers: Array<Timer>) {
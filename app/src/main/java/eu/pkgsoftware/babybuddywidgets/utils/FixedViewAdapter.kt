@@ -0,0 +1,29 @@
+package eu.pkgsoftware.babybuddywidgets.utils
+
+import android.view.View
+import android.view.ViewGroup
+import androidx.recyclerview.widget.RecyclerView
+
+/**
+ * Shows one existing view as the only item of an adapter, e.g. to put static content above or
+ * below a list in a ConcatAdapter. The view is taken out of its layout parent.
+ */
+class FixedViewAdapter(private val view: View) : RecyclerView.Adapter<FixedViewAdapter.Holder>() {
+    class Holder(view: View) : RecyclerView.ViewHolder(view)
+
+    init {
+        (view.parent as? ViewGroup)?.removeView(view)
+    }
+
+    override fun getItemCount(): Int {
+        return 1
+    }
+
+    override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): Holder {
+        (view.parent as? ViewGroup)?.removeView(view)
+        return Holder(view)
+    }
+
+    override fun onBindViewHolder(holder: Holder, position: Int) {
+    }
+}
@@ -0,0 +1,101 @@
+package eu.pkgsoftware.babybuddywidgets.utils
+
+import android.graphics.Rect
+import android.view.Choreographer
+import android.view.View
+import android.view.ViewTreeObserver
+
+/**
+ * App-wide ticker for everything that shows a running time, like the timer labels. All
+ * subscribers are called together on the first frame after every full wall-clock second, so
+ * their labels change in the same frame and the app wakes up at most once per second, instead
+ * of every display reposting its own runnable.
+ *
+ * A subscription belongs to a view. The ticker stops when none of these views is on screen and
+ * starts again (with an immediate tick) as soon as one of them is drawn. Main thread only.
+ */
+object SecondTicker {
+    class Subscription internal constructor(val view: View, private val onTick: Runnable) :
+        View.OnAttachStateChangeListener, ViewTreeObserver.OnPreDrawListener {
+
+        internal fun tick() {
+            onTick.run()
+        }
+
+        override fun onViewAttachedToWindow(v: View) {
+            v.viewTreeObserver.addOnPreDrawListener(this)
+            ensureRunning()
+        }
+
+        override fun onViewDetachedFromWindow(v: View) {
+            v.viewTreeObserver.removeOnPreDrawListener(this)
+        }
+
+        override fun onPreDraw(): Boolean {
+            ensureRunning()
+            return true
+        }
+
+        fun cancel() {
+            if (subscriptions.remove(this)) {
+                view.removeOnAttachStateChangeListener(this)
+                if (view.isAttachedToWindow) {
+                    view.viewTreeObserver.removeOnPreDrawListener(this)
+                }
+            }
+        }
+    }
+
+    private val subscriptions = mutableListOf<Subscription>()
+    private val visibleRect = Rect()
+    private var running = false
+
+    private val frameCallback = Choreographer.FrameCallback {
+        running = false
+        val visible = subscriptions.filter { isOnScreen(it.view) }
+        if (visible.isNotEmpty()) {
+            for (s in visible) {
+                s.tick()
+            }
+            schedule(false)
+        }
+    }
+
+    private fun isOnScreen(view: View): Boolean {
+        return view.isAttachedToWindow &&
+            (view.windowVisibility == View.VISIBLE) &&
+            view.isShown &&
+            view.getGlobalVisibleRect(visibleRect)
+    }
+
+    private fun schedule(immediately: Boolean) {
+        running = true
+        val choreographer = Choreographer.getInstance()
+        if (immediately) {
+            choreographer.postFrameCallback(frameCallback)
+        } else {
+            choreographer.postFrameCallbackDelayed(
+                frameCallback, 1000 - System.currentTimeMillis() % 1000
+            )
+        }
+    }
+
+    private fun ensureRunning() {
+        if (!running && subscriptions.any { isOnScreen(it.view) }) {
+            // Whatever is shown may be outdated, do not wait for the next second
+            schedule(true)
+        }
+    }
+
+    /** Calls onTick every second while view is on screen, until the subscription is canceled */
+    fun subscribe(view: View, onTick: Runnable): Subscription {
+        val result = Subscription(view, onTick)
+        subscriptions.add(result)
+        view.addOnAttachStateChangeListener(result)
+        if (view.isAttachedToWindow) {
+            view.viewTreeObserver.addOnPreDrawListener(result)
+        }
+        ensureRunning()
+        return result
+    }
+}
@@ -7,10 +7,10 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Rect;
-import android.os.Handler;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.animation.AnimationUtils;
 
 import androidx.annotation.Nullable;
 import eu.pkgsoftware.babybuddywidgets.R;
@@ -143,10 +143,13 @@ public class HorizontalNumberPicker extends View {
     private float boundedMoveOffset = 0.0f;
     private float moveSpeed = 0.0f;
     private boolean moveAnimationQueued = false;
+    private long lastAnimationFrameTime = 0;
 
     private static final int SPEED_PROBE_INTERVAL_MILLISEC = 200;
     private static final int MAX_SPEED_SAMPLE_INTERVAL_MILLISEC = 50;
     private static final float SPEED_DECAY = 0.02f; // portion of speed available after 1 sec
+    private static final int FIRST_FRAME_MILLISEC = 20;
+    private static final int MAX_FRAME_MILLISEC = 100;
 
     private static class LocationSample {
         public long timeOffset = 0;
@@ -204,10 +207,14 @@ public class HorizontalNumberPicker extends View {
     }
 
     private void animateMove() {
-        double deltaT = 20.0 / 1000.0;
+        // Runs on animation frames, so the step depends on the time since the last frame
+        final long frameTime = AnimationUtils.currentAnimationTimeMillis();
+        double deltaT = FIRST_FRAME_MILLISEC / 1000.0;
         if (moveAnimationQueued) {
+            deltaT = Math.max(1, Math.min(MAX_FRAME_MILLISEC, frameTime - lastAnimationFrameTime)) / 1000.0;
             moveSpeed *= Math.pow(SPEED_DECAY, deltaT);
         }
+        lastAnimationFrameTime = frameTime;
         moveAnimationQueued = true;
 
         final float xSeparation = getXElementSeparation();
@@ -230,7 +237,7 @@ public class HorizontalNumberPicker extends View {
         processDragOffsets();
 
         if (moveAnimationQueued && isShown()) {
-            getHandler().postDelayed(this::animateMove, 20);
+            postOnAnimation(this::animateMove);
         }
     }
 
@@ -0,0 +1,65 @@
+package eu.pkgsoftware.babybuddywidgets
+
+import eu.pkgsoftware.babybuddywidgets.networking.AdaptivePollInterval
+import org.junit.Assert
+import org.junit.Test
+
+class AdaptivePollIntervalTest {
+    @Test
+    fun backsOffWhenUnchanged() {
+        val p = AdaptivePollInterval("test", 1000, 15000)
+        var now = 100000L
+        p.pollCompleted(true, now)
+
+        now += AdaptivePollInterval.RECENT_CHANGE_WINDOW_MS
+        Assert.assertEquals(AdaptivePollInterval.Policy.BACKOFF, p.getPolicy(now))
+        Assert.assertEquals(1000, p.getInterval(now))
+
+        var last = 1000L
+        for (i in 0 until 100) {
+            p.pollCompleted(false, now)
+            val interval = p.getInterval(now)
+            Assert.assertTrue(interval >= last)
+            last = interval
+        }
+        Assert.assertEquals(15000, last)
+
+        p.pollCompleted(true, now)
+        Assert.assertEquals(AdaptivePollInterval.Policy.RECENT_CHANGE, p.getPolicy(now))
+        Assert.assertEquals(1000, p.getInterval(now))
+    }
+
+    @Test
+    fun fastWhileActive() {
+        val p = AdaptivePollInterval("test", 1000, 15000)
+        val now = 100000L
+        for (i in 0 until 100) {
+            p.pollCompleted(false, now)
+        }
+        Assert.assertEquals(15000, p.getInterval(now))
+
+        p.setActive(true)
+        Assert.assertEquals(AdaptivePollInterval.Policy.ACTIVE, p.getPolicy(now))
+        Assert.assertEquals(1000, p.getInterval(now))
+
+        p.setActive(false)
+        Assert.assertEquals(15000, p.getInterval(now))
+    }
+
+    @Test
+    fun fastAfterLocalChange() {
+        val p = AdaptivePollInterval("test", 1000, 15000)
+        var now = 100000L
+        for (i in 0 until 100) {
+            p.pollCompleted(false, now)
+        }
+        p.notifyLocalChange(now)
+        Assert.assertEquals(1000, p.getInterval(now))
+
+        now += AdaptivePollInterval.RECENT_CHANGE_WINDOW_MS - 1
+        Assert.assertEquals(AdaptivePollInterval.Policy.RECENT_CHANGE, p.getPolicy(now))
+        now += 1
+        Assert.assertEquals(AdaptivePollInterval.Policy.BACKOFF, p.getPolicy(now))
+        Assert.assertEquals(1000, p.getInterval(now))
+    }
+}
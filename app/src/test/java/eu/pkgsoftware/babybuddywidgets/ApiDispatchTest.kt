@@ -0,0 +1,102 @@
+package eu.pkgsoftware.babybuddywidgets
+
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.ApiDispatch
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.ApiInterface
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.BmiEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.ChangeEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.Child
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.FeedingEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.HeadCircumferenceEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.HeightEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.NoteEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.PaginatedEntries
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.PumpingEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.SleepEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.TemperatureEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.TummyTimeEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.WeightEntry
+import org.junit.Assert
+import org.junit.Test
+import retrofit2.Call
+import java.lang.reflect.Method
+import kotlin.reflect.KClass
+import kotlin.reflect.full.functions
+import kotlin.reflect.jvm.javaMethod
+
+class ApiDispatchTest {
+    @Test
+    fun paginatedGetters() {
+        val expected = mapOf(
+            SleepEntry::class to "getSleepEntries",
+            FeedingEntry::class to "getFeedingEntries",
+            TummyTimeEntry::class to "getTummyTimeEntries",
+            PumpingEntry::class to "getPumpingEntries",
+            ChangeEntry::class to "getChangeEntries",
+            NoteEntry::class to "getNoteEntries",
+            TemperatureEntry::class to "getTemperatureEnties",
+            WeightEntry::class to "getWeightEntries",
+            HeightEntry::class to "getHeightEntries",
+            HeadCircumferenceEntry::class to "getHeadCircumferenceEntries",
+            BmiEntry::class to "getBmiEntries",
+        )
+        for ((klass, name) in expected) {
+            val entry = ApiDispatch.forClass(klass)
+            Assert.assertEquals(name, entry.getter?.name)
+            Assert.assertEquals("child", entry.childKey)
+        }
+
+        val childEntry = ApiDispatch.forClass(Child::class)
+        Assert.assertEquals("getChildEntries", childEntry.getter?.name)
+        Assert.assertEquals("id", childEntry.childKey)
+        Assert.assertNull(childEntry.creator)
+    }
+
+    @Test
+    fun creators() {
+        val expected = mapOf(
+            ChangeEntry::class to "sendChangeEntry",
+            SleepEntry::class to "sendSleepEntry",
+            TummyTimeEntry::class to "sendTummyTimeEntry",
+            NoteEntry::class to "sendNoteEntry",
+            FeedingEntry::class to "sendFeedingEntry",
+            PumpingEntry::class to "sendPumpingEntry",
+        )
+        for ((klass, name) in expected) {
+            Assert.assertEquals(name, ApiDispatch.forClass(klass).creator?.name)
+        }
+        Assert.assertNull(ApiDispatch.forClass(WeightEntry::class).creator)
+    }
+
+    @Test
+    fun unknownClass() {
+        val entry = ApiDispatch.forClass(String::class)
+        Assert.assertNull(entry.getter)
+        Assert.assertNull(entry.childKey)
+        Assert.assertNull(entry.creator)
+    }
+
+    // How getEntries found its ApiInterface method before the table was introduced
+    private fun reflectiveGetter(itemClass: KClass<*>): Method? {
+        for (func in ApiInterface::class.functions) {
+            if (func.returnType.classifier != Call::class) {
+                continue
+            }
+            val callType = func.returnType.arguments.singleOrNull()?.type ?: continue
+            if ((callType.classifier == PaginatedEntries::class) &&
+                (callType.arguments.singleOrNull()?.type?.classifier == itemClass)) {
+                return func.javaMethod
+            }
+        }
+        return null
+    }
+
+    @Test
+    fun lookupMatchesReflection() {
+        for (klass in listOf(
+            SleepEntry::class, FeedingEntry::class, TummyTimeEntry::class, PumpingEntry::class,
+            ChangeEntry::class, NoteEntry::class, WeightEntry::class, Child::class,
+        )) {
+            Assert.assertEquals(reflectiveGetter(klass), ApiDispatch.forClass(klass).getter)
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package eu.pkgsoftware.babybuddywidgets
+
+import eu.pkgsoftware.babybuddywidgets.networking.ConditionalRequestState
+import okhttp3.Protocol
+import okhttp3.Request
+import okhttp3.Response
+import org.junit.Assert
+import org.junit.Test
+
+class ConditionalRequestStateTest {
+    private val request = Request.Builder().url("https://example.com/api/timers/?limit=1000000").build()
+
+    private fun response(code: Int, etag: String? = null): Response {
+        val builder = Response.Builder()
+            .request(request)
+            .protocol(Protocol.HTTP_1_1)
+            .code(code)
+            .message(if (code == 304) "Not Modified" else "OK")
+        if (etag != null) {
+            builder.header("ETag", etag)
+        }
+        return builder.build()
+    }
+
+    @Test
+    fun failedParseIsNotRecorded() {
+        val tested = ConditionalRequestState()
+
+        // A 200 with an ETag whose body could not be parsed: nothing was recorded
+        val broken = response(200, "\"v1\"")
+        Assert.assertTrue(ConditionalRequestState.hasValidators(broken))
+        Assert.assertNull(tested.decorate(request).header("If-None-Match"))
+
+        // So a 304 for the next poll, e.g. from a caching proxy, is not taken as "unchanged"
+        Assert.assertFalse(tested.hasSeen(response(304)))
+
+        tested.recordParsed(response(200, "\"v1\""), null)
+        Assert.assertEquals("\"v1\"", tested.decorate(request).header("If-None-Match"))
+        Assert.assertTrue(tested.hasSeen(response(304)))
+    }
+
+    @Test
+    fun bodiesWithoutValidatorsAreCompared() {
+        val tested = ConditionalRequestState()
+        val body = "{\"count\": 0, \"results\": []}"
+
+        Assert.assertFalse(tested.isUnchanged(response(200), body))
+        // Parsing failed, the same body has to be parsed again
+        Assert.assertFalse(tested.isUnchanged(response(200), body))
+
+        tested.recordParsed(response(200), body)
+        Assert.assertTrue(tested.isUnchanged(response(200), body))
+        Assert.assertFalse(tested.isUnchanged(response(200), "{\"count\": 1, \"results\": [{}]}"))
+    }
+}
@@ -0,0 +1,120 @@
+package eu.pkgsoftware.babybuddywidgets
+
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.DATE_ONLY_FORMAT_STRING
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.DATE_TIME_FORMAT_STRING
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.INVALID_TIMESTAMP
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.parseNullOrDate
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.parseServerTimestampMillis
+import org.junit.Assert
+import org.junit.Test
+import java.text.ParseException
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+import kotlin.random.Random
+
+class DateParsingTest {
+    // The SimpleDateFormat based implementation that was used before
+    private fun referenceParse(s: String): Date? {
+        val sdf = SimpleDateFormat(DATE_TIME_FORMAT_STRING, Locale.ENGLISH)
+        return try {
+            var strDate = s
+            strDate = strDate.replace("\\.[0-9]+([+-Z])".toRegex(), "$1")
+            strDate = strDate.replace("Z$".toRegex(), "+00:00")
+            sdf.parse(strDate)
+        } catch (e: ParseException) {
+            null
+        }
+    }
+
+    private val serverSamples = listOf(
+        "2023-10-13T00:07:08.351000+02:00",
+        "2023-10-13T00:07:12.107094+02:00",
+        "2024-01-31T23:59:59.999999+01:00",
+        "2024-02-29T12:00:00+00:00",
+        "2023-03-26T01:59:59.5Z",
+        "2023-10-13T00:07:12Z",
+        "2023-10-13T00:07:12-05:00",
+        "2023-10-13T00:07:12+0200",
+        "2023-10-13T00:07:12+02",
+        "1999-12-31T23:59:59-11:00",
+    )
+
+    @Test
+    fun matchesReferenceParser() {
+        for (s in serverSamples) {
+            val expected = referenceParse(s)
+            Assert.assertNotNull(s, expected)
+            Assert.assertEquals(s, expected!!.time, parseServerTimestampMillis(s))
+        }
+    }
+
+    @Test
+    fun matchesReferenceParserRandomized() {
+        val r = Random(1234)
+        for (n in 0 until 20000) {
+            val year = 1970 + r.nextInt(100)
+            val month = 1 + r.nextInt(12)
+            val day = 1 + r.nextInt(28)
+            val fraction = if (r.nextBoolean()) "" else "." + (1 + r.nextInt(999999))
+            val zone = if (r.nextInt(5) == 0) {
+                "Z"
+            } else {
+                String.format(Locale.ENGLISH, "%s%02d:00", if (r.nextBoolean()) "+" else "-", r.nextInt(15))
+            }
+            val s = String.format(
+                Locale.ENGLISH,
+                "%04d-%02d-%02dT%02d:%02d:%02d%s%s",
+                year, month, day, r.nextInt(24), r.nextInt(60), r.nextInt(60), fraction, zone
+            )
+            Assert.assertEquals(s, referenceParse(s)!!.time, parseServerTimestampMillis(s))
+        }
+    }
+
+    @Test
+    fun partialHourOffsets() {
+        // SimpleDateFormat with a single "X" ignores the offset minutes, the new parser does not
+        val base = parseServerTimestampMillis("2023-10-13T12:00:00Z")
+        Assert.assertEquals(
+            base - (5 * 60 + 30) * 60_000L,
+            parseServerTimestampMillis("2023-10-13T12:00:00+05:30")
+        )
+        Assert.assertEquals(
+            base + (3 * 60 + 30) * 60_000L,
+            parseServerTimestampMillis("2023-10-13T12:00:00.123-03:30")
+        )
+    }
+
+    @Test
+    fun rejectsInvalidTimestamps() {
+        val invalid = listOf(
+            "",
+            "2023-10-13",
+            "2023-10-13T00:07:12",
+            "2023-10-13T00:07:12.Z",
+            "2023-10-13T00:07:12+",
+            "2023-10-13T00:07:12+02:",
+            "2023-10-13T00:07:12+02:00x",
+            "2023-13-13T00:07:12Z",
+            "2023-02-29T00:07:12Z",
+            "2023-10-13T24:00:00Z",
+            "2023-10-13 00:07:12Z",
+        )
+        for (s in invalid) {
+            Assert.assertEquals(s, INVALID_TIMESTAMP, parseServerTimestampMillis(s))
+        }
+    }
+
+    @Test
+    fun parseNullOrDateFallsBack() {
+        Assert.assertEquals(
+            referenceParse("2023-10-13T00:07:08.351000+02:00"),
+            parseNullOrDate("2023-10-13T00:07:08.351000+02:00", DATE_TIME_FORMAT_STRING)
+        )
+        Assert.assertNull(parseNullOrDate("2023-10-13", DATE_TIME_FORMAT_STRING))
+        Assert.assertEquals(
+            SimpleDateFormat(DATE_ONLY_FORMAT_STRING, Locale.ENGLISH).parse("2023-10-13"),
+            parseNullOrDate("2023-10-13", DATE_ONLY_FORMAT_STRING)
+        )
+    }
+}
@@ -0,0 +1,265 @@
+package eu.pkgsoftware.babybuddywidgets
+
+import eu.pkgsoftware.babybuddywidgets.networking.BabyBuddyClient
+import org.json.JSONObject
+import org.junit.Assert
+import org.junit.Test
+import java.io.IOException
+import java.util.Date
+
+class LegacyJsonParsingTest {
+    // The timestamps used in the fixtures below. The legacy client drops fractional seconds.
+    private val expectedMillis = mapOf(
+        "2023-10-13T00:07:08.351000+02:00" to 1697148428000L,
+        "2023-10-13T00:07:10.249000+02:00" to 1697148430000L,
+        "2023-10-13T00:07:10.249000Z" to 1697155630000L,
+        "2023-10-13T00:07:12.107094+02:00" to 1697148432000L,
+        "2023-10-13T00:07:16.967648+02:00" to 1697148436000L,
+        "2023-10-13T00:07:20.216000+02:00" to 1697148440000L,
+        "2023-10-13T00:07:29.496101+02:00" to 1697148449000L,
+        "2023-10-24T23:49:40+02:00" to 1698184180000L,
+        "2023-10-24T23:55:40+02:00" to 1698184540000L,
+    )
+
+    // The org.json based implementations that were used before
+    private fun referenceDate(o: JSONObject, field: String): Date? {
+        if (o.isNull(field)) {
+            return null
+        }
+        val s = o.getString(field)
+        return Date(expectedMillis[s] ?: throw AssertionError("No expected value for $s"))
+    }
+
+    private fun referenceChild(o: JSONObject): BabyBuddyClient.Child {
+        val c = BabyBuddyClient.Child()
+        c.id = o.getInt("id")
+        c.slug = o.getString("slug")
+        c.first_name = o.getString("first_name")
+        c.last_name = o.getString("last_name")
+        c.birth_date = o.getString("birth_date")
+        return c
+    }
+
+    private fun referenceTimer(o: JSONObject): BabyBuddyClient.Timer {
+        val t = BabyBuddyClient.Timer()
+        t.id = o.getInt("id")
+        t.child_id = if (o.isNull("child")) null else o.getInt("child")
+        t.name = if (o.isNull("name")) null else o.getString("name")
+        t.start = referenceDate(o, "start")
+        t.end = referenceDate(o, "end")
+        t.active = o.optBoolean("active", true)
+        t.user_id = o.getInt("user")
+        return t
+    }
+
+    private fun referenceTimeEntry(o: JSONObject, type: String): BabyBuddyClient.TimeEntry {
+        var notes: String? = null
+        if (o.has("milestone")) {
+            notes = o.getString("milestone")
+        }
+        if (o.has("notes")) {
+            notes = o.getString("notes")
+        }
+        return BabyBuddyClient.TimeEntry(
+            type, o.getInt("id"), referenceDate(o, "start"), referenceDate(o, "end"), notes ?: ""
+        )
+    }
+
+    private val childrenResponse = """
+    {
+        "count": 2,
+        "next": null,
+        "previous": null,
+        "results": [
+            {
+                "id": 1,
+                "first_name": "Pierre",
+                "last_name": "Doe",
+                "birth_date": "2023-09-01",
+                "slug": "pierre-doe",
+                "picture": null
+            },
+            {
+                "id": 2,
+                "first_name": "Marie",
+                "last_name": "Doe",
+                "birth_date": "2025-02-14",
+                "slug": "marie-doe",
+                "picture": "http://localhost/media/marie.jpg"
+            }
+        ]
+    }"""
+
+    // v1 servers still send the active field, v2 servers omit it
+    private val timersResponse = """
+    {
+        "count": 3,
+        "next": null,
+        "previous": null,
+        "results": [
+            {
+                "id": 12,
+                "child": 1,
+                "name": null,
+                "start": "2023-10-13T00:07:08.351000+02:00",
+                "end": null,
+                "duration": "00:00:03.756094",
+                "user": 1
+            },
+            {
+                "id": 3,
+                "child": null,
+                "name": "Sleep",
+                "start": "2023-10-24T23:49:40+02:00",
+                "end": "2023-10-24T23:55:40+02:00",
+                "duration": "00:06:00",
+                "active": false,
+                "user": 2
+            },
+            {
+                "id": 7,
+                "child": 2,
+                "name": "Feeding",
+                "start": "2023-10-13T00:07:10.249000Z",
+                "end": null,
+                "active": true,
+                "user": 1
+            }
+        ]
+    }"""
+
+    private val timeEntryFixtures = listOf(
+        BabyBuddyClient.ACTIVITIES.SLEEP to """
+        {
+            "id": 269,
+            "child": 1,
+            "start": "2023-10-13T00:07:08.351000+02:00",
+            "end": "2023-10-13T00:07:12.107094+02:00",
+            "duration": "00:00:03.756094",
+            "nap": false,
+            "notes": "",
+            "tags": []
+        }""",
+        BabyBuddyClient.ACTIVITIES.TUMMY_TIME to """
+        {
+            "id": 230,
+            "child": 1,
+            "start": "2023-10-13T00:07:20.216000+02:00",
+            "end": "2023-10-13T00:07:29.496101+02:00",
+            "duration": "00:00:09.280101",
+            "milestone": "Pierre is nice",
+            "tags": []
+        }""",
+        BabyBuddyClient.ACTIVITIES.FEEDING to """
+        {
+            "id": 223,
+            "child": 1,
+            "start": "2023-10-13T00:07:10.249000+02:00",
+            "end": "2023-10-13T00:07:16.967648+02:00",
+            "duration": "00:00:06.718648",
+            "type": "breast milk",
+            "method": "right breast",
+            "amount": null,
+            "notes": "",
+            "tags": []
+        }""",
+        BabyBuddyClient.ACTIVITIES.PUMPING to """
+        {
+            "id": 2,
+            "child": 1,
+            "amount": 0.0,
+            "start": "2023-10-24T23:49:40+02:00",
+            "end": "2023-10-24T23:55:40+02:00",
+            "duration": "00:06:00",
+            "notes": "Some notes",
+            "tags": [
+                "Listened to Music"
+            ]
+        }""",
+    )
+
+    @Test
+    fun childListMatchesReference() {
+        val parsed = BabyBuddyClient.parseChildList(childrenResponse)
+        val reference = JSONObject(childrenResponse).getJSONArray("results").let { a ->
+            (0 until a.length()).map { referenceChild(a.getJSONObject(it)) }
+        }
+        Assert.assertEquals(reference, parsed.toList())
+
+        val single = JSONObject(childrenResponse).getJSONArray("results").getJSONObject(1).toString()
+        Assert.assertEquals(reference[1], BabyBuddyClient.Child.fromJSON(single))
+    }
+
+    @Test
+    fun timerListMatchesReference() {
+        val parsed = BabyBuddyClient.parseTimerList(timersResponse)
+        val reference = JSONObject(timersResponse).getJSONArray("results").let { a ->
+            (0 until a.length()).map { referenceTimer(a.getJSONObject(it)) }
+        }.sortedBy { it.id }
+        Assert.assertEquals(reference, parsed.toList())
+        Assert.assertEquals(listOf(3, 7, 12), parsed.map { it.id })
+        Assert.assertEquals(true, parsed[2].active)
+        Assert.assertEquals(false, parsed[0].active)
+        Assert.assertNull(parsed[0].child_id)
+        Assert.assertNull(parsed[2].name)
+    }
+
+    @Test
+    fun singleTimerMatchesReference() {
+        val items = JSONObject(timersResponse).getJSONArray("results")
+        for (i in 0 until items.length()) {
+            val s = items.getJSONObject(i).toString()
+            Assert.assertEquals(referenceTimer(JSONObject(s)), BabyBuddyClient.Timer.fromJSON(s))
+        }
+    }
+
+    @Test
+    fun timeEntriesMatchReference() {
+        for ((type, s) in timeEntryFixtures) {
+            val parsed = BabyBuddyClient.TimeEntry.fromJSON(s, type)
+            Assert.assertEquals(referenceTimeEntry(JSONObject(s), type), parsed)
+        }
+        val tummyTime = BabyBuddyClient.TimeEntry.fromJSON(timeEntryFixtures[1].second, "tummy-times")
+        Assert.assertEquals("Pierre is nice", tummyTime.notes)
+    }
+
+    @Test
+    fun unparsableEntriesAreSkipped() {
+        val page = """
+        {
+            "count": 3,
+            "results": [
+                ${timeEntryFixtures[0].second},
+                {"id": 270, "child": 1, "start": "yesterday", "end": null, "notes": ""},
+                {"id": 271, "child": 1, "start": "2023-10-24T23:49:40+02:00", "end": "2023-10-24T23:55:40+02:00"}
+            ]
+        }"""
+        val parsed = BabyBuddyClient.parseTimeEntryList(page, BabyBuddyClient.ACTIVITIES.SLEEP)
+        Assert.assertEquals(listOf(269, 271), parsed.map { it.typeId })
+        Assert.assertEquals(Date(1698184180000L), parsed[1].start)
+        Assert.assertEquals("", parsed[1].notes)
+    }
+
+    @Test
+    fun missingRequiredFieldsAreRejected() {
+        val invalid = listOf(
+            """{"count": 0}""",
+            """{"results": [{"slug": "no-id"}]}""",
+            """[]""",
+        )
+        for (s in invalid) {
+            try {
+                BabyBuddyClient.parseChildList(s)
+                Assert.fail("Expected failure for $s")
+            } catch (e: IOException) {
+                // expected
+            }
+        }
+        try {
+            BabyBuddyClient.Timer.fromJSON("""{"id": 1, "child": 1}""")
+            Assert.fail("Timer without user accepted")
+        } catch (e: IOException) {
+            // expected
+        }
+    }
+}
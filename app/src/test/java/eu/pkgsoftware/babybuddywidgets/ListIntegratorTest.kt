@@ -255,4 +255,60 @@ class ListIntegratorTest {
         val tested = ContinuousListIntegrator()
         Assert.assertEquals(0, tested.suggestClassQueryOffset("new"))
     }
-}
\ No newline at end of file
+
+    @Test
+    fun duplicatesFromOverlappingPagesAreDropped() {
+        val tested = ContinuousListIntegrator()
+        val aItems = createItemList("A", 10, 0, 1000, 1)
+        tested.updateItems(0, "A", aItems.sliceArray(0..4))
+        // The second page overlaps the first one and repeats an item that moved down
+        tested.updateItems(3, "A", arrayOf(aItems[3], aItems[4], aItems[2]))
+        Assert.assertEquals(6, tested.classElementCount("A"))
+
+        // Truncating the repeated item also removes its first occurrence
+        tested.updateItems(3, "A", arrayOf())
+        Assert.assertArrayEquals(arrayOf(aItems[0], aItems[1]), tested.items)
+    }
+
+    @Test
+    fun largeHistoryScales() {
+        // Several years of history for six activity classes, loaded page by page like
+        // ChildEventHistoryLoader does
+        val classes = listOf("feedings", "sleep", "tummy-times", "changes", "notes", "pumping")
+        val perClass = 10000
+        val pageSize = 25
+        val allItems = classes.mapIndexed { ci, c ->
+            createItemList(c, perClass, ci * 37L, 60000, 0)
+        }
+
+        val tested = ContinuousListIntegrator()
+        for (offset in 0 until perClass step pageSize) {
+            // Pages overlap by one item, so that they can be joined to the already known items
+            val start = Math.max(0, offset - 1)
+            for ((ci, c) in classes.withIndex()) {
+                tested.updateItems(start, c, allItems[ci].sliceArray(start until offset + pageSize))
+                tested.suggestClassQueryOffset(c)
+            }
+            tested.selectTop(offset * 60000L)
+            Assert.assertNotNull(tested.top)
+        }
+
+        val items = tested.items
+        Assert.assertEquals(classes.size * perClass, items.size)
+        for (i in 1 until items.size) {
+            Assert.assertTrue(items[i - 1].orderNumber <= items[i].orderNumber)
+        }
+        for (c in classes) {
+            Assert.assertEquals(perClass, tested.classElementCount(c))
+        }
+        Assert.assertEquals(0, items.count { it.dirty })
+        Assert.assertEquals(items.size, tested.nonDirtyItems.size)
+
+        // Refreshing a page in the middle of the history
+        val middle = perClass / 2
+        tested.selectTop(allItems[0][middle].orderNumber)
+        tested.updateItems(middle, classes[0], allItems[0].sliceArray(middle until middle + pageSize))
+        Assert.assertEquals(middle, tested.suggestClassQueryOffset(classes[0]))
+        Assert.assertEquals(allItems[0][middle], tested.top)
+    }
+}
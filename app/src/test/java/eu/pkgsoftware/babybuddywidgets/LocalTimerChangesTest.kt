@@ -0,0 +1,98 @@
+package eu.pkgsoftware.babybuddywidgets
+
+import eu.pkgsoftware.babybuddywidgets.compat.LocalTimerChanges
+import eu.pkgsoftware.babybuddywidgets.networking.BabyBuddyClient.ACTIVITIES
+import eu.pkgsoftware.babybuddywidgets.networking.BabyBuddyClient.Timer
+import org.junit.Assert
+import org.junit.Test
+import java.util.Date
+
+class LocalTimerChangesTest {
+    private fun timer(active: Boolean, start: Long = 1700000000000L): Timer {
+        val t = Timer()
+        t.name = ACTIVITIES.SLEEP
+        t.active = active
+        t.start = if (active) Date(start) else null
+        return t
+    }
+
+    private fun outboundOp(kind: OutboundOpKind): OutboundOp {
+        return OutboundOp(1, 1, kind, ACTIVITIES.SLEEP, "key", "", 0, 0)
+    }
+
+    @Test
+    fun supersededResultIsIgnored() {
+        val tested = LocalTimerChanges()
+        val start = tested.apply(ACTIVITIES.SLEEP, timer(true))
+        val stop = tested.apply(ACTIVITIES.SLEEP, timer(false))
+        Assert.assertFalse(tested.isCurrent(start))
+
+        // The start call returns after the stop was tapped
+        tested.confirm(start, timer(true, 1700000005000L))
+        Assert.assertSame(stop, tested[ACTIVITIES.SLEEP])
+        Assert.assertFalse(tested[ACTIVITIES.SLEEP]!!.timer.active)
+
+        // Failures of superseded calls do not remove the newer change
+        Assert.assertFalse(tested.rollback(start))
+        Assert.assertSame(stop, tested[ACTIVITIES.SLEEP])
+    }
+
+    @Test
+    fun confirmedByPoll() {
+        val tested = LocalTimerChanges()
+        val change = tested.apply(ACTIVITIES.SLEEP, timer(true))
+
+        // Polls while the call is in flight do not touch the change
+        Assert.assertEquals(listOf<String>(), tested.reconcile({ false }, { false }))
+        Assert.assertSame(change, tested[ACTIVITIES.SLEEP])
+
+        val serverTimer = timer(true, 1700000001000L)
+        tested.confirm(change, serverTimer)
+        Assert.assertSame(serverTimer, tested[ACTIVITIES.SLEEP]!!.timer)
+
+        Assert.assertEquals(listOf<String>(), tested.reconcile({ true }, { false }))
+        Assert.assertNull(tested[ACTIVITIES.SLEEP])
+    }
+
+    @Test
+    fun secondDisagreeingPollIsAConflict() {
+        val tested = LocalTimerChanges()
+        val change = tested.apply(ACTIVITIES.SLEEP, timer(true))
+        tested.confirm(change, null)
+
+        // The first poll may have been sent before the start call
+        Assert.assertEquals(listOf<String>(), tested.reconcile({ false }, { false }))
+        Assert.assertSame(change, tested[ACTIVITIES.SLEEP])
+
+        Assert.assertEquals(listOf(ACTIVITIES.SLEEP), tested.reconcile({ false }, { false }))
+        Assert.assertNull(tested[ACTIVITIES.SLEEP])
+    }
+
+    @Test
+    fun queuedChangesWaitForTheReplay() {
+        val tested = LocalTimerChanges()
+        val change = tested.apply(ACTIVITIES.SLEEP, timer(false))
+        val op = outboundOp(OutboundOpKind.STOP_TIMER)
+        tested.defer(change, op)
+
+        var queued = true
+        repeat(3) {
+            Assert.assertEquals(listOf<String>(), tested.reconcile({ true }, { queued }))
+        }
+        Assert.assertSame(change, tested[ACTIVITIES.SLEEP])
+
+        queued = false
+        tested.reconcile({ false }, { queued })
+        Assert.assertNull(tested[ACTIVITIES.SLEEP])
+    }
+
+    @Test
+    fun rollback() {
+        val tested = LocalTimerChanges()
+        val change = tested.apply(ACTIVITIES.SLEEP, timer(true))
+        Assert.assertTrue(tested.rollback(change))
+        Assert.assertNull(tested[ACTIVITIES.SLEEP])
+        Assert.assertTrue(tested.all.isEmpty())
+        Assert.assertFalse(tested.rollback(change))
+    }
+}
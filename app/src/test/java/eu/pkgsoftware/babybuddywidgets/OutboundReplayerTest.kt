@@ -0,0 +1,364 @@
+package eu.pkgsoftware.babybuddywidgets
+
+import eu.pkgsoftware.babybuddywidgets.networking.BabyBuddyClient
+import eu.pkgsoftware.babybuddywidgets.networking.RequestCodeFailure
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.InvalidBody
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.OUTBOUND_INITIAL_RETRY_INTERVAL
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.OUTBOUND_MAX_ATTEMPTS
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.OUTBOUND_RETRY_LIMIT
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.OutboundReplayer
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.OutboundServer
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.isRejectedOutboundOp
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.outboundRetryDelay
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.ChangeEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.NoteEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.TimeEntry
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.test.runTest
+import kotlinx.coroutines.withTimeout
+import org.junit.Assert
+import org.junit.Test
+import java.io.IOException
+import java.util.Collections
+import java.util.Date
+import kotlin.random.Random
+import kotlin.reflect.KClass
+
+class OutboundReplayerTest {
+    private class FakeStorage : OutboundStorage {
+        val ops: MutableList<OutboundOp> = Collections.synchronizedList(mutableListOf())
+        val errors = mutableMapOf<Long, String>()
+        private var seq = 0L
+
+        override fun enqueue(childId: Int, kind: OutboundOpKind, type: String, payload: String): OutboundOp {
+            seq++
+            val op = OutboundOp(seq, childId, kind, type, "key$seq", payload, seq, 0)
+            ops.add(op)
+            return op
+        }
+
+        fun setAttempts(op: OutboundOp, attempts: Int) {
+            val i = ops.indexOfFirst { it.seq == op.seq }
+            ops[i] = OutboundOp(op.seq, op.childId, op.kind, op.type, op.idempotencyKey, op.payload, op.created, attempts)
+        }
+
+        override fun head(count: Int): List<OutboundOp> = ops.take(count)
+
+        override fun pending(childId: Int): List<OutboundOp> = ops.filter { it.childId == childId }
+
+        override fun contains(idempotencyKey: String): Boolean = ops.any { it.idempotencyKey == idempotencyKey }
+
+        override fun markAttempt(op: OutboundOp) {
+            setAttempts(op, ops.first { it.seq == op.seq }.attempts + 1)
+        }
+
+        override fun markFailed(op: OutboundOp, error: String) {
+            errors[op.seq] = error
+        }
+
+        override fun remove(op: OutboundOp) {
+            ops.removeAll { it.seq == op.seq }
+        }
+
+        override fun removeCreate(childId: Int, type: String, payload: String): Boolean {
+            return ops.removeAll {
+                (it.childId == childId) && (it.kind == OutboundOpKind.CREATE_ENTRY) &&
+                    (it.type == type) && (it.payload == payload) && (it.attempts == 0)
+            }
+        }
+
+        override fun stats(): OutboundQueueStats {
+            return OutboundQueueStats(ops.size, ops.minOfOrNull { it.created })
+        }
+    }
+
+    /** Records the calls; failure decides which exception a call throws, by description */
+    private class FakeServer : OutboundServer {
+        val calls = mutableListOf<String>()
+        val entries = mutableListOf<TimeEntry>()
+        val timers = mutableListOf<BabyBuddyClient.Timer>()
+        var failure: (String) -> Exception? = { null }
+        private var nextId = 100
+
+        private fun call(description: String) {
+            calls.add(description)
+            failure(description)?.let { throw it }
+        }
+
+        override suspend fun recentEntries(type: KClass<TimeEntry>, childId: Int, limit: Int): List<TimeEntry> {
+            call("list ${type.simpleName}")
+            return entries.filter { type.isInstance(it) }.sortedByDescending { it.start.time }.take(limit)
+        }
+
+        override suspend fun createEntry(type: KClass<TimeEntry>, entry: TimeEntry) {
+            call("create ${entry.notes}")
+            entries.add(if (entry is NoteEntry) entry.copy(id = nextId++) else entry)
+        }
+
+        override suspend fun deleteEntry(entry: TimeEntry) {
+            call("delete ${entry.id}")
+            entries.removeAll { it.id == entry.id }
+        }
+
+        override suspend fun listTimers(childId: Int): Array<BabyBuddyClient.Timer> {
+            call("list timers")
+            return timers.toTypedArray()
+        }
+
+        override suspend fun createTimer(childId: Int, name: String, start: Date) {
+            call("create timer $name ${start.time}")
+        }
+
+        override suspend fun deleteTimer(timerId: Int) {
+            call("delete timer $timerId")
+            timers.removeAll { it.id == timerId }
+        }
+    }
+
+    private fun note(id: Int, notes: String, start: Long = 1700000000000L): NoteEntry {
+        return NoteEntry(id, 1, Date(start), notes)
+    }
+
+    private fun change(id: Int, notes: String): ChangeEntry {
+        return ChangeEntry(id, 1, Date(1700000000000L), notes, true, false, "", null)
+    }
+
+    @Test
+    fun replaysInOrder() = runTest {
+        val storage = FakeStorage()
+        val server = FakeServer()
+        val tested = OutboundReplayer(storage, server, this)
+        val done = mutableListOf<OutboundOpKind>()
+        tested.opListeners.add { op, error ->
+            Assert.assertNull(error)
+            done.add(op.kind)
+        }
+
+        tested.createEntry(note(0, "first"))
+        tested.createEntry(change(0, "second"))
+        tested.deleteEntry(note(5, "old"))
+        tested.stopTimer(1, "sleep")
+
+        Assert.assertTrue(tested.replayPending())
+        Assert.assertEquals(listOf("create first", "create second", "delete 5", "list timers"), server.calls)
+        Assert.assertEquals(
+            listOf(OutboundOpKind.CREATE_ENTRY, OutboundOpKind.CREATE_ENTRY, OutboundOpKind.DELETE_ENTRY, OutboundOpKind.STOP_TIMER),
+            done
+        )
+        Assert.assertEquals(0, storage.ops.size)
+        Assert.assertEquals(0, tested.stats.depth)
+    }
+
+    @Test
+    fun replayLoopRestartsAfterStop() = runBlocking {
+        val storage = FakeStorage()
+        val server = FakeServer()
+        val scope = CoroutineScope(Dispatchers.Default)
+        try {
+            val tested = OutboundReplayer(storage, server, scope)
+            // Like MainActivity going through onStart, onStop, onStart
+            tested.start()
+            tested.stop()
+            tested.createEntry(note(0, "while stopped"))
+            tested.start()
+            withTimeout(5000) {
+                while (storage.ops.isNotEmpty()) {
+                    delay(10)
+                }
+            }
+            Assert.assertEquals(listOf("create while stopped"), server.calls)
+        }
+        finally {
+            scope.cancel()
+        }
+    }
+
+    @Test
+    fun stopsAtTheFirstFailure() = runTest {
+        val storage = FakeStorage()
+        val server = FakeServer()
+        val tested = OutboundReplayer(storage, server, this)
+        tested.createEntry(note(0, "first"))
+        tested.createEntry(note(0, "second"))
+        tested.createEntry(note(0, "third"))
+
+        server.failure = { if (it == "create second") IOException("offline") else null }
+        Assert.assertFalse(tested.replayPending())
+        Assert.assertEquals(listOf("create first", "create second"), server.calls)
+        Assert.assertEquals(listOf("second", "third"), storage.ops.map { TimelineCache.decodeEntry(NoteEntry::class, it.payload).notes })
+        Assert.assertEquals(1, storage.ops[0].attempts)
+        Assert.assertEquals(0, storage.ops[1].attempts)
+        Assert.assertTrue(storage.errors[storage.ops[0].seq]!!.contains("offline"))
+
+        // The retry finds that the failed creation did not reach the server
+        server.failure = { null }
+        server.calls.clear()
+        Assert.assertTrue(tested.replayPending())
+        Assert.assertEquals(listOf("list NoteEntry", "create second", "create third"), server.calls)
+    }
+
+    @Test
+    fun createsThatMayHaveBeenSentAreCheckedFirst() = runTest {
+        val storage = FakeStorage()
+        val server = FakeServer()
+        val tested = OutboundReplayer(storage, server, this)
+        val entry = note(0, "sent before")
+        tested.createEntry(entry)
+        storage.setAttempts(storage.ops[0], 1)
+        server.entries.add(note(17, "sent before"))
+
+        Assert.assertTrue(tested.replayPending())
+        Assert.assertEquals(listOf("list NoteEntry"), server.calls)
+        Assert.assertEquals(1, server.entries.size)
+    }
+
+    @Test
+    fun deletingAnUnsentCreationForgetsIt() = runTest {
+        val storage = FakeStorage()
+        val server = FakeServer()
+        val tested = OutboundReplayer(storage, server, this)
+        val entry = note(0, "oops")
+        tested.createEntry(entry)
+        tested.deleteEntry(entry)
+
+        Assert.assertEquals(0, storage.ops.size)
+        Assert.assertTrue(tested.replayPending())
+        Assert.assertEquals(listOf<String>(), server.calls)
+    }
+
+    @Test
+    fun deletingAnAttemptedCreationResolvesTheServerId() = runTest {
+        val storage = FakeStorage()
+        val server = FakeServer()
+        val tested = OutboundReplayer(storage, server, this)
+        val entry = note(0, "oops")
+        tested.createEntry(entry)
+
+        server.failure = { IOException("offline") }
+        Assert.assertFalse(tested.replayPending())
+        // The creation may have reached the server, so the deletion has to be sent as well
+        tested.deleteEntry(entry)
+        Assert.assertEquals(
+            listOf(OutboundOpKind.CREATE_ENTRY, OutboundOpKind.DELETE_ENTRY),
+            storage.ops.map { it.kind }
+        )
+
+        server.failure = { null }
+        server.calls.clear()
+        Assert.assertTrue(tested.replayPending())
+        Assert.assertEquals(
+            listOf("list NoteEntry", "create oops", "list NoteEntry", "delete 100"),
+            server.calls
+        )
+        Assert.assertTrue(server.entries.isEmpty())
+    }
+
+    @Test
+    fun pendingEntryChangesOfTheChild() = runTest {
+        val storage = FakeStorage()
+        val tested = OutboundReplayer(storage, FakeServer(), this)
+        val created = note(0, "new")
+        tested.createEntry(created)
+        tested.deleteEntry(note(5, "old"))
+        tested.stopTimer(1, "sleep")
+        tested.createEntry(NoteEntry(0, 2, Date(1700000000000L), "other child"))
+
+        val pending = tested.pendingEntryChanges(1)
+        Assert.assertEquals(listOf<TimeEntry>(created), pending.created)
+        Assert.assertEquals(listOf(storage.ops[0].idempotencyKey), pending.createdKeys)
+        Assert.assertEquals(listOf<TimeEntry>(note(5, "old")), pending.deleted)
+        Assert.assertTrue(pending.isDeleted(note(5, "edited since")))
+        Assert.assertFalse(pending.isDeleted(created))
+    }
+
+    @Test
+    fun startedTimersKeepTheRecordedStart() = runTest {
+        val server = FakeServer()
+        val stale = BabyBuddyClient.Timer()
+        stale.id = 7
+        stale.name = "sleep"
+        stale.active = false
+        server.timers.add(stale)
+        val tested = OutboundReplayer(FakeStorage(), server, this)
+
+        // Tapped while offline, replayed much later
+        tested.startTimer(1, "sleep", "sleep", Date(1700000000000L))
+        Assert.assertTrue(tested.replayPending())
+        Assert.assertEquals(
+            listOf("list timers", "delete timer 7", "create timer sleep 1700000000000"),
+            server.calls
+        )
+    }
+
+    @Test
+    fun rejectedOperationsAreDropped() = runTest {
+        val storage = FakeStorage()
+        val server = FakeServer()
+        val tested = OutboundReplayer(storage, server, this)
+        val errors = mutableListOf<Exception?>()
+        tested.opListeners.add { _, error -> errors.add(error) }
+        tested.createEntry(note(0, "invalid"))
+        tested.createEntry(note(0, "valid"))
+
+        server.failure = { if (it == "create invalid") RequestCodeFailure(400, "Bad Request", "") else null }
+        Assert.assertTrue(tested.replayPending())
+        Assert.assertEquals(listOf("create invalid", "create valid"), server.calls)
+        Assert.assertTrue(errors[0] is RequestCodeFailure)
+        Assert.assertNull(errors[1])
+    }
+
+    @Test
+    fun unexpectedErrorsAreRetriedThenDropped() = runTest {
+        val storage = FakeStorage()
+        val server = FakeServer()
+        val tested = OutboundReplayer(storage, server, this)
+        val errors = mutableListOf<Exception?>()
+        tested.opListeners.add { _, error -> errors.add(error) }
+        tested.createEntry(note(0, "broken"))
+        server.failure = { if (it.startsWith("create")) InvalidBody() else null }
+
+        Assert.assertFalse(tested.replayPending())
+        Assert.assertEquals(1, storage.ops.size)
+        Assert.assertTrue(errors.isEmpty())
+
+        storage.setAttempts(storage.ops[0], OUTBOUND_MAX_ATTEMPTS - 1)
+        Assert.assertTrue(tested.replayPending())
+        Assert.assertEquals(0, storage.ops.size)
+        Assert.assertTrue(errors.single() is InvalidBody)
+    }
+
+    @Test
+    fun retryDelayBacksOffUpToTheLimit() {
+        val random = Random(1)
+        var last = 0L
+        for (failures in 1..30) {
+            val delay = outboundRetryDelay(failures, random)
+            val base = Math.min(OUTBOUND_RETRY_LIMIT, OUTBOUND_INITIAL_RETRY_INTERVAL shl Math.min(failures - 1, 20))
+            Assert.assertTrue(delay >= base)
+            Assert.assertTrue(delay <= base + base / 4)
+            Assert.assertTrue(base >= last)
+            last = base
+        }
+        Assert.assertEquals(OUTBOUND_RETRY_LIMIT, last)
+    }
+
+    @Test
+    fun retryDelayIsJittered() {
+        val random = Random(1)
+        val delays = (0 until 20).map { outboundRetryDelay(5, random) }.toSet()
+        Assert.assertTrue(delays.size > 1)
+    }
+
+    @Test
+    fun onlyClientErrorsAboutTheOperationDropIt() {
+        Assert.assertTrue(isRejectedOutboundOp(RequestCodeFailure(400, "Bad Request", "")))
+        Assert.assertTrue(isRejectedOutboundOp(RequestCodeFailure(404, "Not Found", "")))
+        Assert.assertFalse(isRejectedOutboundOp(RequestCodeFailure(401, "Unauthorized", "")))
+        Assert.assertFalse(isRejectedOutboundOp(RequestCodeFailure(429, "Too Many Requests", "")))
+        Assert.assertFalse(isRejectedOutboundOp(RequestCodeFailure(503, "Service Unavailable", "")))
+    }
+}
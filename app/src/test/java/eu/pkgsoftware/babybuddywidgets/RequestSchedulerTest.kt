@@ -0,0 +1,160 @@
+package eu.pkgsoftware.babybuddywidgets
+
+import eu.pkgsoftware.babybuddywidgets.networking.RequestScheduler
+import org.junit.Assert
+import org.junit.Test
+
+class FakeSchedulerHost : RequestScheduler.Host {
+    var time = 0L
+    var extraDelay = 0L
+    private val posted = mutableListOf<Pair<Long, Runnable>>()
+
+    override fun currentTimeMillis(): Long = time
+
+    override fun postDelayed(r: Runnable, delayMillis: Long) {
+        posted.add(Pair(time + delayMillis, r))
+    }
+
+    override fun removeCallbacks(r: Runnable) {
+        posted.removeAll { it.second === r }
+    }
+
+    override fun additionalDelay(): Long = extraDelay
+
+    fun advanceTo(t: Long) {
+        while (true) {
+            val next = posted.filter { it.first <= t }.minByOrNull { it.first } ?: break
+            posted.remove(next)
+            time = maxOf(time, next.first)
+            next.second.run()
+        }
+        time = t
+    }
+}
+
+class RecordingTask(
+    val name: String,
+    val log: MutableList<String>,
+    val autoComplete: Boolean = true,
+) : RequestScheduler.Task() {
+    var done: Runnable? = null
+
+    override fun run(done: Runnable) {
+        log.add(name)
+        this.done = done
+        if (autoComplete) {
+            done.run()
+        }
+    }
+
+    override fun cancelled() {
+        log.add("cancelled:$name")
+    }
+}
+
+class RequestSchedulerTest {
+    @Test
+    fun runsInDeadlineOrder() {
+        val host = FakeSchedulerHost()
+        val scheduler = RequestScheduler(host, 1)
+        val log = mutableListOf<String>()
+
+        scheduler.schedule(RecordingTask("c", log), 300)
+        scheduler.schedule(RecordingTask("a", log), 100)
+        scheduler.schedule(RecordingTask("b1", log), 200)
+        scheduler.schedule(RecordingTask("b2", log), 200)
+        Assert.assertEquals(4, scheduler.size())
+        Assert.assertTrue(log.isEmpty())
+
+        host.advanceTo(150)
+        Assert.assertEquals(listOf("a"), log)
+        host.advanceTo(1000)
+        Assert.assertEquals(listOf("a", "b1", "b2", "c"), log)
+        Assert.assertEquals(0, scheduler.size())
+    }
+
+    @Test
+    fun additionalDelayPostponesTasks() {
+        val host = FakeSchedulerHost()
+        host.extraDelay = 50
+        val scheduler = RequestScheduler(host, 1)
+        val log = mutableListOf<String>()
+
+        scheduler.schedule(RecordingTask("a", log), 100)
+        host.advanceTo(149)
+        Assert.assertTrue(log.isEmpty())
+        host.advanceTo(150)
+        Assert.assertEquals(listOf("a"), log)
+    }
+
+    @Test
+    fun limitsRequestsInFlight() {
+        val host = FakeSchedulerHost()
+        val scheduler = RequestScheduler(host, 2)
+        val log = mutableListOf<String>()
+
+        val slow = RecordingTask("slow", log, autoComplete = false)
+        val second = RecordingTask("second", log, autoComplete = false)
+        scheduler.schedule(slow, 0)
+        scheduler.schedule(second, 10)
+        scheduler.schedule(RecordingTask("third", log), 20)
+
+        host.advanceTo(100)
+        Assert.assertEquals(listOf("slow", "second"), log)
+        Assert.assertEquals(2, scheduler.inFlightCount)
+
+        second.done!!.run()
+        second.done!!.run() // Duplicate completions are ignored
+        host.advanceTo(101)
+        Assert.assertEquals(listOf("slow", "second", "third"), log)
+        Assert.assertEquals(1, scheduler.inFlightCount)
+    }
+
+    @Test
+    fun cancellation() {
+        val host = FakeSchedulerHost()
+        val scheduler = RequestScheduler(host, 1)
+        val log = mutableListOf<String>()
+
+        val a = RecordingTask("a", log)
+        val b = RecordingTask("b", log)
+        scheduler.schedule(a, 100)
+        scheduler.schedule(b, 200)
+
+        Assert.assertTrue(scheduler.cancel(a))
+        Assert.assertFalse(scheduler.cancel(a))
+        Assert.assertEquals(1, scheduler.size())
+
+        // A cancelled task can be queued again
+        scheduler.schedule(a, 300)
+        host.advanceTo(1000)
+        Assert.assertEquals(listOf("cancelled:a", "b", "a"), log)
+        Assert.assertFalse(scheduler.cancel(a))
+    }
+
+    @Test
+    fun closeCancelsQueuedTasks() {
+        val host = FakeSchedulerHost()
+        val scheduler = RequestScheduler(host, 1)
+        val log = mutableListOf<String>()
+
+        val running = RecordingTask("running", log, autoComplete = false)
+        scheduler.schedule(running, 0)
+        scheduler.schedule(RecordingTask("b", log), 200)
+        scheduler.schedule(RecordingTask("a", log), 100)
+        host.advanceTo(10)
+
+        scheduler.close()
+        Assert.assertTrue(scheduler.isClosed)
+        Assert.assertEquals(listOf("running", "cancelled:a", "cancelled:b"), log)
+        Assert.assertEquals(0, scheduler.size())
+
+        running.done!!.run()
+        scheduler.schedule(RecordingTask("late", log), 0)
+        host.advanceTo(1000)
+        Assert.assertEquals(
+            listOf("running", "cancelled:a", "cancelled:b", "cancelled:late"),
+            log
+        )
+    }
+}
@@ -0,0 +1,78 @@
+package eu.pkgsoftware.babybuddywidgets
+
+import eu.pkgsoftware.babybuddywidgets.networking.StreamReader
+import eu.pkgsoftware.babybuddywidgets.networking.StreamReader.ResponseTooLargeException
+import org.junit.Assert
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.InputStream
+
+class StreamReaderTest {
+    private val text = "{\"count\": 1, \"results\": [\"äöü\"]}".repeat(500)
+    private val bytes = text.toByteArray(Charsets.UTF_8)
+
+    /** Hands out at most chunk bytes per read, like a socket */
+    private class TrickleStream(data: ByteArray, private val chunk: Int) : InputStream() {
+        private val inner = ByteArrayInputStream(data)
+
+        override fun read(): Int = inner.read()
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            return inner.read(b, off, Math.min(len, chunk))
+        }
+    }
+
+    private class UnreadableStream : InputStream() {
+        override fun read(): Int = throw AssertionError("Must not be read")
+    }
+
+    @Test
+    fun contentLengthSizing() {
+        Assert.assertEquals(text, StreamReader.loadHttpData(TrickleStream(bytes, 100), bytes.size.toLong()))
+        Assert.assertEquals(text, StreamReader.loadHttpData(TrickleStream(bytes, 100), -1))
+        Assert.assertEquals("", StreamReader.loadHttpData(ByteArrayInputStream(ByteArray(0)), 0))
+
+        // Content-Length is only a hint, the stream decides
+        Assert.assertEquals(text, StreamReader.loadHttpData(TrickleStream(bytes, 100), 10))
+        Assert.assertEquals(text, StreamReader.loadHttpData(TrickleStream(bytes, 100), bytes.size + 1000L))
+    }
+
+    @Test
+    fun overLimitResponses() {
+        // A too large Content-Length fails before anything is read
+        val e = Assert.assertThrows(ResponseTooLargeException::class.java) {
+            StreamReader.loadHttpData(UnreadableStream(), 1001, 1000)
+        }
+        Assert.assertEquals(1000L, e.limit)
+        Assert.assertThrows(ResponseTooLargeException::class.java) {
+            StreamReader.loadHttpData(UnreadableStream(), StreamReader.MAX_RESPONSE_SIZE + 1L)
+        }
+
+        // Servers sending more than announced, or nothing at all
+        Assert.assertThrows(ResponseTooLargeException::class.java) {
+            StreamReader.loadHttpData(TrickleStream(bytes, 100), 10, bytes.size - 1)
+        }
+        Assert.assertThrows(ResponseTooLargeException::class.java) {
+            StreamReader.loadHttpData(TrickleStream(bytes, 100), -1, bytes.size - 1)
+        }
+
+        Assert.assertEquals(text, StreamReader.loadHttpData(TrickleStream(bytes, 100), -1, bytes.size))
+    }
+
+    @Test
+    fun limitedInputStream() {
+        val within = StreamReader.limitedStream(TrickleStream(bytes, 100), bytes.size.toLong())
+        Assert.assertArrayEquals(bytes, within.readBytes())
+
+        val over = StreamReader.limitedStream(ByteArrayInputStream(bytes), 10)
+        Assert.assertEquals(bytes[0].toInt(), over.read())
+        Assert.assertEquals(9, over.read(ByteArray(9), 0, 9))
+        Assert.assertThrows(ResponseTooLargeException::class.java) { over.read() }
+
+        // Skipped bytes count as well
+        val skipped = StreamReader.limitedStream(ByteArrayInputStream(bytes), 10)
+        Assert.assertEquals(10L, skipped.skip(10))
+        Assert.assertThrows(ResponseTooLargeException::class.java) { skipped.read(ByteArray(5), 0, 5) }
+        Assert.assertFalse(skipped.markSupported())
+    }
+}
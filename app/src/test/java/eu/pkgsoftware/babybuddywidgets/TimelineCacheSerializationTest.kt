@@ -0,0 +1,136 @@
+package eu.pkgsoftware.babybuddywidgets
+
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.BmiEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.ChangeEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.FeedingEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.HeadCircumferenceEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.HeightEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.NoteEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.PumpingEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.SleepEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.TemperatureEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.TimeEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.TummyTimeEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.WeightEntry
+import org.junit.Assert
+import org.junit.Test
+import kotlin.reflect.KClass
+
+class TimelineCacheSerializationTest {
+    // Server responses, with timestamps at whole seconds as the cache does not store milliseconds
+    private val fixtures = listOf<Pair<KClass<out TimeEntry>, String>>(
+        SleepEntry::class to """
+        {
+            "id": 269,
+            "child": 1,
+            "start": "2023-10-13T00:07:08+02:00",
+            "end": "2023-10-13T00:07:12+02:00",
+            "nap": false,
+            "notes": "Short one",
+            "tags": []
+        }""",
+        TummyTimeEntry::class to """
+        {
+            "id": 230,
+            "child": 1,
+            "start": "2023-10-13T00:07:20+02:00",
+            "end": "2023-10-13T00:07:29+02:00",
+            "milestone": "Pierre is nice",
+            "tags": []
+        }""",
+        FeedingEntry::class to """
+        {
+            "id": 223,
+            "child": 1,
+            "start": "2023-10-13T00:07:10+02:00",
+            "end": "2023-10-13T00:07:16+02:00",
+            "type": "breast milk",
+            "method": "right breast",
+            "amount": null,
+            "notes": "",
+            "tags": []
+        }""",
+        PumpingEntry::class to """
+        {
+            "id": 2,
+            "child": 1,
+            "amount": 12.5,
+            "start": "2023-10-24T23:49:40+02:00",
+            "end": "2023-10-24T23:55:40+02:00",
+            "notes": "Some notes",
+            "tags": []
+        }""",
+        ChangeEntry::class to """
+        {
+            "id": 404,
+            "child": 1,
+            "time": "2023-08-31T23:51:27+02:00",
+            "wet": true,
+            "solid": false,
+            "color": "",
+            "amount": null,
+            "notes": "",
+            "tags": []
+        }""",
+        NoteEntry::class to """
+        {
+            "id": 3,
+            "child": 1,
+            "note": "Hello",
+            "time": "2022-05-26T16:53:00+02:00",
+            "tags": []
+        }""",
+        BmiEntry::class to """
+        {
+            "id": 5,
+            "child": 1,
+            "bmi": 11.18,
+            "date": "2022-03-05",
+            "notes": "Number sit seven note."
+        }""",
+        TemperatureEntry::class to """
+        {
+            "id": 78,
+            "child": 1,
+            "temperature": 101.96,
+            "time": "2022-03-07T21:09:00+01:00",
+            "notes": "Why special keep bag song nice lawyer strategy."
+        }""",
+        WeightEntry::class to """
+        {
+            "id": 5,
+            "child": 1,
+            "weight": 12.9,
+            "date": "2022-03-05",
+            "notes": ""
+        }""",
+        HeightEntry::class to """
+        {
+            "id": 5,
+            "child": 1,
+            "height": 9.43,
+            "date": "2022-03-05",
+            "notes": ""
+        }""",
+        HeadCircumferenceEntry::class to """
+        {
+            "id": 5,
+            "child": 1,
+            "head_circumference": 20.1,
+            "date": "2022-03-05",
+            "notes": ""
+        }""",
+    )
+
+    @Test
+    fun entriesSurviveTheCache() {
+        for ((type, s) in fixtures) {
+            val entry = SharedObjectMapper.mapper.readValue(s, type.java)
+            val cached = TimelineCache.decodeEntry(type, TimelineCache.encodeEntry(entry))
+            Assert.assertEquals(entry, cached)
+            Assert.assertEquals(entry.start, cached.start)
+            Assert.assertEquals(entry.end, cached.end)
+            Assert.assertEquals(entry.notes, cached.notes)
+        }
+    }
+}
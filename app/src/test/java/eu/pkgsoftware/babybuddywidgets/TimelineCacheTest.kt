@@ -0,0 +1,170 @@
+package eu.pkgsoftware.babybuddywidgets
+
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.NoteEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.SleepEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.TimeEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.classActivityName
+import org.junit.Assert
+import org.junit.Test
+import java.util.Date
+
+class TimelineCacheTest {
+    private val NOTES = classActivityName(NoteEntry::class)
+    private val SLEEP = classActivityName(SleepEntry::class)
+
+    /** Keeps the rows in memory, with a counter in place of the clock for last_used */
+    private class FakeStorage : TimelineCacheStorage {
+        private inner class Row(val row: TimelineCacheRow, var lastUsed: Long)
+
+        private val rows = mutableListOf<Row>()
+        val counts = mutableMapOf<Pair<Int, String>, Int>()
+        private var clock = 0L
+
+        fun ids(child: Int, type: String): List<Int> {
+            return rows.filter { it.row.child == child && it.row.type == type }
+                .sortedByDescending { it.row.start }
+                .map { it.row.id }
+        }
+
+        override fun newest(child: Int, type: String, limit: Int): List<String> {
+            return rows.filter { it.row.child == child && it.row.type == type }
+                .sortedByDescending { it.row.start }
+                .take(limit)
+                .map { it.row.value }
+        }
+
+        override fun totalCount(child: Int, type: String): Int? = counts[child to type]
+
+        override fun setTotalCount(child: Int, type: String, count: Int) {
+            counts[child to type] = count
+        }
+
+        override fun touch(child: Int) {
+            val now = ++clock
+            rows.filter { it.row.child == child }.forEach { it.lastUsed = now }
+        }
+
+        override fun deleteExcept(child: Int, type: String, minStart: Long?, keepIds: Collection<Int>) {
+            rows.removeAll {
+                (it.row.child == child) && (it.row.type == type) &&
+                    ((minStart == null) || (it.row.start >= minStart)) && (it.row.id !in keepIds)
+            }
+        }
+
+        override fun insert(rows: List<TimelineCacheRow>) {
+            val now = ++clock
+            for (row in rows) {
+                this.rows.removeAll {
+                    (it.row.child == row.child) && (it.row.type == row.type) && (it.row.id == row.id)
+                }
+                this.rows.add(Row(row, now))
+            }
+        }
+
+        override fun rowCount(): Int = rows.size
+
+        override fun childrenByLastUse(): List<Int> {
+            return rows.groupBy { it.row.child }
+                .mapValues { e -> e.value.maxOf { it.lastUsed } }
+                .entries.sortedBy { it.value }
+                .map { it.key }
+        }
+
+        override fun deleteOldest(count: Int) {
+            rows.sortedBy { it.row.start }.take(count).forEach { rows.remove(it) }
+        }
+
+        override fun clearChild(child: Int) {
+            rows.removeAll { it.row.child == child }
+            counts.keys.removeAll { it.first == child }
+        }
+
+        override fun transaction(block: () -> Unit) {
+            block()
+        }
+    }
+
+    private fun note(id: Int, child: Int = 1): NoteEntry {
+        return NoteEntry(id, child, Date(1700000000000L + id * 60000L), "note $id")
+    }
+
+    @Test
+    fun storeFirstPageReplacesTheCoveredRange() {
+        val storage = FakeStorage()
+        val tested = TimelineCache(storage)
+        tested.storeEntries(1, NoteEntry::class, 6, (6 downTo 1).map { note(it) })
+
+        // 5 was deleted on the server, 7 is new; 1 and 2 are older than the page and stay
+        tested.storeFirstPage(1, NoteEntry::class, 6, listOf(note(7), note(6), note(4), note(3)), false)
+        Assert.assertEquals(listOf(7, 6, 4, 3, 2, 1), storage.ids(1, NOTES))
+        Assert.assertEquals(6, tested.totalCount(1, NoteEntry::class))
+
+        val loaded = tested.load(1, NoteEntry::class, 3)
+        Assert.assertEquals(listOf<TimeEntry>(note(7), note(6), note(4)), loaded)
+
+        // Other types and children are not touched
+        tested.storeEntries(2, NoteEntry::class, 1, listOf(note(5, 2)))
+        tested.storeEntries(1, SleepEntry::class, 1, listOf(SleepEntry(5, 1, Date(1700000000000L), Date(1700000060000L), "")))
+        tested.storeFirstPage(1, NoteEntry::class, 4, listOf(note(7), note(3)), false)
+        Assert.assertEquals(listOf(7, 3, 2, 1), storage.ids(1, NOTES))
+        Assert.assertEquals(listOf(5), storage.ids(2, NOTES))
+        Assert.assertEquals(listOf(5), storage.ids(1, SLEEP))
+    }
+
+    @Test
+    fun emptyIncompletePageKeepsTheCache() {
+        val storage = FakeStorage()
+        val tested = TimelineCache(storage)
+        tested.storeEntries(1, NoteEntry::class, 2, listOf(note(2), note(1)))
+
+        tested.storeFirstPage(1, NoteEntry::class, 2, listOf(), false)
+        Assert.assertEquals(listOf(2, 1), storage.ids(1, NOTES))
+    }
+
+    @Test
+    fun completePageReplacesAllEntries() {
+        val storage = FakeStorage()
+        val tested = TimelineCache(storage)
+        tested.storeEntries(1, NoteEntry::class, 3, listOf(note(3), note(2), note(1)))
+
+        tested.storeFirstPage(1, NoteEntry::class, 1, listOf(note(3)), true)
+        Assert.assertEquals(listOf(3), storage.ids(1, NOTES))
+        Assert.assertEquals(1, tested.totalCount(1, NoteEntry::class))
+
+        tested.storeFirstPage(1, NoteEntry::class, 0, listOf(), true)
+        Assert.assertEquals(listOf<Int>(), storage.ids(1, NOTES))
+        Assert.assertEquals(0, tested.totalCount(1, NoteEntry::class))
+    }
+
+    @Test
+    fun trimDropsLeastRecentlyUsedChildrenFirst() {
+        val storage = FakeStorage()
+        val tested = TimelineCache(storage)
+        tested.storeEntries(1, NoteEntry::class, 3, (3 downTo 1).map { note(it, 1) })
+        tested.storeEntries(2, NoteEntry::class, 3, (3 downTo 1).map { note(it, 2) })
+        tested.storeEntries(3, NoteEntry::class, 3, (3 downTo 1).map { note(it, 3) })
+        tested.touch(1)
+
+        tested.trim(6)
+        Assert.assertEquals(listOf<Int>(), storage.ids(2, NOTES))
+        Assert.assertNull(tested.totalCount(2, NoteEntry::class))
+        Assert.assertEquals(listOf(3, 2, 1), storage.ids(3, NOTES))
+        Assert.assertEquals(listOf(3, 2, 1), storage.ids(1, NOTES))
+
+        tested.trim(6)
+        Assert.assertEquals(6, storage.rowCount())
+    }
+
+    @Test
+    fun trimDropsOldestEntriesOfTheLastChild() {
+        val storage = FakeStorage()
+        val tested = TimelineCache(storage)
+        tested.storeEntries(2, NoteEntry::class, 2, listOf(note(20, 2), note(10, 2)))
+        tested.storeEntries(1, NoteEntry::class, 6, (6 downTo 1).map { note(it, 1) })
+
+        // Dropping child 2 is not enough, the most recently used child keeps its newest entries
+        tested.trim(4)
+        Assert.assertEquals(listOf<Int>(), storage.ids(2, NOTES))
+        Assert.assertEquals(listOf(6, 5, 4, 3), storage.ids(1, NOTES))
+    }
+}
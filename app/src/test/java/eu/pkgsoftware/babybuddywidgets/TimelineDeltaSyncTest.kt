@@ -0,0 +1,128 @@
+package eu.pkgsoftware.babybuddywidgets
+
+import eu.pkgsoftware.babybuddywidgets.history.TimelineDeltaSync
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.NoteEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.SleepEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.TimeEntry
+import org.junit.Assert
+import org.junit.Test
+import java.util.Date
+
+class TimelineDeltaSyncTest {
+    private fun sleep(id: Int, notes: String = ""): SleepEntry {
+        val start = Date(1700000000000L + id * 3600000L)
+        return SleepEntry(id, 1, start, Date(start.time + 1800000L), notes)
+    }
+
+    // Newest first, like the server sends them
+    private fun page(fromId: Int, count: Int): List<TimeEntry> {
+        return (0 until count).map { sleep(fromId - it) }
+    }
+
+    @Test
+    fun unknownClassesNeedReload() {
+        val tested = TimelineDeltaSync(25)
+        Assert.assertFalse(tested.isKnown(SleepEntry::class))
+        Assert.assertEquals(
+            TimelineDeltaSync.Action.RELOAD,
+            tested.check(SleepEntry::class, 10, sleep(10)).action
+        )
+    }
+
+    @Test
+    fun unchangedClass() {
+        val tested = TimelineDeltaSync(25)
+        tested.pageLoaded(SleepEntry::class, 0, 40, page(40, 25))
+        Assert.assertTrue(tested.isKnown(SleepEntry::class))
+
+        val check = tested.check(SleepEntry::class, 40, sleep(40))
+        Assert.assertEquals(TimelineDeltaSync.Action.UNCHANGED, check.action)
+        Assert.assertFalse(tested.isKnown(NoteEntry::class))
+    }
+
+    @Test
+    fun newEntriesArePrepended() {
+        val tested = TimelineDeltaSync(25)
+        tested.pageLoaded(SleepEntry::class, 0, 40, page(40, 25))
+
+        val check = tested.check(SleepEntry::class, 42, sleep(42))
+        Assert.assertEquals(TimelineDeltaSync.Action.PREPEND, check.action)
+        Assert.assertEquals(2, check.delta)
+        Assert.assertTrue(tested.applyDelta(SleepEntry::class, check, page(42, 3)))
+
+        // The new newest entry is known now
+        Assert.assertEquals(
+            TimelineDeltaSync.Action.UNCHANGED,
+            tested.check(SleepEntry::class, 42, sleep(42)).action
+        )
+    }
+
+    @Test
+    fun prependWithMissingLinkFails() {
+        val tested = TimelineDeltaSync(25)
+        tested.pageLoaded(SleepEntry::class, 0, 40, page(40, 25))
+
+        // One entry was added, but the newest known entry was deleted at the same time
+        val check = tested.check(SleepEntry::class, 41, sleep(42))
+        Assert.assertEquals(TimelineDeltaSync.Action.PREPEND, check.action)
+        Assert.assertFalse(
+            tested.applyDelta(SleepEntry::class, check, listOf(sleep(42), sleep(41)))
+        )
+        Assert.assertFalse(tested.isKnown(SleepEntry::class))
+    }
+
+    @Test
+    fun editsAndDeletionsNeedReload() {
+        val tested = TimelineDeltaSync(25)
+        tested.pageLoaded(SleepEntry::class, 0, 40, page(40, 25))
+
+        // Notes of the newest entry changed
+        Assert.assertEquals(
+            TimelineDeltaSync.Action.RELOAD,
+            tested.check(SleepEntry::class, 40, sleep(40, "edited")).action
+        )
+        // An older entry was deleted
+        Assert.assertEquals(
+            TimelineDeltaSync.Action.RELOAD,
+            tested.check(SleepEntry::class, 39, sleep(40)).action
+        )
+        // Too many new entries
+        Assert.assertEquals(
+            TimelineDeltaSync.Action.RELOAD,
+            tested.check(SleepEntry::class, 70, sleep(70)).action
+        )
+        // All entries deleted
+        Assert.assertEquals(
+            TimelineDeltaSync.Action.RELOAD,
+            tested.check(SleepEntry::class, 0, null).action
+        )
+    }
+
+    @Test
+    fun periodicReloadFindsOlderEdits() {
+        val tested = TimelineDeltaSync(25, verifyInterval = 3)
+        tested.pageLoaded(SleepEntry::class, 0, 40, page(40, 25))
+
+        Assert.assertEquals(TimelineDeltaSync.Action.UNCHANGED, tested.check(SleepEntry::class, 40, sleep(40)).action)
+        val check = tested.check(SleepEntry::class, 41, sleep(41))
+        Assert.assertTrue(tested.applyDelta(SleepEntry::class, check, page(41, 2)))
+        // Prepending does not restart the interval, only a reloaded first page does
+        Assert.assertEquals(TimelineDeltaSync.Action.RELOAD, tested.check(SleepEntry::class, 41, sleep(41)).action)
+
+        tested.pageLoaded(SleepEntry::class, 0, 41, page(41, 25))
+        Assert.assertEquals(TimelineDeltaSync.Action.UNCHANGED, tested.check(SleepEntry::class, 41, sleep(41)).action)
+        Assert.assertEquals(TimelineDeltaSync.Action.UNCHANGED, tested.check(SleepEntry::class, 41, sleep(41)).action)
+        Assert.assertEquals(TimelineDeltaSync.Action.RELOAD, tested.check(SleepEntry::class, 41, sleep(41)).action)
+    }
+
+    @Test
+    fun pagingKeepsStateUnlessCountChanges() {
+        val tested = TimelineDeltaSync(25)
+        tested.pageLoaded(SleepEntry::class, 0, 40, page(40, 25))
+        tested.pageLoaded(SleepEntry::class, 25, 40, page(15, 15))
+        Assert.assertTrue(tested.isKnown(SleepEntry::class))
+
+        tested.pageLoaded(SleepEntry::class, 25, 41, page(16, 16))
+        Assert.assertFalse(tested.isKnown(SleepEntry::class))
+    }
+}
@@ -0,0 +1,61 @@
+package eu.pkgsoftware.babybuddywidgets
+
+import androidx.recyclerview.widget.DiffUtil
+import androidx.recyclerview.widget.ListUpdateCallback
+import eu.pkgsoftware.babybuddywidgets.history.CountingListUpdateCallback
+import eu.pkgsoftware.babybuddywidgets.history.TimelineAdapter
+import eu.pkgsoftware.babybuddywidgets.history.TimelineRow
+import eu.pkgsoftware.babybuddywidgets.logic.ContinuousListItem
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.SleepEntry
+import org.junit.Assert
+import org.junit.Test
+import java.util.Date
+
+class TimelineDiffTest {
+    private class NoopCallback : ListUpdateCallback {
+        override fun onInserted(position: Int, count: Int) {}
+        override fun onRemoved(position: Int, count: Int) {}
+        override fun onMoved(fromPosition: Int, toPosition: Int) {}
+        override fun onChanged(position: Int, count: Int, payload: Any?) {}
+    }
+
+    private fun row(id: Int, notes: String = "", dirty: Boolean = false): TimelineRow {
+        val start = Date(1700000000000L - id * 3600000L)
+        val entry = SleepEntry(id, 1, start, Date(start.time + 1800000L), notes)
+        val item = ContinuousListItem(-start.time, entry.appType, id.toString())
+        item.dirty = dirty
+        return TimelineRow(item, if (dirty) null else entry)
+    }
+
+    private fun touchedRows(old: List<TimelineRow>, new: List<TimelineRow>): Int {
+        val counter = CountingListUpdateCallback(NoopCallback())
+        DiffUtil.calculateDiff(object : DiffUtil.Callback() {
+            override fun getOldListSize() = old.size
+            override fun getNewListSize() = new.size
+            override fun areItemsTheSame(oldItemPosition: Int, newItemPosition: Int) =
+                TimelineAdapter.DIFF_CALLBACK.areItemsTheSame(old[oldItemPosition], new[newItemPosition])
+            override fun areContentsTheSame(oldItemPosition: Int, newItemPosition: Int) =
+                TimelineAdapter.DIFF_CALLBACK.areContentsTheSame(old[oldItemPosition], new[newItemPosition])
+        }).dispatchUpdatesTo(counter)
+        return counter.touchedRows
+    }
+
+    @Test
+    fun unchangedPollTouchesNothing() {
+        val rows = (1..150).map { row(it) }
+        Assert.assertEquals(0, touchedRows(rows, (1..150).map { row(it) }))
+    }
+
+    @Test
+    fun onlyChangedRowsAreTouched() {
+        val old = (1..150).map { row(it) }
+
+        // Two new entries on top
+        Assert.assertEquals(2, touchedRows(old, (-1..150).map { row(it) }))
+        // One entry edited, one deleted
+        val new = (1..150).filter { it != 20 }.map { if (it == 10) row(it, "edited") else row(it) }
+        Assert.assertEquals(2, touchedRows(old, new))
+        // A loaded entry became a placeholder
+        Assert.assertEquals(1, touchedRows(old, (1..150).map { row(it, dirty = it == 100) }))
+    }
+}
@@ -0,0 +1,165 @@
+package eu.pkgsoftware.babybuddywidgets
+
+import eu.pkgsoftware.babybuddywidgets.history.PendingEntryChanges
+import eu.pkgsoftware.babybuddywidgets.history.TimelineIntegration
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.PaginatedResult
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.NoteEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.SleepEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.TimeEntry
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert
+import org.junit.Test
+import java.util.Date
+
+class TimelineIntegrationTest {
+    private fun sleep(id: Int): SleepEntry {
+        val start = Date(1700000000000L + id * 3600000L)
+        return SleepEntry(id, 1, start, Date(start.time + 1800000L), "")
+    }
+
+    private fun note(id: Int): NoteEntry {
+        return NoteEntry(id, 1, Date(1700000000000L + id * 3600000L + 60000L), "note $id")
+    }
+
+    private fun ids(entries: List<TimeEntry?>): List<Int?> {
+        return entries.map { it?.id }
+    }
+
+    @Test
+    fun snapshotsAreNotChangedByLaterUpdates() = runTest {
+        val tested = TimelineIntegration(25, listOf(SleepEntry::class, NoteEntry::class))
+        tested.addPage(SleepEntry::class, 0, 2, listOf(sleep(2), sleep(1)))
+        tested.addPage(NoteEntry::class, 0, 1, listOf(note(1)))
+
+        val first = tested.snapshot()
+        Assert.assertEquals(listOf(2, 1, 1), ids(first.rows.map { it.entry }))
+        Assert.assertTrue(first.complete)
+
+        tested.prepend(SleepEntry::class, 3, listOf(sleep(3)))
+        val second = tested.snapshot()
+        Assert.assertEquals(listOf(3, 2, 1, 1), ids(second.rows.map { it.entry }))
+        Assert.assertTrue(second.version > first.version)
+        Assert.assertEquals(listOf(2, 1, 1), ids(first.rows.map { it.entry }))
+    }
+
+    @Test
+    fun pendingChangesSurviveReloads() = runTest {
+        val tested = TimelineIntegration(25, listOf(SleepEntry::class, NoteEntry::class))
+        tested.addPage(SleepEntry::class, 0, 3, listOf(sleep(3), sleep(2), sleep(1)))
+        tested.addPage(NoteEntry::class, 0, 1, listOf(note(1)))
+
+        val created = NoteEntry(0, 1, Date(1700000000000L + 2 * 3600000L + 60000L), "queued")
+        val pending = PendingEntryChanges(listOf(created), listOf(sleep(3)))
+        val rows = tested.snapshot(pending).rows
+        Assert.assertEquals(listOf(0, 2, 1, 1), ids(rows.map { it.entry }))
+        Assert.assertSame(created, rows[0].entry)
+
+        // A reloaded first page still contains the deleted entry and lacks the created one
+        tested.addPage(SleepEntry::class, 0, 3, listOf(sleep(3), sleep(2), sleep(1)))
+        tested.addPage(NoteEntry::class, 0, 1, listOf(note(1)))
+        Assert.assertEquals(listOf(0, 2, 1, 1), ids(tested.snapshot(pending).rows.map { it.entry }))
+
+        // Shown once even if the entry was also added to the top
+        tested.addToTop(created)
+        Assert.assertEquals(listOf(0, 2, 1, 1), ids(tested.snapshot(pending).rows.map { it.entry }))
+
+        // Deleting a created entry before it was sent hides it as well
+        val deletedAgain = PendingEntryChanges(listOf(created), listOf(created))
+        Assert.assertEquals(listOf(3, 2, 1, 1), ids(tested.snapshot(deletedAgain).rows.map { it.entry }))
+    }
+
+    @Test
+    fun pendingCreationsHaveTheirOwnRows() = runTest {
+        val tested = TimelineIntegration(25, listOf(NoteEntry::class))
+        tested.addPage(NoteEntry::class, 0, 1, listOf(note(1)))
+
+        val first = NoteEntry(0, 1, Date(1700000000000L + 2 * 3600000L), "first")
+        val second = NoteEntry(0, 1, Date(1700000000000L + 3 * 3600000L), "second")
+        tested.addToTop(first)
+        tested.addToTop(second)
+        Assert.assertEquals(listOf(1), ids(tested.snapshot().rows.map { it.entry }))
+
+        val pending = PendingEntryChanges(listOf(first, second), listOf(), listOf("key-a", "key-b"))
+        val rows = tested.snapshot(pending).rows
+        Assert.assertEquals(listOf(second, first, note(1)), rows.map { it.entry })
+        Assert.assertEquals(
+            listOf(PendingEntryChanges.localItemId("key-b"), PendingEntryChanges.localItemId("key-a"), "1"),
+            rows.map { it.item.id }
+        )
+    }
+
+    @Test
+    fun parallelResultsAreApplied() = runTest {
+        val tested = TimelineIntegration(25, listOf(SleepEntry::class, NoteEntry::class))
+        listOf(
+            async { tested.addPage(SleepEntry::class, 0, 30, (30 downTo 6).map { sleep(it) }) },
+            async { tested.addPage(NoteEntry::class, 0, 3, (3 downTo 1).map { note(it) }) },
+            async { tested.addPage(SleepEntry::class, 25, 30, (5 downTo 1).map { sleep(it) }) },
+        ).awaitAll()
+
+        val snapshot = tested.snapshot()
+        Assert.assertEquals(33, snapshot.rows.size)
+        Assert.assertTrue(snapshot.complete)
+        Assert.assertTrue(snapshot.rows.all { (it.entry != null) && !it.dirty })
+        val starts = snapshot.rows.map { it.entry!!.start.time }
+        Assert.assertEquals(starts.sortedDescending(), starts)
+    }
+
+    @Test
+    fun initialPagesDoNotOverrideLoadedClasses() = runTest {
+        val tested = TimelineIntegration(25, listOf(SleepEntry::class, NoteEntry::class))
+        tested.addPage(SleepEntry::class, 0, 1, listOf(sleep(5)))
+
+        val added = tested.addInitialPages { type ->
+            if (type == SleepEntry::class) {
+                PaginatedResult(listOf<TimeEntry>(sleep(1)), 0, 1)
+            } else {
+                PaginatedResult(listOf<TimeEntry>(note(1)), 0, 1)
+            }
+        }
+        Assert.assertTrue(added)
+        Assert.assertEquals(listOf(5, 1), ids(tested.snapshot().rows.map { it.entry }))
+    }
+
+    @Test
+    fun onlyWindowAroundTopIsKept() = runTest {
+        val total = 3000
+        val pageSize = 25
+        val tested = TimelineIntegration(pageSize, listOf(SleepEntry::class), keepPages = 3, prefetchPages = 2)
+        // Index 0 is the newest entry, like on the server
+        val fetch = { offset: Int ->
+            (offset until Math.min(total, offset + pageSize)).map { sleep(total - it) }
+        }
+        suspend fun scrollTo(index: Int) {
+            tested.updateTop(tested.snapshot().rows[index].item)
+            var fetched = 0
+            while (true) {
+                val offset = tested.missingPage(SleepEntry::class) ?: break
+                tested.addPage(SleepEntry::class, offset, total, fetch(offset))
+                Assert.assertTrue(++fetched < 10)
+            }
+        }
+        tested.addPage(SleepEntry::class, 0, total, fetch(0))
+
+        for (index in 0..2000 step 10) {
+            scrollTo(index)
+            val rows = tested.snapshot().rows
+            Assert.assertEquals(total - index, rows[index].entry?.id)
+            Assert.assertTrue(tested.entryCount() <= 7 * pageSize)
+        }
+        // Far above the window only placeholders are left
+        Assert.assertTrue(tested.snapshot().rows.subList(0, 1900).all { it.dirty && (it.entry == null) })
+
+        for (index in 2000 downTo 0 step 10) {
+            scrollTo(index)
+            val rows = tested.snapshot().rows
+            Assert.assertEquals(total - index, rows[index].entry?.id)
+            Assert.assertTrue(tested.entryCount() <= 7 * pageSize)
+        }
+        val rows = tested.snapshot().rows
+        Assert.assertTrue(rows.size <= 5 * pageSize)
+        Assert.assertEquals((total downTo total - rows.size + 1).toList(), ids(rows.map { it.entry }))
+    }
+}
@@ -0,0 +1,69 @@
+package eu.pkgsoftware.babybuddywidgets
+
+import eu.pkgsoftware.babybuddywidgets.history.TimelineIntegration
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.NoteEntry
+import eu.pkgsoftware.babybuddywidgets.networking.babybuddy.models.SleepEntry
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert
+import org.junit.Test
+import java.util.Date
+
+class TimelineMemoryTest {
+    companion object {
+        const val PAGE_SIZE = 25
+
+        // Eight hours of polling every five seconds
+        const val POLLS = 8 * 3600 / 5
+    }
+
+    private fun sleep(id: Int, poll: Int): SleepEntry {
+        val start = Date(1700000000000L + id * 3600000L)
+        return SleepEntry(id, 1, start, Date(start.time + 1800000L), "poll $poll")
+    }
+
+    private fun note(id: Int, poll: Int): NoteEntry {
+        return NoteEntry(id, 1, Date(1700000000000L + id * 3600000L + 60000L), "poll $poll")
+    }
+
+    private fun usedHeap(): Long {
+        val runtime = Runtime.getRuntime()
+        repeat(3) {
+            System.gc()
+            Thread.sleep(50)
+        }
+        return runtime.totalMemory() - runtime.freeMemory()
+    }
+
+    @Test
+    fun entriesStayBoundedWhilePolling() = runTest {
+        val tested = TimelineIntegration(PAGE_SIZE, listOf(SleepEntry::class, NoteEntry::class))
+        var newest = PAGE_SIZE
+        var heapAfterWarmup = 0L
+
+        for (poll in 0 until POLLS) {
+            // Every minute a new entry appears and the oldest one is deleted on the server
+            if (poll % 12 == 0) {
+                newest++
+                tested.prepend(SleepEntry::class, PAGE_SIZE + 1, listOf(sleep(newest, poll)))
+            }
+            // Every poll returns new objects for the entries, as if they were edited
+            tested.addPage(
+                SleepEntry::class, 0, PAGE_SIZE, (newest downTo newest - PAGE_SIZE + 1).map { sleep(it, poll) }
+            )
+            tested.addPage(
+                NoteEntry::class, 0, PAGE_SIZE, (newest downTo newest - PAGE_SIZE + 1).map { note(it, poll) }
+            )
+            val snapshot = tested.snapshot()
+            Assert.assertEquals(2 * PAGE_SIZE, snapshot.rows.size)
+            Assert.assertTrue(tested.entryCount() <= 2 * PAGE_SIZE + 1)
+
+            if (poll == POLLS / 10) {
+                heapAfterWarmup = usedHeap()
+            }
+        }
+
+        Assert.assertEquals(2 * PAGE_SIZE, tested.entryCount())
+        val growth = usedHeap() - heapAfterWarmup
+        Assert.assertTrue("heap grew by $growth bytes", growth < 4 * 1024 * 1024)
+    }
+}